@@ -0,0 +1,82 @@
+/*
+ * #%L
+ * Common package for I/O and related utilities
+ * %%
+ * Copyright (C) 2005 - 2016 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.common;
+
+import java.util.Arrays;
+
+/**
+ * Abstract HandleProvider that recognizes files by suffix and a fixed
+ * sequence of magic bytes at the start of the file.
+ *
+ * @see HandleProvider
+ */
+public abstract class AbstractHandleProvider implements HandleProvider {
+
+  // -- Fields --
+
+  private final byte[] magic;
+  private final String[] suffixes;
+
+  // -- Constructor --
+
+  /**
+   * @param magic the bytes with which every matching file begins
+   * @param suffixes the lower case file name suffixes to accept
+   */
+  protected AbstractHandleProvider(byte[] magic, String... suffixes) {
+    this.magic = magic.clone();
+    this.suffixes = suffixes.clone();
+  }
+
+  // -- HandleProvider API methods --
+
+  /* @see HandleProvider#getSuffixes() */
+  @Override
+  public String[] getSuffixes() {
+    return suffixes.clone();
+  }
+
+  /* @see HandleProvider#getHeaderLength() */
+  @Override
+  public int getHeaderLength() {
+    return magic.length;
+  }
+
+  /* @see HandleProvider#isThisType(String, byte[]) */
+  @Override
+  public boolean isThisType(String id, byte[] header) {
+    return header.length >= magic.length &&
+      Arrays.equals(magic, Arrays.copyOf(header, magic.length));
+  }
+
+}
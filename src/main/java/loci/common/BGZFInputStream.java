@@ -0,0 +1,384 @@
+/*
+ * #%L
+ * Common package for I/O and related utilities
+ * %%
+ * Copyright (C) 2005 - 2016 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.common;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * InputStream with random access to the uncompressed contents of a BGZF
+ * file.  BGZF files are a series of gzip members of at most 64 KB, each of
+ * which records its compressed size in a "BC" extra field.  The block
+ * structure is indexed from the member headers without inflating anything,
+ * after which any uncompressed offset can be reached by inflating a single
+ * block.  During sequential reads, the following blocks are inflated in
+ * parallel.
+ *
+ * @see GZipHandle
+ */
+class BGZFInputStream extends InputStream {
+
+  // -- Constants --
+
+  private static final int HEADER_LENGTH = 18;
+  private static final int TRAILER_LENGTH = 8;
+
+  private static final ExecutorService INFLATERS = Executors.newFixedThreadPool(
+    Runtime.getRuntime().availableProcessors(),
+    new ThreadFactoryBuilder().setDaemon(true)
+      .setNameFormat("bgzf-inflater-%d").build());
+
+  // -- Static fields --
+
+  private static volatile int prefetchBlocks =
+    Runtime.getRuntime().availableProcessors();
+
+  // -- Fields --
+
+  private final FileChannel channel;
+
+  /** Compressed offset of each non-empty block. */
+  private final long[] blockOffsets;
+
+  /** Compressed size of each non-empty block. */
+  private final int[] blockSizes;
+
+  /** Uncompressed offset of each non-empty block, plus the total length. */
+  private final long[] blockStarts;
+
+  private final Map<Integer, Future<byte[]>> prefetched =
+    new HashMap<Integer, Future<byte[]>>();
+
+  private int currentBlock = -1;
+  private byte[] current;
+
+  private long position = 0;
+  private long markPosition = 0;
+
+  // -- Constructor --
+
+  private BGZFInputStream(FileChannel channel, List<long[]> blocks) {
+    this.channel = channel;
+    int count = blocks.size();
+    blockOffsets = new long[count];
+    blockSizes = new int[count];
+    blockStarts = new long[count + 1];
+    for (int i=0; i<count; i++) {
+      long[] block = blocks.get(i);
+      blockOffsets[i] = block[0];
+      blockSizes[i] = (int) block[1];
+      blockStarts[i + 1] = blockStarts[i] + block[2];
+    }
+  }
+
+  // -- BGZFInputStream API methods --
+
+  /**
+   * Open the given file as a BGZF file.
+   *
+   * @param file the path to a gzip file
+   * @return a stream positioned at the start of the uncompressed data,
+   *         or null if the file is not entirely made up of BGZF blocks
+   * @throws IOException if the file cannot be read
+   */
+  static BGZFInputStream open(String file) throws IOException {
+    FileChannel channel = FileChannel.open(Paths.get(file),
+      StandardOpenOption.READ);
+    boolean success = false;
+    try {
+      List<long[]> blocks = index(channel);
+      if (blocks == null) return null;
+      success = true;
+      return new BGZFInputStream(channel, blocks);
+    }
+    finally {
+      if (!success) channel.close();
+    }
+  }
+
+  /**
+   * Set the number of blocks that are inflated ahead of the current block
+   * during sequential reads.
+   *
+   * @param blocks the number of blocks to prefetch; 0 disables prefetching
+   */
+  static void setPrefetchBlocks(int blocks) {
+    prefetchBlocks = Math.max(0, blocks);
+  }
+
+  /** @return the total uncompressed length */
+  long length() {
+    return blockStarts[blockStarts.length - 1];
+  }
+
+  /** @return the number of non-empty blocks */
+  int getBlockCount() {
+    return blockOffsets.length;
+  }
+
+  /** Move to the given uncompressed offset. */
+  void position(long pos) {
+    position = pos;
+  }
+
+  // -- InputStream API methods --
+
+  @Override
+  public int read() throws IOException {
+    if (!loadBlock()) return -1;
+    int b = current[(int) (position - blockStarts[currentBlock])] & 0xff;
+    position++;
+    return b;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (len == 0) return 0;
+    if (!loadBlock()) return -1;
+    int blockOffset = (int) (position - blockStarts[currentBlock]);
+    int n = Math.min(len, current.length - blockOffset);
+    System.arraycopy(current, blockOffset, b, off, n);
+    position += n;
+    return n;
+  }
+
+  @Override
+  public long skip(long n) {
+    long skipped = Math.max(0, Math.min(n, length() - position));
+    position += skipped;
+    return skipped;
+  }
+
+  @Override
+  public int available() {
+    return (int) Math.min(Integer.MAX_VALUE, Math.max(0, length() - position));
+  }
+
+  @Override
+  public boolean markSupported() {
+    return true;
+  }
+
+  @Override
+  public synchronized void mark(int readLimit) {
+    markPosition = position;
+  }
+
+  @Override
+  public synchronized void reset() {
+    position = markPosition;
+  }
+
+  @Override
+  public void close() throws IOException {
+    for (Future<byte[]> f : prefetched.values()) {
+      f.cancel(false);
+    }
+    prefetched.clear();
+    current = null;
+    channel.close();
+  }
+
+  // -- Helper methods --
+
+  /**
+   * Walk the member headers, recording the compressed offset, compressed
+   * size and uncompressed size of each block.
+   */
+  private static List<long[]> index(FileChannel channel) throws IOException {
+    long fileLength = channel.size();
+    List<long[]> blocks = new ArrayList<long[]>();
+    ByteBuffer header =
+      ByteBuffer.allocate(HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+    ByteBuffer trailer = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+    long offset = 0;
+    while (offset < fileLength) {
+      header.clear();
+      if (!readFully(channel, header, offset)) return null;
+      if ((header.get(0) & 0xff) != 0x1f || (header.get(1) & 0xff) != 0x8b ||
+        header.get(2) != 8 || (header.get(3) & 4) == 0 ||
+        header.getShort(10) != 6 || header.get(12) != 'B' ||
+        header.get(13) != 'C' || header.getShort(14) != 2)
+      {
+        return null;
+      }
+      int blockSize = (header.getShort(16) & 0xffff) + 1;
+      if (blockSize < HEADER_LENGTH + TRAILER_LENGTH ||
+        offset + blockSize > fileLength)
+      {
+        return null;
+      }
+      trailer.clear();
+      if (!readFully(channel, trailer, offset + blockSize - 4)) return null;
+      long uncompressed = trailer.getInt(0) & 0xffffffffL;
+      if (uncompressed > 0) {
+        blocks.add(new long[] {offset, blockSize, uncompressed});
+      }
+      offset += blockSize;
+    }
+    return blocks;
+  }
+
+  private static boolean readFully(FileChannel channel, ByteBuffer buf,
+    long offset) throws IOException
+  {
+    while (buf.hasRemaining()) {
+      int n = channel.read(buf, offset + buf.position());
+      if (n < 0) return false;
+    }
+    return true;
+  }
+
+  /**
+   * Make sure that the block containing the current position is loaded.
+   *
+   * @return false if the current position is at or beyond the end
+   */
+  private boolean loadBlock() throws IOException {
+    if (position >= length() || position < 0) return false;
+    if (currentBlock >= 0 && position >= blockStarts[currentBlock] &&
+      position < blockStarts[currentBlock + 1])
+    {
+      return true;
+    }
+    int block = Arrays.binarySearch(blockStarts, position);
+    if (block < 0) block = -block - 2;
+    // skip past any zero-length entries in blockStarts
+    while (blockStarts[block + 1] <= position) block++;
+
+    boolean sequential = block == currentBlock + 1;
+    Future<byte[]> future = prefetched.remove(block);
+    if (future != null) {
+      current = get(future);
+    }
+    else {
+      current = inflate(block);
+    }
+    currentBlock = block;
+
+    // discard prefetched blocks that are no longer ahead of the reader
+    Iterator<Map.Entry<Integer, Future<byte[]>>> it =
+      prefetched.entrySet().iterator();
+    while (it.hasNext()) {
+      Map.Entry<Integer, Future<byte[]>> e = it.next();
+      if (e.getKey() < block || e.getKey() > block + prefetchBlocks) {
+        e.getValue().cancel(false);
+        it.remove();
+      }
+    }
+    if (sequential) {
+      int last = Math.min(block + prefetchBlocks, blockOffsets.length - 1);
+      for (int i=block + 1; i<=last; i++) {
+        if (!prefetched.containsKey(i)) {
+          final int next = i;
+          prefetched.put(i, INFLATERS.submit(() -> inflate(next)));
+        }
+      }
+    }
+    return true;
+  }
+
+  private static byte[] get(Future<byte[]> future) throws IOException {
+    try {
+      return future.get();
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException(e);
+    }
+    catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException(e.getCause());
+    }
+  }
+
+  /** Read and inflate the given block.  Safe to call from any thread. */
+  private byte[] inflate(int block) throws IOException {
+    ByteBuffer compressed = ByteBuffer.allocate(blockSizes[block]);
+    if (!readFully(channel, compressed, blockOffsets[block])) {
+      throw new IOException("Truncated BGZF block at " + blockOffsets[block]);
+    }
+    compressed.order(ByteOrder.LITTLE_ENDIAN);
+    int size = (int) (blockStarts[block + 1] - blockStarts[block]);
+    byte[] data = new byte[size];
+    Inflater inflater = new Inflater(true);
+    try {
+      inflater.setInput(compressed.array(), HEADER_LENGTH,
+        blockSizes[block] - HEADER_LENGTH - TRAILER_LENGTH);
+      int n = 0;
+      while (n < size) {
+        int r = inflater.inflate(data, n, size - n);
+        if (r == 0 && (inflater.finished() || inflater.needsInput())) break;
+        n += r;
+      }
+      if (n != size) {
+        throw new IOException("Corrupt BGZF block at " + blockOffsets[block]);
+      }
+    }
+    catch (DataFormatException e) {
+      throw new IOException("Corrupt BGZF block at " + blockOffsets[block], e);
+    }
+    finally {
+      inflater.end();
+    }
+    CRC32 crc = new CRC32();
+    crc.update(data);
+    if ((int) crc.getValue() != compressed.getInt(blockSizes[block] - 8)) {
+      throw new IOException("BGZF CRC error at " + blockOffsets[block]);
+    }
+    return data;
+  }
+
+}
@@ -33,7 +33,6 @@
 package loci.common;
 
 import java.io.BufferedInputStream;
-import java.io.DataInputStream;
 import java.io.FileInputStream;
 import java.io.IOException;
 
@@ -56,9 +55,20 @@ public class BZip2Handle extends StreamHandle {
    * @throws HandleException if the given file is not a BZip2 file.
    */
   public BZip2Handle(String file) throws IOException {
+    this(file, true);
+  }
+
+  /**
+   * Construct a new BZip2Handle corresponding to the given file.
+   *
+   * @param file the path to a file on disk
+   * @param checkType false if the file is already known to be a BZip2 file
+   * @throws HandleException if the given file is not a BZip2 file.
+   */
+  BZip2Handle(String file, boolean checkType) throws IOException {
     super();
     this.file = file;
-    if (!isBZip2File(file)) {
+    if (checkType && !isBZip2File(file)) {
       throw new HandleException(file + " is not a BZip2 file.");
     }
 
@@ -103,13 +113,14 @@ public class BZip2Handle extends StreamHandle {
   /* @see StreamHandle#resetStream() */
   @Override
   protected void resetStream() throws IOException {
+    if (rewindSpill()) return;
     BufferedInputStream bis = new BufferedInputStream(
       new FileInputStream(file), RandomAccessInputStream.MAX_OVERHEAD);
     long skipped = 0;
     while (skipped < 2) {
       skipped += bis.skip(2 - skipped);
     }
-    stream = new DataInputStream(new CBZip2InputStream(bis));
+    stream = createStream(new CBZip2InputStream(bis));
   }
 
 
@@ -146,6 +146,8 @@ public class CBZip2InputStream extends InputStream {
     936, 638
   };
 
+  private static final int CRC_BUFFER_SIZE = 8192;
+
   private static final Logger LOGGER =
     LoggerFactory.getLogger(CBZip2InputStream.class);
 
@@ -187,6 +189,14 @@ public class CBZip2InputStream extends InputStream {
   private int bsLive;
   private final CRC crc = new CRC();
 
+  /**
+   * Output bytes not yet added to the block CRC.  Checksumming is deferred
+   * so that whole runs can be passed to
+   * {@link CRC#updateCRC(byte[], int, int)}.
+   */
+  private final byte[] crcBuf = new byte[CRC_BUFFER_SIZE];
+  private int crcLen;
+
   private int nInUse;
 
   private InputStream in;
@@ -383,11 +393,23 @@ public class CBZip2InputStream extends InputStream {
       getAndMoveToFrontDecode();
 
       this.crc.initialiseCRC();
+      this.crcLen = 0;
       this.currentState = START_BLOCK_STATE;
     }
   }
 
+  private void updateCRC(int ch) {
+    if (this.crcLen == CRC_BUFFER_SIZE) flushCRC();
+    this.crcBuf[this.crcLen++] = (byte) ch;
+  }
+
+  private void flushCRC() {
+    this.crc.updateCRC(this.crcBuf, 0, this.crcLen);
+    this.crcLen = 0;
+  }
+
   private void endBlock() {
+    flushCRC();
     this.computedBlockCRC = this.crc.getFinalCRC();
 
     // A bad CRC is considered a fatal error.
@@ -851,7 +873,7 @@ public class CBZip2InputStream extends InputStream {
       this.suI2++;
       this.currentChar = suCh2Shadow;
       this.currentState = RAND_PART_B_STATE;
-      this.crc.updateCRC(suCh2Shadow);
+      updateCRC(suCh2Shadow);
     }
     else {
       endBlock();
@@ -869,7 +891,7 @@ public class CBZip2InputStream extends InputStream {
       this.suI2++;
       this.currentChar = suCh2Shadow;
       this.currentState = NO_RAND_PART_B_STATE;
-      this.crc.updateCRC(suCh2Shadow);
+      updateCRC(suCh2Shadow);
     }
     else {
       this.currentState = NO_RAND_PART_A_STATE;
@@ -909,7 +931,7 @@ public class CBZip2InputStream extends InputStream {
   private void setupRandPartC() throws IOException {
     if (this.suJ2 < this.suZ) {
       this.currentChar = this.suCh2;
-      this.crc.updateCRC(this.suCh2);
+      updateCRC(this.suCh2);
       this.suJ2++;
     }
     else {
@@ -938,7 +960,7 @@ public class CBZip2InputStream extends InputStream {
     if (this.suJ2 < this.suZ) {
       int suCh2Shadow = this.suCh2;
       this.currentChar = suCh2Shadow;
-      this.crc.updateCRC(suCh2Shadow);
+      updateCRC(suCh2Shadow);
       this.suJ2++;
       this.currentState = NO_RAND_PART_C_STATE;
     }
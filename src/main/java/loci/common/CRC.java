@@ -128,6 +128,22 @@ public class CRC {
     0xbcb4666d, 0xb8757bda, 0xb5365d03, 0xb1f740b4
   };
 
+  /**
+   * Slicing-by-8 lookup tables; entry <code>[k][i]</code> is the CRC of
+   * byte <code>i</code> followed by <code>k</code> zero bytes.
+   */
+  private static final int[][] SLICING_TABLES = new int[8][256];
+
+  static {
+    System.arraycopy(CRC_32_TABLE, 0, SLICING_TABLES[0], 0, 256);
+    for (int k=1; k<8; k++) {
+      for (int i=0; i<256; i++) {
+        int prev = SLICING_TABLES[k - 1][i];
+        SLICING_TABLES[k][i] = (prev << 8) ^ CRC_32_TABLE[prev >>> 24];
+      }
+    }
+  }
+
   // -- Fields --
 
   private int globalCrc;
@@ -164,5 +180,41 @@ public class CRC {
     globalCrc = (globalCrc << 8) ^ CRC.CRC_32_TABLE[temp];
   }
 
+  /**
+   * Updates the CRC with <code>len</code> bytes from the given buffer,
+   * processing eight bytes per step.  The result is identical to calling
+   * {@link #updateCRC(int)} once for each byte.
+   *
+   * @param buf the bytes to checksum
+   * @param off the offset of the first byte in <code>buf</code>
+   * @param len the number of bytes to checksum
+   */
+  public void updateCRC(byte[] buf, int off, int len) {
+    final int[] t0 = SLICING_TABLES[0];
+    final int[] t1 = SLICING_TABLES[1];
+    final int[] t2 = SLICING_TABLES[2];
+    final int[] t3 = SLICING_TABLES[3];
+    final int[] t4 = SLICING_TABLES[4];
+    final int[] t5 = SLICING_TABLES[5];
+    final int[] t6 = SLICING_TABLES[6];
+    final int[] t7 = SLICING_TABLES[7];
+
+    int crc = globalCrc;
+    int i = off;
+    final int end = off + len;
+    for (; i + 8 <= end; i += 8) {
+      crc ^= ((buf[i] & 0xff) << 24) | ((buf[i + 1] & 0xff) << 16) |
+        ((buf[i + 2] & 0xff) << 8) | (buf[i + 3] & 0xff);
+      crc = t7[crc >>> 24] ^ t6[(crc >>> 16) & 0xff] ^
+        t5[(crc >>> 8) & 0xff] ^ t4[crc & 0xff] ^
+        t3[buf[i + 4] & 0xff] ^ t2[buf[i + 5] & 0xff] ^
+        t1[buf[i + 6] & 0xff] ^ t0[buf[i + 7] & 0xff];
+    }
+    for (; i < end; i++) {
+      crc = (crc << 8) ^ t0[(crc >>> 24) ^ (buf[i] & 0xff)];
+    }
+    globalCrc = crc;
+  }
+
 }
 
@@ -35,6 +35,14 @@ package loci.common;
 import java.io.File;
 import java.io.IOException;
 import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 
 /**
  * Case insensitive variant of Location.
@@ -43,10 +51,21 @@ import java.util.HashMap;
 @Deprecated
 public class CaseInsensitiveLocation extends Location {
 
+  // Constants
+
+  /** Default maximum number of cached directories. */
+  public static final long DEFAULT_CACHE_SIZE = 10000;
+
   // Fields
 
+  private static volatile boolean checkModificationTime = false;
+
   private static final Cache cache = new Cache();
 
+  static {
+    DirectoryWatcher.addListener(cache::invalidate);
+  }
+
   // -- Constructors (no caching) --
 
   public CaseInsensitiveLocation(String pathname) throws IOException {
@@ -86,6 +105,35 @@ public class CaseInsensitiveLocation extends Location {
     cache.invalidate(new Location(dir.getAbsolutePath()));
   }
 
+  /**
+   * Set the maximum number of directories whose content is cached.  When
+   * the cache is full, the least recently used directories are discarded
+   * first.  Setting the size clears the cache.
+   * @param directories the maximum number of directories to cache.
+   */
+  public static void setCacheSize(long directories) {
+    cache.resize(directories);
+  }
+
+  /**
+   * Set whether the modification time of a cached directory is checked on
+   * each lookup, so that the directory is scanned again if it has changed.
+   * This costs one request to the filesystem per lookup, much less than a
+   * scan of a large directory.  It is off by default.
+   * @param check true to check modification times.
+   * @see Location#watchDirectoryListings(boolean)
+   */
+  public static void setCheckModificationTime(boolean check) {
+    checkModificationTime = check;
+  }
+
+  /**
+   * @return the hit and miss counts of the directory cache.
+   */
+  public static CacheStats getCacheStats() {
+    return cache.stats();
+  }
+
   private static String findCaseInsensitive(Location name) throws IOException {
     // The file we're looking for doesn't exist, so look for it in the
     // same directory in a case-insensitive manner.  Note that this will
@@ -100,6 +148,13 @@ public class CaseInsensitiveLocation extends Location {
    * requires a full scan of the containing directory, which can be very
    * expensive.  This class caches insensitive-to-sensitive name mappings,
    * so the correct casing on the filesystem is returned.
+   *
+   * The cache is safe for concurrent use, holds at most a fixed number of
+   * directories, and scans each directory once even if several threads
+   * look it up at the same time.
+   *
+   * If {@link Location#watchDirectoryListings(boolean)} is on, cached
+   * directories are watched and dropped from the cache when they change.
    */
   private static final class Cache {
 
@@ -108,8 +163,8 @@ public class CaseInsensitiveLocation extends Location {
      * a mapping of case insensitive name to case sensitive (real) name
      * on disc.
      */
-    private HashMap<String, HashMap<String, String>> cache =
-      new HashMap<String, HashMap<String, String>>();
+    private volatile com.google.common.cache.Cache<String, Directory> cache =
+      build(DEFAULT_CACHE_SIZE);
 
     /**
      * The constructor.
@@ -119,29 +174,51 @@ public class CaseInsensitiveLocation extends Location {
     }
 
     /**
-     * Fill the cache with the content for the specified directory.
-     * @param dir the directory to cache.
+     * Replace the cache with an empty cache of the given size.
+     * @param directories the maximum number of directories to cache.
+     */
+    public void resize(long directories) {
+      com.google.common.cache.Cache<String, Directory> old = cache;
+      cache = build(directories);
+      // stop watching the directories of the old cache
+      old.invalidateAll();
+    }
+
+    /**
+     * Get the content of the specified directory, scanning it if it is
+     * not cached.
+     * @param dir the directory to look up.
      * @return the filename mappings for the directory, or null if the
      * directory did not exist.
      */
-    // Cache the whole directory content in a single pass
-    private HashMap<String, String> fill(Location dir) throws IOException {
+    private Map<String, String> fill(Location dir) throws IOException {
       String dirname = dir.getAbsolutePath();
-      HashMap<String, String> s = cache.get(dirname);
-      if (s == null && dir.exists()) {
-        s = new HashMap<String, String>();
-        cache.put(dirname, s);
-
-        String[] files = dir.list();
-        for (String name : files) {
-          String lower = name.toLowerCase();
-          if (s.containsKey(lower)) {
-            throw new IOException("Multiple files found for case-insensitive path");
-          }
-          s.put(lower, name);
+      com.google.common.cache.Cache<String, Directory> c = cache;
+      boolean watch = Location.isWatchingDirectoryListings() && !dir.isURL();
+      long generation = -1;
+      if (watch) {
+        // watch before scanning, so that no change can be missed
+        generation = DirectoryWatcher.watch(dirname);
+      }
+      Directory d = get(c, dir);
+      if (checkModificationTime && d.names != null &&
+        dir.lastModified() != d.lastModified)
+      {
+        c.invalidate(dirname);
+        if (watch) {
+          // dropping the directory stopped watching it
+          generation = DirectoryWatcher.watch(dirname);
         }
+        d = get(c, dir);
       }
-      return s;
+      if (d.names == null || (watch && (generation < 0 ||
+        generation != DirectoryWatcher.getGeneration())))
+      {
+        // missing directories are not cached, and neither are directories
+        // that cannot be watched or may have changed while being scanned
+        c.invalidate(dirname);
+      }
+      return d.names;
     }
 
     /**
@@ -149,15 +226,29 @@ public class CaseInsensitiveLocation extends Location {
      * @param dir the directory to remove.
      */
     public void invalidate(Location dir) {
-      String dirname = dir.getAbsolutePath();
-      cache.remove(dirname);
+      invalidate(dir.getAbsolutePath());
+    }
+
+    /**
+     * Remove a directory from the cache.
+     * @param dirname the absolute path of the directory to remove.
+     */
+    public void invalidate(String dirname) {
+      cache.invalidate(dirname);
     }
 
     /**
      * Remove all content from the cache.
      */
     public void invalidate() {
-      cache.clear();
+      cache.invalidateAll();
+    }
+
+    /**
+     * @return the hit and miss counts of the cache.
+     */
+    public CacheStats stats() {
+      return cache.stats();
     }
 
     /**
@@ -169,7 +260,7 @@ public class CaseInsensitiveLocation extends Location {
     public Location lookup(Location name) throws IOException {
       Location parent = name.getParentFile();
       if (parent != null) {
-        HashMap<String, String> s = fill(parent);
+        Map<String, String> s = fill(parent);
 
         if (s != null) {
           String realname = name.getName();
@@ -182,5 +273,73 @@ public class CaseInsensitiveLocation extends Location {
       }
       return name;
     }
+
+    /** Get a directory from the given cache, scanning it if necessary. */
+    private static Directory get(
+      com.google.common.cache.Cache<String, Directory> c, Location dir)
+      throws IOException
+    {
+      try {
+        return c.get(dir.getAbsolutePath(), () -> new Directory(dir));
+      }
+      catch (ExecutionException | UncheckedExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof IOException) throw (IOException) cause;
+        if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+        throw new IOException(cause);
+      }
+    }
+
+    /** Stop watching a directory that is no longer cached. */
+    private static void removed(RemovalNotification<String, Directory> removal)
+    {
+      if (removal.getCause() != RemovalCause.REPLACED) {
+        DirectoryWatcher.unwatch(removal.getKey());
+      }
+    }
+
+    private static com.google.common.cache.Cache<String, Directory> build(
+      long directories)
+    {
+      return CacheBuilder.newBuilder()
+        .maximumSize(directories)
+        .removalListener(Cache::removed)
+        .recordStats()
+        .build();
+    }
+  }
+
+  /** The content of a cached directory. */
+  private static final class Directory {
+
+    /**
+     * Mapping of case insensitive name to real name, or null if the
+     * directory did not exist.
+     */
+    final Map<String, String> names;
+
+    /** Modification time of the directory when it was scanned. */
+    final long lastModified;
+
+    // Cache the whole directory content in a single pass
+    Directory(Location dir) throws IOException {
+      lastModified = dir.lastModified();
+      if (!dir.exists()) {
+        names = null;
+        return;
+      }
+      String[] files = dir.list();
+      HashMap<String, String> s = new HashMap<String, String>();
+      if (files != null) {
+        for (String name : files) {
+          String lower = name.toLowerCase();
+          if (s.containsKey(lower)) {
+            throw new IOException("Multiple files found for case-insensitive path");
+          }
+          s.put(lower, name);
+        }
+      }
+      names = s;
+    }
   }
 }
@@ -0,0 +1,217 @@
+/*
+ * #%L
+ * Common package for I/O and related utilities
+ * %%
+ * Copyright (C) 2005 - 2016 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.common;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Paths;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Watches local directories whose listings are cached, and tells the
+ * caches when a file is created in, removed from or modified in one of
+ * them.
+ *
+ * A directory is watched until the first change is reported, and must be
+ * watched again when its listing is next cached.  Caches that drop a
+ * listing, for any reason other than replacing it, stop watching its
+ * directory with {@link #unwatch(String)}, so that directories whose
+ * listings are no longer cached do not use up the platform's watches.  To avoid caching a
+ * listing that changed while it was being read, callers watch the
+ * directory before reading it, and drop the listing afterwards if
+ * {@link #getGeneration()} moved in between.
+ *
+ * @see Location#watchDirectoryListings(boolean)
+ */
+final class DirectoryWatcher {
+
+  // -- Constants --
+
+  private static final Logger LOGGER =
+    LoggerFactory.getLogger(DirectoryWatcher.class);
+
+  // -- Static fields --
+
+  private static final List<Consumer<String>> LISTENERS =
+    new CopyOnWriteArrayList<Consumer<String>>();
+
+  /** Watched directories, by watch key. */
+  private static final Map<WatchKey, String> KEYS =
+    new ConcurrentHashMap<WatchKey, String>();
+
+  /** Watch keys, by watched directory. */
+  private static final Map<String, WatchKey> DIRS =
+    new ConcurrentHashMap<String, WatchKey>();
+
+  /** Number of changes reported so far. */
+  private static final AtomicLong GENERATION = new AtomicLong();
+
+  private static WatchService service;
+
+  // -- Constructor --
+
+  private DirectoryWatcher() { }
+
+  // -- DirectoryWatcher API methods --
+
+  /**
+   * Add a listener that is called with the absolute path of each watched
+   * directory that changes, can no longer be watched, or is no longer
+   * watched.  Changes are reported on the watcher thread, and directories
+   * that are no longer watched on the thread that called
+   * {@link #unwatch(String)}.
+   */
+  static void addListener(Consumer<String> listener) {
+    LISTENERS.add(listener);
+  }
+
+  /**
+   * Watch the given directory until it next changes.
+   *
+   * @param dir the absolute path of a local directory
+   * @return the value of {@link #getGeneration()} once the directory is
+   *         watched, or -1 if the directory cannot be watched
+   */
+  static long watch(String dir) {
+    if (DIRS.containsKey(dir)) return GENERATION.get();
+    try {
+      WatchKey key = Paths.get(dir).register(getService(),
+        ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+      KEYS.put(key, dir);
+      DIRS.put(dir, key);
+      return GENERATION.get();
+    }
+    catch (IOException | RuntimeException e) {
+      LOGGER.debug("Could not watch {}", dir, e);
+      return -1;
+    }
+  }
+
+  /**
+   * Stop watching the given directory.  As the directory may also be
+   * cached elsewhere, or be listed at the same time, this counts as a
+   * change: {@link #getGeneration()} moves, and the listeners are told.
+   *
+   * @param dir the absolute path of a local directory
+   */
+  static void unwatch(String dir) {
+    WatchKey key = DIRS.get(dir);
+    if (key != null && cancel(key) != null) {
+      GENERATION.incrementAndGet();
+      notifyListeners(dir);
+    }
+  }
+
+  /** @return the number of changes reported so far */
+  static long getGeneration() {
+    return GENERATION.get();
+  }
+
+  /** Stop watching all directories. */
+  static void cancelAll() {
+    for (WatchKey key : new ArrayList<WatchKey>(KEYS.keySet())) {
+      cancel(key);
+    }
+  }
+
+  // -- Helper methods --
+
+  private static synchronized WatchService getService() throws IOException {
+    if (service == null) {
+      service = FileSystems.getDefault().newWatchService();
+      Thread t = new Thread(DirectoryWatcher::run, "location-watcher");
+      t.setDaemon(true);
+      t.start();
+    }
+    return service;
+  }
+
+  private static void run() {
+    while (true) {
+      WatchKey key;
+      try {
+        key = service.take();
+      }
+      catch (InterruptedException | ClosedWatchServiceException e) {
+        return;
+      }
+      boolean overflow = false;
+      for (WatchEvent<?> event : key.pollEvents()) {
+        if (event.kind() == OVERFLOW) overflow = true;
+      }
+      String dir = cancel(key);
+      GENERATION.incrementAndGet();
+      if (overflow) {
+        // events were lost, so any watched directory might have changed
+        for (WatchKey k : new ArrayList<WatchKey>(KEYS.keySet())) {
+          notifyListeners(cancel(k));
+        }
+      }
+      notifyListeners(dir);
+    }
+  }
+
+  private static String cancel(WatchKey key) {
+    key.cancel();
+    String dir = KEYS.remove(key);
+    if (dir != null) DIRS.remove(dir, key);
+    return dir;
+  }
+
+  private static void notifyListeners(String dir) {
+    if (dir == null) return;
+    LOGGER.trace("{} changed", dir);
+    for (Consumer<String> listener : LISTENERS) {
+      listener.accept(dir);
+    }
+  }
+
+}
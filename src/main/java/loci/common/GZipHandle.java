@@ -42,12 +42,22 @@ import java.util.zip.GZIPInputStream;
  * StreamHandle implementation for reading from gzip-compressed files
  * or byte arrays.  Instances of GZipHandle are read-only.
  *
+ * BGZF files (series of small gzip members that record their own sizes)
+ * are detected automatically.  For these, the blocks are indexed when the
+ * handle is opened, seeks only inflate the block containing the target
+ * offset, and sequential reads inflate the following blocks in parallel.
+ *
  * @see StreamHandle
  *
  * @author Melissa Linkert melissa at glencoesoftware.com
  */
 public class GZipHandle extends StreamHandle {
 
+  // -- Fields --
+
+  /** Random access stream, if the file is in BGZF format. */
+  private BGZFInputStream bgzf;
+
   // -- Constructor --
 
   /**
@@ -57,12 +67,30 @@ public class GZipHandle extends StreamHandle {
    * @throws HandleException if the given file name is not a GZip file.
    */
   public GZipHandle(String file) throws IOException {
+    this(file, true);
+  }
+
+  /**
+   * Construct a new GZipHandle for the given file.
+   *
+   * @param file the path to the GZip file
+   * @param checkType false if the file is already known to be a GZip file
+   * @throws HandleException if the given file name is not a GZip file.
+   */
+  GZipHandle(String file, boolean checkType) throws IOException {
     super();
     this.file = file;
-    if (!isGZipFile(file)) {
+    if (checkType && !isGZipFile(file)) {
       throw new HandleException(file + " is not a gzip file.");
     }
 
+    bgzf = BGZFInputStream.open(file);
+    if (bgzf != null) {
+      length = bgzf.length();
+      stream = new DataInputStream(bgzf);
+      return;
+    }
+
     resetStream();
 
     length = 0;
@@ -92,15 +120,71 @@ public class GZipHandle extends StreamHandle {
     return DataTools.bytesToInt(b, true) == GZIPInputStream.GZIP_MAGIC;
   }
 
+  /**
+   * @return true if the file is in BGZF format, and so supports fast
+   *         random access
+   */
+  public boolean isBGZF() {
+    return bgzf != null;
+  }
+
+  /**
+   * Set the number of BGZF blocks that are inflated in parallel ahead of
+   * sequential reads.  By default, this is the number of available
+   * processors.
+   *
+   * @param blocks the number of blocks to prefetch; 0 disables prefetching
+   */
+  public static void setBGZFPrefetchBlocks(int blocks) {
+    BGZFInputStream.setPrefetchBlocks(blocks);
+  }
+
+  // -- IRandomAccess API methods --
+
+  /* @see IRandomAccess#close() */
+  @Override
+  public void close() throws IOException {
+    super.close();
+    bgzf = null;
+  }
+
+  /* @see IRandomAccess#seek(long) */
+  @Override
+  public void seek(long pos) throws IOException {
+    if (bgzf == null) {
+      super.seek(pos);
+      return;
+    }
+    bgzf.position(pos);
+    fp = pos;
+  }
+
+  // -- DataInput API methods --
+
+  /* @see StreamHandle#skipBytes(long) */
+  @Override
+  public long skipBytes(long n) throws IOException {
+    if (bgzf == null) return super.skipBytes(n);
+    long skipped = Math.max(0, Math.min(n, length - fp));
+    seek(fp + skipped);
+    return skipped;
+  }
+
   // -- StreamHandle API methods --
 
   /* @see StreamHandle#resetStream() */
   @Override
   protected void resetStream() throws IOException {
+    if (bgzf != null) {
+      seek(0);
+      mark = 0;
+      return;
+    }
+    if (rewindSpill()) return;
     if (stream != null) stream.close();
     BufferedInputStream bis = new BufferedInputStream(
       new FileInputStream(file), RandomAccessInputStream.MAX_OVERHEAD);
-    stream = new DataInputStream(new GZIPInputStream(bis));
+    stream = createStream(new GZIPInputStream(bis));
   }
 
 }
@@ -0,0 +1,162 @@
+/*
+ * #%L
+ * Common package for I/O and related utilities
+ * %%
+ * Copyright (C) 2005 - 2016 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.common;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.Deflater;
+
+/**
+ * StreamHandle implementation for writing gzip-compressed files.
+ * Data is compressed in parallel by a {@link ParallelGZIPOutputStream}.
+ * Instances of GZipOutputHandle are write-only, and can only seek forward;
+ * the gap left by a forward seek is filled with zeros.
+ *
+ * A GZipOutputHandle can be wrapped in a {@link RandomAccessOutputStream}.
+ *
+ * @see StreamHandle
+ * @see ParallelGZIPOutputStream
+ */
+public class GZipOutputHandle extends StreamHandle {
+
+  // -- Fields --
+
+  private ParallelGZIPOutputStream gzip;
+
+  // -- Constructors --
+
+  /**
+   * Construct a new GZipOutputHandle that writes a single gzip member,
+   * using one thread per available processor.
+   *
+   * @param file the path to the gzip file to create
+   * @throws IOException if the file cannot be created
+   */
+  public GZipOutputHandle(String file) throws IOException {
+    this(file, false, Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Construct a new GZipOutputHandle.
+   *
+   * @param file the path to the gzip file to create
+   * @param bgzf true if the file should be written in BGZF format, which
+   *             allows {@link GZipHandle} to read it with random access
+   * @param threads the number of blocks to compress in parallel
+   * @throws IOException if the file cannot be created
+   */
+  public GZipOutputHandle(String file, boolean bgzf, int threads)
+    throws IOException
+  {
+    super();
+    this.file = file;
+    int blockSize = bgzf ? ParallelGZIPOutputStream.BGZF_BLOCK_SIZE :
+      ParallelGZIPOutputStream.DEFAULT_BLOCK_SIZE;
+    gzip = new ParallelGZIPOutputStream(
+      new BufferedOutputStream(new FileOutputStream(file)), bgzf, blockSize,
+      threads, Deflater.DEFAULT_COMPRESSION);
+    outStream = new DataOutputStream(gzip);
+    stream = new DataInputStream(new WriteOnlyInputStream());
+  }
+
+  // -- IRandomAccess API methods --
+
+  /* @see IRandomAccess#getFilePointer() */
+  @Override
+  public long getFilePointer() throws IOException {
+    return gzip == null ? 0 : gzip.getBytesWritten();
+  }
+
+  /* @see IRandomAccess#length() */
+  @Override
+  public long length() throws IOException {
+    return getFilePointer();
+  }
+
+  /* @see IRandomAccess#seek(long) */
+  @Override
+  public void seek(long pos) throws IOException {
+    long current = getFilePointer();
+    if (pos < current) {
+      throw new HandleException("Cannot seek backwards in a gzip stream.");
+    }
+    byte[] zeros = new byte[(int) Math.min(pos - current, 65536)];
+    while (current < pos) {
+      int n = (int) Math.min(zeros.length, pos - current);
+      outStream.write(zeros, 0, n);
+      current += n;
+    }
+  }
+
+  /* @see IRandomAccess#skipBytes(long) */
+  @Override
+  public long skipBytes(long n) throws IOException {
+    seek(getFilePointer() + n);
+    return n;
+  }
+
+  /* @see IRandomAccess#close() */
+  @Override
+  public void close() throws IOException {
+    super.close();
+    gzip = null;
+  }
+
+  // -- StreamHandle API methods --
+
+  /* @see StreamHandle#resetStream() */
+  @Override
+  protected void resetStream() throws IOException {
+    throw new HandleException("Cannot reset a gzip output stream.");
+  }
+
+  // -- Helper classes --
+
+  /** InputStream that rejects all reads. */
+  private static class WriteOnlyInputStream extends InputStream {
+    @Override
+    public int read() throws IOException {
+      throw new HandleException("This stream is write-only.");
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      throw new HandleException("This stream is write-only.");
+    }
+  }
+
+}
@@ -0,0 +1,102 @@
+/*
+ * #%L
+ * Common package for I/O and related utilities
+ * %%
+ * Copyright (C) 2005 - 2016 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.common;
+
+import java.io.IOException;
+
+/**
+ * Interface for creating {@link IRandomAccess} handles for particular file
+ * types, such as compressed files and archives.
+ *
+ * Providers are consulted by {@link Location#getHandle(String, boolean,
+ * boolean, int)} when archive handles are allowed.  Each provider declares
+ * the file suffixes it accepts and the number of header bytes it needs to
+ * recognize a file; the header is read once and shared by every provider.
+ * Additional providers can be added with
+ * {@link HandleProviders#register(HandleProvider)}, or by listing them in
+ * <code>META-INF/services/loci.common.HandleProvider</code>.
+ *
+ * @see HandleProviders
+ * @see AbstractHandleProvider
+ */
+public interface HandleProvider {
+
+  /**
+   * @return the lower case file name suffixes (e.g. ".gz") accepted by this
+   *         provider
+   */
+  String[] getSuffixes();
+
+  /**
+   * @return the number of bytes from the start of the file needed by
+   *         {@link #isThisType(String, byte[])}
+   */
+  int getHeaderLength();
+
+  /**
+   * Check whether the given file can be opened by this provider.
+   *
+   * @param id the name of the file, which has one of this provider's suffixes
+   * @param header the first bytes of the file; this may be shorter than
+   *               {@link #getHeaderLength()} if the file is short
+   * @return true if this provider should be used to open the file
+   */
+  boolean isThisType(String id, byte[] header);
+
+  /**
+   * Create a new read-only handle for the given file.
+   *
+   * @param id the name of a file for which {@link #isThisType} returned true
+   * @return a new handle
+   * @throws IOException if the handle could not be created
+   */
+  IRandomAccess createHandle(String id) throws IOException;
+
+  /**
+   * Check that {@link #createHandle(String)} is expected to succeed for the
+   * given file, without creating a handle.  Only the header should be
+   * inspected, so that {@link Location#checkValidId(String)} costs no more
+   * than a header read; errors further into the file are found when it is
+   * read.
+   *
+   * The default implementation accepts every file.
+   *
+   * @param id the name of a file for which {@link #isThisType} returned true
+   * @param header the first bytes of the file, as passed to
+   *               {@link #isThisType(String, byte[])}
+   * @throws IOException if a handle could not be created for the file
+   */
+  default void probe(String id, byte[] header) throws IOException {
+  }
+
+}
@@ -0,0 +1,310 @@
+/*
+ * #%L
+ * Common package for I/O and related utilities
+ * %%
+ * Copyright (C) 2005 - 2016 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.common;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Registry of {@link HandleProvider} implementations used by
+ * {@link Location#getHandle(String, boolean, boolean, int)} to open
+ * compressed and archive files.
+ *
+ * The built-in Zip, GZip and BZip2 providers are registered first, followed
+ * by any providers found with {@link ServiceLoader}.  Providers are
+ * consulted in registration order.
+ */
+public final class HandleProviders {
+
+  // -- Constants --
+
+  private static final Logger LOGGER =
+    LoggerFactory.getLogger(HandleProviders.class);
+
+  /** Magic number at the start of each BZip2 block. */
+  private static final byte[] BZIP2_BLOCK =
+    {0x31, 0x41, 0x59, 0x26, 0x53, 0x59};
+
+  /** Magic number at the end of a BZip2 stream. */
+  private static final byte[] BZIP2_END =
+    {0x17, 0x72, 0x45, 0x38, 0x50, (byte) 0x90};
+
+  /** Length of the fixed part of a gzip header. */
+  private static final int GZIP_HEADER_LENGTH = 10;
+
+  /** Length of the BZip2 stream header and first magic number. */
+  private static final int BZIP2_HEADER_LENGTH = 10;
+
+  /** Provider for Zip files. */
+  public static final HandleProvider ZIP =
+    new AbstractHandleProvider(new byte[] {'P', 'K'}, ".zip") {
+      @Override
+      public IRandomAccess createHandle(String id) throws IOException {
+        return new ZipHandle(id);
+      }
+    };
+
+  /** Provider for gzip-compressed files. */
+  public static final HandleProvider GZIP = new AbstractHandleProvider(
+    new byte[] {(byte) GZIPInputStream.GZIP_MAGIC,
+      (byte) (GZIPInputStream.GZIP_MAGIC >> 8)}, ".gz")
+  {
+    @Override
+    public int getHeaderLength() {
+      return GZIP_HEADER_LENGTH;
+    }
+
+    @Override
+    public IRandomAccess createHandle(String id) throws IOException {
+      return new GZipHandle(id, false);
+    }
+
+    @Override
+    public void probe(String id, byte[] header) throws IOException {
+      // the fixed part of the gzip header, as checked by GZIPInputStream
+      if (header.length < GZIP_HEADER_LENGTH) {
+        throw new EOFException(id + " has a truncated gzip header");
+      }
+      if (header[2] != Deflater.DEFLATED) {
+        throw new ZipException(id + " has an unsupported compression method");
+      }
+    }
+  };
+
+  /** Provider for BZip2-compressed files. */
+  public static final HandleProvider BZIP2 =
+    new AbstractHandleProvider(new byte[] {'B', 'Z'}, ".bz2") {
+      @Override
+      public int getHeaderLength() {
+        return BZIP2_HEADER_LENGTH;
+      }
+
+      @Override
+      public IRandomAccess createHandle(String id) throws IOException {
+        return new BZip2Handle(id, false);
+      }
+
+      @Override
+      public void probe(String id, byte[] header) throws IOException {
+        // block size, then the magic number of the first block or of the
+        // end of the stream, as checked by CBZip2InputStream
+        if (header.length < BZIP2_HEADER_LENGTH || header[2] != 'h' ||
+          header[3] < '1' || header[3] > '9')
+        {
+          throw new IOException(id + " is not BZip2 formatted");
+        }
+        byte[] magic = Arrays.copyOfRange(header, 4, BZIP2_HEADER_LENGTH);
+        if (!Arrays.equals(magic, BZIP2_BLOCK) &&
+          !Arrays.equals(magic, BZIP2_END))
+        {
+          throw new IOException(id + " has a bad BZip2 block header");
+        }
+      }
+    };
+
+  // -- Static fields --
+
+  private static final List<HandleProvider> providers =
+    new CopyOnWriteArrayList<HandleProvider>(
+      Arrays.asList(ZIP, GZIP, BZIP2));
+
+  static {
+    try {
+      for (HandleProvider p : ServiceLoader.load(HandleProvider.class)) {
+        LOGGER.debug("Registering handle provider {}", p.getClass());
+        providers.add(p);
+      }
+    }
+    catch (ServiceConfigurationError e) {
+      LOGGER.warn("Could not load handle providers", e);
+    }
+  }
+
+  // -- Constructor --
+
+  private HandleProviders() { }
+
+  // -- HandleProviders API methods --
+
+  /**
+   * Add a provider to the end of the registry.
+   *
+   * @param provider the provider to add
+   */
+  public static void register(HandleProvider provider) {
+    providers.add(provider);
+  }
+
+  /**
+   * Remove a provider from the registry.
+   *
+   * @param provider the provider to remove
+   * @return true if the provider was registered
+   */
+  public static boolean unregister(HandleProvider provider) {
+    return providers.remove(provider);
+  }
+
+  /**
+   * @return a snapshot of the registered providers, in the order in which
+   *         they are consulted
+   */
+  public static List<HandleProvider> getProviders() {
+    return Collections.unmodifiableList(
+      new ArrayList<HandleProvider>(providers));
+  }
+
+  /**
+   * Find the provider that should be used to open the given file.
+   * Only providers that accept the file's suffix are consulted, and the
+   * file's header is read at most once.
+   *
+   * @param id the path to a file on disk, or an id mapped to a file or
+   *           handle
+   * @return the first matching provider, or null if there is none
+   * @throws IOException if the file's header cannot be read
+   */
+  public static HandleProvider findProvider(String id) throws IOException {
+    return find(id, false);
+  }
+
+  /**
+   * Find the provider that should be used to open the given file, and
+   * check with {@link HandleProvider#probe(String, byte[])} that it can
+   * open the file.  No handle is created, so this costs at most a read of
+   * the file's header.
+   *
+   * @param id the path to a file on disk, or an id mapped to a file or
+   *           handle
+   * @return the first matching provider, or null if there is none
+   * @throws IOException if the file's header cannot be read, or the
+   *         matching provider could not open the file
+   */
+  public static HandleProvider probe(String id) throws IOException {
+    return find(id, true);
+  }
+
+  // -- Helper methods --
+
+  /**
+   * Find the first provider that accepts the given file, reading the
+   * file's header at most once, and optionally probe it.
+   */
+  private static HandleProvider find(String id, boolean probe)
+    throws IOException
+  {
+    List<HandleProvider> candidates = getCandidates(id);
+    if (candidates.isEmpty()) return null;
+
+    int headerLength = 0;
+    for (HandleProvider p : candidates) {
+      headerLength = Math.max(headerLength, p.getHeaderLength());
+    }
+    byte[] header = readHeader(id, headerLength);
+    for (HandleProvider p : candidates) {
+      if (p.isThisType(id, header)) {
+        if (probe) p.probe(id, header);
+        return p;
+      }
+    }
+    return null;
+  }
+
+  /** @return the providers that accept the given file's suffix */
+  static List<HandleProvider> getCandidates(String id) {
+    String lower = id.toLowerCase(Locale.ROOT);
+    List<HandleProvider> candidates = new ArrayList<HandleProvider>();
+    for (HandleProvider p : providers) {
+      for (String suffix : p.getSuffixes()) {
+        if (lower.endsWith(suffix)) {
+          candidates.add(p);
+          break;
+        }
+      }
+    }
+    return candidates;
+  }
+
+  /**
+   * Read up to the given number of bytes from the start of a file.  The
+   * file is read through {@link Location#getHandle(String, boolean,
+   * boolean, int)}, so that mapped ids and handles are detected too.
+   */
+  static byte[] readHeader(String id, int length) throws IOException {
+    if (length <= 0) return new byte[0];
+    IRandomAccess mapped = Location.getMappedFile(id);
+    if (mapped != null) {
+      // a mapped handle is shared, so it is not closed or moved
+      long fp = mapped.getFilePointer();
+      try {
+        mapped.seek(0);
+        return readHeader(mapped, length);
+      }
+      finally {
+        mapped.seek(fp);
+      }
+    }
+    IRandomAccess handle = Location.getHandle(id, false, false, length);
+    try {
+      return readHeader(handle, length);
+    }
+    finally {
+      handle.close();
+    }
+  }
+
+  /** Read up to the given number of bytes from the current position. */
+  private static byte[] readHeader(IRandomAccess handle, int length)
+    throws IOException
+  {
+    long available = handle.length() - handle.getFilePointer();
+    byte[] header = new byte[(int) Math.max(0, Math.min(length, available))];
+    handle.readFully(header);
+    return header;
+  }
+
+}
@@ -0,0 +1,113 @@
+/*
+ * #%L
+ * Common package for I/O and related utilities
+ * %%
+ * Copyright (C) 2005 - 2016 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.common;
+
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+
+/**
+ * The id map and id scope of the thread that captured it, so that tasks
+ * run for that thread on a pool see the same mapped ids.
+ *
+ * The id map is copied when captured, as the capturing thread may change
+ * it while the tasks run.
+ *
+ * @see Location#getIdMap()
+ * @see Location#getIdScope()
+ */
+final class IdContext {
+
+  // -- Fields --
+
+  private final HashMap<String, Object> ids;
+
+  private final IdScope scope;
+
+  // -- Constructor --
+
+  private IdContext(HashMap<String, Object> ids, IdScope scope) {
+    this.ids = ids;
+    this.scope = scope;
+  }
+
+  // -- IdContext API methods --
+
+  /** @return the id map and id scope of the current thread */
+  static IdContext capture() {
+    return new IdContext(new HashMap<String, Object>(Location.getIdMap()),
+      Location.getIdScope());
+  }
+
+  /**
+   * Wrap a task so that this context is bound to the thread that runs it.
+   *
+   * @param task the task to run in this context
+   * @return a task that binds this context, runs the given task, and
+   *         restores the thread's previous id map and scope
+   */
+  <T> Callable<T> wrap(Callable<T> task) {
+    return () -> {
+      HashMap<String, Object> previousIds = Location.getIdMap();
+      IdScope previousScope = Location.getIdScope();
+      Location.setIdMap(ids);
+      Location.setIdScope(scope);
+      try {
+        return task.call();
+      }
+      finally {
+        Location.setIdMap(previousIds);
+        Location.setIdScope(previousScope);
+      }
+    };
+  }
+
+  /**
+   * Run a task with this context bound to the current thread.
+   *
+   * @param task the task to run in this context
+   */
+  void run(Runnable task) {
+    HashMap<String, Object> previousIds = Location.getIdMap();
+    IdScope previousScope = Location.getIdScope();
+    Location.setIdMap(ids);
+    Location.setIdScope(scope);
+    try {
+      task.run();
+    }
+    finally {
+      Location.setIdMap(previousIds);
+      Location.setIdScope(previousScope);
+    }
+  }
+
+}
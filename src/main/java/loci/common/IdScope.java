@@ -0,0 +1,213 @@
+/*
+ * #%L
+ * Common package for I/O and related utilities
+ * %%
+ * Copyright (C) 2005 - 2016 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.common;
+
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A concurrent id map that can be shared by many threads, for use with
+ * {@link Location#mapId(String, String)} and
+ * {@link Location#mapFile(String, IRandomAccess)}.
+ *
+ * Scopes nest: each scope has a parent, and ids that are not mapped in a
+ * scope are looked up in its parent.  The outermost scope is the
+ * process-wide {@link Location#getGlobalIdScope() global scope}; a
+ * session scope can be created below it with {@link #IdScope()}, and
+ * bound to the threads that work for the session with
+ * {@link Location#setIdScope(IdScope)} or {@link #wrap(Callable)}.
+ * Each thread's own id map, returned by {@link Location#getIdMap()}, is
+ * searched before any scope.
+ *
+ * Lookups do not lock, so any number of threads can resolve the same
+ * mappings, such as in-memory {@link ByteArrayHandle}s, without copying.
+ */
+public final class IdScope {
+
+  // -- Constants --
+
+  /** The process-wide scope. */
+  static final IdScope GLOBAL = new IdScope();
+
+  // -- Fields --
+
+  private final IdScope parent;
+
+  private final Map<String, Object> ids =
+    new ConcurrentHashMap<String, Object>();
+
+  // -- Constructors --
+
+  /**
+   * Construct a new scope whose parent is the global scope.
+   */
+  public IdScope() {
+    // GLOBAL is null while the global scope itself is constructed
+    this.parent = GLOBAL;
+  }
+
+  /**
+   * Construct a new scope nested in the given scope.
+   *
+   * @param parent the scope in which ids not mapped in this scope are
+   *               looked up
+   * @throws IllegalArgumentException if the parent is null
+   */
+  public IdScope(IdScope parent) {
+    if (parent == null) {
+      throw new IllegalArgumentException("parent cannot be null");
+    }
+    this.parent = parent;
+  }
+
+  // -- IdScope API methods --
+
+  /**
+   * @return the scope in which ids not mapped in this scope are looked up,
+   *         or null for the global scope
+   */
+  public IdScope getParent() {
+    return parent;
+  }
+
+  /**
+   * Map the given id to an actual filename in this scope.
+   *
+   * @param id the mapped name
+   * @param filename the actual filename on disk.
+   *        If null, any existing mapping for <code>id</code> in this scope
+   *        will be cleared.
+   * @see Location#mapId(String, String)
+   */
+  public void mapId(String id, String filename) {
+    put(id, filename);
+  }
+
+  /**
+   * Map the given id to the given IRandomAccess object in this scope.
+   *
+   * @param id the mapped name
+   * @param ira the IRandomAccess object that will be referenced by
+   *        <code>id</code>.  If null, any existing mapping for
+   *        <code>id</code> in this scope will be cleared.
+   * @see Location#mapFile(String, IRandomAccess)
+   */
+  public void mapFile(String id, IRandomAccess ira) {
+    put(id, ira);
+  }
+
+  /**
+   * Look up an id in this scope and its parents.
+   *
+   * @param id the mapped name
+   * @return the filename or IRandomAccess mapped to the id by the
+   *         innermost scope that maps it, or null
+   */
+  public Object get(String id) {
+    if (id == null) return null;
+    for (IdScope scope = this; scope != null; scope = scope.parent) {
+      Object value = scope.ids.get(id);
+      if (value != null) return value;
+    }
+    return null;
+  }
+
+  /**
+   * Remove all mappings from this scope.  Parent scopes are not changed.
+   */
+  public void clear() {
+    ids.clear();
+  }
+
+  /**
+   * @return true if no ids are mapped in this scope or its parents
+   */
+  public boolean isEmpty() {
+    for (IdScope scope = this; scope != null; scope = scope.parent) {
+      if (!scope.ids.isEmpty()) return false;
+    }
+    return true;
+  }
+
+  /**
+   * Wrap a task so that this scope is bound to the thread that runs it,
+   * for example before submitting the task to a thread pool.
+   *
+   * @param task the task to run in this scope
+   * @return a task that binds this scope, runs the given task, and
+   *         restores the thread's previous scope
+   */
+  public <T> Callable<T> wrap(Callable<T> task) {
+    return () -> {
+      IdScope previous = Location.getIdScope();
+      Location.setIdScope(this);
+      try {
+        return task.call();
+      }
+      finally {
+        Location.setIdScope(previous);
+      }
+    };
+  }
+
+  /**
+   * Wrap a task so that this scope is bound to the thread that runs it.
+   *
+   * @param task the task to run in this scope
+   * @return a task that binds this scope, runs the given task, and
+   *         restores the thread's previous scope
+   * @see #wrap(Callable)
+   */
+  public Runnable wrap(Runnable task) {
+    return () -> {
+      IdScope previous = Location.getIdScope();
+      Location.setIdScope(this);
+      try {
+        task.run();
+      }
+      finally {
+        Location.setIdScope(previous);
+      }
+    };
+  }
+
+  // -- Helper methods --
+
+  private void put(String id, Object value) {
+    if (id == null) return;
+    if (value == null) ids.remove(id);
+    else ids.put(id, value);
+  }
+
+}
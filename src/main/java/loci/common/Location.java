@@ -34,30 +34,68 @@ package loci.common;
 
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.URLConnection;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemNotFoundException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.ProviderNotFoundException;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.DosFileAttributes;
+import java.nio.file.spi.FileSystemProvider;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
-import java.util.regex.Pattern;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.common.collect.MapMaker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalNotification;
 
 /**
  * Pseudo-extension of {@link java.io.File} that supports reading over HTTP
  * (among other things).
  * It is strongly recommended to use this instead of java.io.File.
+ *
+ * Files on any installed filesystem can be named with a {@link Path}, or
+ * with the URI of the path, such as
+ * "jar:file:///data/images.zip!/image.tif" for a member of a zip file.
+ * Such files are read and written with {@link PathHandle}.  A URI is only
+ * resolved if its filesystem is open; the caller opens the filesystem
+ * (for example with {@link FileSystems#newFileSystem(URI, java.util.Map)})
+ * and closes it when done.
  */
 public class Location {
 
@@ -78,30 +116,114 @@ public class Location {
       }
   };
 
+  /** Id scope bound to each thread, or null for the global scope. */
+  private static final ThreadLocal<IdScope> idScope =
+    new ThreadLocal<IdScope>();
+
   private static volatile boolean cacheListings = false;
 
+  private static volatile boolean watchListings = false;
+
   // By default, cache for one hour.
   private static volatile long cacheNanos = 60L * 60L * 1000L * 1000L * 1000L;
 
   protected class ListingsResult {
     public final String [] listing;
+    public final LocationInfo [] infos;
     public final long time;
     ListingsResult(String [] listing, long time) {
+      this(listing, null, time);
+    }
+    ListingsResult(String [] listing, LocationInfo [] infos, long time) {
       this.listing = listing;
+      this.infos = infos;
       this.time = time;
     }
   }
-  private static final Map<String, ListingsResult> fileListings =
-    new MapMaker().makeMap();  // like Java's ConcurrentHashMap
 
-  /** Pattern to match child URLs */
-  private static final Pattern URL_MATCHER = Pattern.compile(
-    "\\p{Alnum}+(\\+\\p{Alnum}+)?://.*");
+  /** Key of a cached directory listing. */
+  private static final class ListingKey {
+    private final String path;
+    private final boolean noHiddenFiles;
+    private final boolean attributes;
+    private final int hash;
+
+    ListingKey(String path, boolean noHiddenFiles, boolean attributes) {
+      this.path = path;
+      this.noHiddenFiles = noHiddenFiles;
+      this.attributes = attributes;
+      this.hash = 31 * path.hashCode() + (noHiddenFiles ? 1 : 0) +
+        (attributes ? 2 : 0);
+    }
 
-  /** Pattern to detect when getParent has gone past the parent of a URL */
-  private static final Pattern URL_ABOVE_PARENT = Pattern.compile(
-    "\\p{Alnum}+(\\+\\p{Alnum}+)?:/$");
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof ListingKey)) return false;
+      ListingKey k = (ListingKey) o;
+      return hash == k.hash && noHiddenFiles == k.noHiddenFiles &&
+        attributes == k.attributes && path.equals(k.path);
+    }
 
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+  }
+
+  // By default, cache the listings of up to 10000 directories.
+  private static final long DEFAULT_LISTING_CACHE_SIZE = 10000;
+
+  private static volatile long listingCacheSize = DEFAULT_LISTING_CACHE_SIZE;
+
+  private static volatile Cache<ListingKey, ListingsResult> fileListings =
+    buildListingCache();
+
+  static {
+    DirectoryWatcher.addListener(Location::directoryChanged);
+  }
+
+  // By default, cache URL metadata for one minute.
+  private static final long DEFAULT_URL_METADATA_NANOS =
+    60L * 1000L * 1000L * 1000L;
+  private static final long DEFAULT_URL_METADATA_SIZE = 10000;
+
+  private static volatile boolean trustURLListings = false;
+
+  private static volatile long urlMetadataNanos = DEFAULT_URL_METADATA_NANOS;
+  private static volatile long urlMetadataSize = DEFAULT_URL_METADATA_SIZE;
+
+  /** Process-wide cache of URL existence and length, keyed by URL. */
+  private static volatile Cache<String, URLLocationProperties> urlMetadata =
+    buildURLMetadataCache();
+
+  private static final long DEFAULT_CANONICAL_PATH_SIZE = 10000;
+
+  // By default, canonical paths are not cached.
+  private static volatile long canonicalPathNanos = 0;
+  private static volatile long canonicalPathSize = DEFAULT_CANONICAL_PATH_SIZE;
+
+  /** Process-wide cache of canonical paths, keyed by absolute path. */
+  private static volatile Cache<String, String> canonicalPaths =
+    buildCanonicalPathCache();
+
+  /**
+   * Schemes of the installed filesystem providers, other than those of
+   * local files and URLs, loaded on first use.
+   */
+  private static final class PathSchemes {
+    static final Set<String> SCHEMES = load();
+
+    private static Set<String> load() {
+      Set<String> schemes = new HashSet<String>();
+      for (FileSystemProvider p : FileSystemProvider.installedProviders()) {
+        schemes.add(p.getScheme().toLowerCase(Locale.ROOT));
+      }
+      schemes.remove("file");
+      schemes.remove("http");
+      schemes.remove("https");
+      return Collections.unmodifiableSet(schemes);
+    }
+  }
 
   // -- Fields --
 
@@ -110,43 +232,107 @@ public class Location {
   private URI uri;
   private File file;
 
-  class URLLocationProperties {
+  /** Path on an installed filesystem other than the default, or null. */
+  private Path nioPath;
+
+  /** Absolute path, computed on first use. */
+  private String absolutePath;
+
+  /** Hash code of the absolute path, or 0 if not yet computed. */
+  private int hash;
+
+  /**
+   * Existence, length, modification time and type of a URL, as reported by
+   * a HEAD request.
+   */
+  static final class URLLocationProperties {
     public final long length;
     public final boolean exists;
+    public final long lastModified;
+    public final boolean directory;
 
-    public URLLocationProperties(Location loc) {
+    URLLocationProperties(boolean exists, long length, long lastModified) {
+      this(exists, length, lastModified, false);
+    }
+
+    URLLocationProperties(boolean exists, long length, long lastModified,
+      boolean directory)
+    {
+      this.exists = exists;
+      this.length = length;
+      this.lastModified = lastModified;
+      this.directory = directory;
+    }
+
+    /** Request the properties of the given URL Location. */
+    static URLLocationProperties fetch(Location loc) {
       LOGGER.trace("Getting LocationProperties");
-      boolean bexists = false;
-      long llength = 0;
       if (!loc.isURL) {
         throw new IllegalArgumentException("Location must be a URL");
       }
+      URLLocationProperties properties;
       try {
-        IRandomAccess handle = Location.getHandle(uri.toString());
-        try {
-          bexists = handle.exists();
+        if (loc.url == null) {
+          properties = fetchS3(loc.uri.toString());
         }
-        catch (IOException e) {
-          LOGGER.trace("Failed to retrieve content from URL", e);
+        else if (loc.url.getProtocol().startsWith("http")) {
+          properties = fetchHTTP(loc.url);
         }
-        if (bexists) {
-          try {
-            llength = handle.length();
-          } catch (IOException e) {
-            LOGGER.trace("Could not determine URL's content length", e);
-          }
+        else {
+          URLConnection c = loc.url.openConnection();
+          // connecting checks existence without reading any content
+          c.getInputStream().close();
+          properties = new URLLocationProperties(true,
+            Math.max(0, c.getContentLengthLong()), c.getLastModified());
         }
-        handle.close();
       }
       catch (IOException e) {
-        LOGGER.trace("Failed to retrieve content from URL", e);
+        LOGGER.trace("Failed to retrieve properties of URL", e);
+        properties = new URLLocationProperties(false, 0, 0);
+      }
+      LOGGER.trace("exists:{} length:{}", properties.exists, properties.length);
+      return properties;
+    }
+
+    private static URLLocationProperties fetchHTTP(URL url)
+      throws IOException
+    {
+      HttpURLConnection c = (HttpURLConnection) url.openConnection();
+      try {
+        c.setRequestMethod("HEAD");
+        int code = c.getResponseCode();
+        if (code == HttpURLConnection.HTTP_BAD_METHOD ||
+          code == HttpURLConnection.HTTP_NOT_IMPLEMENTED)
+        {
+          // HEAD is not supported, so read the headers of a GET
+          c.disconnect();
+          c = (HttpURLConnection) url.openConnection();
+          code = c.getResponseCode();
+        }
+        boolean exists = code / 100 == 2;
+        return new URLLocationProperties(exists,
+          exists ? Math.max(0, c.getContentLengthLong()) : 0,
+          exists ? c.getLastModified() : 0,
+          exists && url.getPath().endsWith("/"));
+      }
+      finally {
+        c.disconnect();
+      }
+    }
+
+    private static URLLocationProperties fetchS3(String id)
+      throws IOException
+    {
+      try {
+        return new URLLocationProperties(true, S3Handle.length(id), 0);
+      }
+      catch (FileNotFoundException e) {
+        // an S3 prefix exists if there are objects below it
+        boolean prefix = S3Handle.list(id) != null;
+        return new URLLocationProperties(prefix, 0, 0, prefix);
       }
-      this.exists = bexists;
-      this.length = llength;
-      LOGGER.trace("exists:{} length:{}", bexists, llength);
     }
   }
-  private URLLocationProperties cachedProperties;
 
   // -- Constructors --
 
@@ -172,6 +358,23 @@ public class Location {
     this.file = file;
   }
 
+  /**
+   * Construct a Location using the given path on any installed filesystem.
+   * Paths on the default filesystem are treated as files on disk.
+   *
+   * @param path a file on any installed filesystem, such as a member of a
+   *             zip file opened with the zip filesystem provider
+   */
+  public Location(Path path) {
+    LOGGER.trace("Location({})", path);
+    if (path.getFileSystem() == FileSystems.getDefault()) {
+      file = path.toFile();
+    }
+    else {
+      nioPath = path;
+    }
+  }
+
   /**
    * Construct a Location using the given directory and relative path.
    * The two parameters are joined with a file separator and passed to
@@ -186,16 +389,38 @@ public class Location {
     String mapped = null;
     String pathname = null;
 
+    // Children of a URL are URLs
+    if (parent != null && child != null &&
+      isURLPath(parent) && !isURLPath(child))
+    {
+      child = parent.endsWith("/") ? parent + child : parent + "/" + child;
+      parent = null;
+    }
+
+    // Ids on other installed filesystems are resolved to Paths
+    if (parent == null) {
+      mapped = getMappedId(child);
+      nioPath = toPath(mapped);
+    }
+    else if (child != null) {
+      Path base = toPath(getMappedId(parent));
+      nioPath = base == null ? null : base.resolve(child);
+    }
+    if (nioPath != null) {
+      return;
+    }
+
     // First handle possible URIs
-    if (child != null && URL_MATCHER.matcher(child).matches()) {
+    if (child != null && isURLPath(child)) {
       // Avoid expensive exception handling in case when path is
       // obviously not an URL
       try {
-        mapped = getMappedId(child);
+        if (parent != null) mapped = getMappedId(child);
         pathname = child;
         uri = new URI(mapped);
         isURL = true;
-        url = uri.toURL();
+        // S3 ids are read with S3Handle, and have no java.net.URL form
+        url = S3Handle.canHandleScheme(mapped) ? null : uri.toURL();
       }
       catch (URISyntaxException | MalformedURLException e) {
         // Readers such as FilePatternReader may pass invalid URI paths
@@ -215,7 +440,7 @@ public class Location {
       } else {
         pathname = child;
       }
-      mapped = getMappedId(pathname);
+      if (parent != null) mapped = getMappedId(pathname);
     }
 
     if (!isURL) {
@@ -238,13 +463,30 @@ public class Location {
 
   /**
    * Clear all caches and reset cache-related bookkeeping variables to their
-   * original values.
+   * original values.  The calling thread's id map is cleared and its id
+   * scope unbound; the global id scope, which other threads may depend on,
+   * is not changed.
+   *
+   * @see #clearGlobalIdScope()
    */
   public static void reset() {
     cacheListings = false;
+    watchListings = false;
+    DirectoryWatcher.cancelAll();
     cacheNanos = 60L * 60L * 1000L * 1000L * 1000L;
-    fileListings.clear();
+    listingCacheSize = DEFAULT_LISTING_CACHE_SIZE;
+    rebuildListingCache();
+    trustURLListings = false;
+    LocationStat.setThreads(LocationStat.DEFAULT_THREADS);
+    LocationWalker.setThreads(LocationWalker.DEFAULT_THREADS);
+    urlMetadataNanos = DEFAULT_URL_METADATA_NANOS;
+    urlMetadataSize = DEFAULT_URL_METADATA_SIZE;
+    urlMetadata = buildURLMetadataCache();
+    canonicalPathNanos = 0;
+    canonicalPathSize = DEFAULT_CANONICAL_PATH_SIZE;
+    canonicalPaths = buildCanonicalPathCache();
     getIdMap().clear();
+    idScope.remove();
   }
 
   /**
@@ -267,14 +509,70 @@ public class Location {
     cacheListings = cache;
   }
 
+  /**
+   * Turn invalidation of cached local directory listings on or off.
+   * Invalidation is turned off by default.
+   *
+   * When on, each local directory whose listing is cached is watched with
+   * a {@link java.nio.file.WatchService}, and the listing is dropped from
+   * the cache as soon as a file is created in, removed from or modified
+   * in the directory.  The cache timeout still applies, so long-lived processes
+   * may want to set a long timeout with
+   * {@link #setCacheDirectoryTimeout(double)}.  Listings of remote
+   * directories are not watched.
+   *
+   * How soon changes are noticed depends on the platform; some
+   * filesystems, such as network shares, may not report changes at all.
+   *
+   * @param watch - true to turn invalidation on, false to leave it off.
+   * @see #cacheDirectoryListings(boolean)
+   */
+  public static void watchDirectoryListings(boolean watch) {
+    if (watch != watchListings) {
+      watchListings = watch;
+      fileListings.invalidateAll();
+      if (!watch) DirectoryWatcher.cancelAll();
+    }
+  }
+
+  /**
+   * @return true if cached local directory listings are invalidated when
+   *         the directory changes
+   */
+  public static boolean isWatchingDirectoryListings() {
+    return watchListings;
+  }
+
   /**
    * Cache directory listings for this many seconds before relisting.
+   * Setting the timeout clears the cache.
    *
    * @param sec - use the cache if a directory list was done within this many
    * seconds.
    */
   public static void setCacheDirectoryTimeout(double sec) {
     cacheNanos = (long) (sec * 1000. * 1000. * 1000.);
+    rebuildListingCache();
+  }
+
+  /**
+   * Set the maximum number of directory listings that are cached.  When the
+   * cache is full, the least recently used listings are discarded first.
+   * Setting the size clears the cache.
+   *
+   * @param entries the maximum number of listings to cache
+   */
+  public static void setDirectoryListingsCacheSize(long entries) {
+    listingCacheSize = entries;
+    rebuildListingCache();
+  }
+
+  /**
+   * @return the hit, miss and eviction counts of the directory listings
+   *         cache since it was last built
+   */
+  public static CacheStats getDirectoryListingsCacheStats() {
+    return fileListings.stats();
   }
 
   /**
@@ -283,21 +581,140 @@ public class Location {
    * Do this if directory contents might have changed in a significant way.
    */
   public static void clearDirectoryListingsCache() {
-    fileListings.clear();
+    fileListings.invalidateAll();
   }
 
   /**
    * Remove any cached directory listings that have expired.
+   *
+   * Expired listings are never returned by {@link #list(boolean)}, and are
+   * removed as the cache is used, so calling this is not necessary.
    */
   public static void cleanStaleCacheEntries() {
-    long t = System.nanoTime() - cacheNanos;
-    final Iterator<ListingsResult> cacheValues =
-      fileListings.values().iterator();
-    while (cacheValues.hasNext()) {
-      if (cacheValues.next().time < t) {
-        cacheValues.remove();
-      }
-    }
+    fileListings.cleanUp();
+  }
+
+  /**
+   * Set whether the links in a remote directory's index page are trusted
+   * to name files that exist.  By default they are not trusted, and
+   * {@link #list(boolean)} checks the existence of each linked file,
+   * running up to {@link #setURLListingThreads(int)} checks at once.
+   * Trusting listings skips the checks, so that listing a remote directory
+   * costs a single request.
+   *
+   * @param trust true to skip existence checks of listed URLs
+   */
+  public static void setTrustURLListings(boolean trust) {
+    trustURLListings = trust;
+  }
+
+  /**
+   * Set the maximum number of existence checks run at once while listing
+   * a remote directory.  The default is 8.
+   *
+   * The checks are run by {@link #stat(Collection)}, so this is
+   * equivalent to {@link #setStatThreads(int)}.
+   *
+   * @param threads the number of concurrent checks, at least 1
+   */
+  public static void setURLListingThreads(int threads) {
+    setStatThreads(threads);
+  }
+
+  /**
+   * Set the maximum number of lookups run at once by
+   * {@link #stat(Collection)}.  The default is 8.
+   *
+   * @param threads the number of concurrent lookups, at least 1
+   */
+  public static void setStatThreads(int threads) {
+    LocationStat.setThreads(threads);
+  }
+
+  /**
+   * Look up the existence, type, length and modification time of many
+   * files at once.  Lookups are run concurrently, up to
+   * {@link #setStatThreads(int)} at a time, which hides much of the
+   * latency of network filesystems and remote files.
+   *
+   * The attributes of remote files are stored in the shared URL metadata
+   * cache, so later calls to {@link #exists()}, {@link #length()} and
+   * {@link #lastModified()} on the same URLs make no further requests.
+   * The attributes of local files are not cached.
+   *
+   * @param locations the files to look up
+   * @return the attributes of each file, in the order of the collection
+   */
+  public static List<LocationInfo> stat(Collection<Location> locations) {
+    return Collections.unmodifiableList(LocationStat.stat(locations));
+  }
+
+  /**
+   * Cache the existence, length and modification time of URLs for this
+   * many seconds.  The cache is shared by all Locations, so a URL's
+   * metadata is requested at most once per timeout.  Metadata is cached
+   * for one minute by default; a timeout of 0 turns cacheing off.
+   *
+   * @param sec the number of seconds for which to cache URL metadata
+   */
+  public static void setURLMetadataCacheTimeout(double sec) {
+    urlMetadataNanos = (long) (sec * 1000. * 1000. * 1000.);
+    urlMetadata = buildURLMetadataCache();
+  }
+
+  /**
+   * Set the maximum number of URLs whose metadata is cached.
+   * Setting the size clears the cache.
+   *
+   * @param entries the maximum number of URLs to cache
+   */
+  public static void setURLMetadataCacheSize(long entries) {
+    urlMetadataSize = entries;
+    urlMetadata = buildURLMetadataCache();
+  }
+
+  /**
+   * Clear the URL metadata cache.
+   *
+   * Do this if remote files might have been created, removed or changed.
+   */
+  public static void clearURLMetadataCache() {
+    urlMetadata.invalidateAll();
+  }
+
+  /**
+   * Cache the canonical paths of local files for this many seconds.  The
+   * cache is shared by all Locations, and avoids resolving links on each
+   * call to {@link #getCanonicalPath()}, which is slow on network mounts.
+   * Cached paths do not reflect links that are changed within the timeout.
+   * Canonical paths are not cached by default; a timeout of 0 turns
+   * cacheing off.
+   *
+   * @param sec the number of seconds for which to cache canonical paths
+   */
+  public static void setCanonicalPathCacheTimeout(double sec) {
+    canonicalPathNanos = (long) (sec * 1000. * 1000. * 1000.);
+    canonicalPaths = buildCanonicalPathCache();
+  }
+
+  /**
+   * Set the maximum number of canonical paths that are cached.
+   * Setting the size clears the cache.
+   *
+   * @param entries the maximum number of canonical paths to cache
+   */
+  public static void setCanonicalPathCacheSize(long entries) {
+    canonicalPathSize = entries;
+    canonicalPaths = buildCanonicalPathCache();
+  }
+
+  /**
+   * Clear the canonical path cache.
+   *
+   * Do this if links to local files might have changed.
+   */
+  public static void clearCanonicalPathCache() {
+    canonicalPaths.invalidateAll();
   }
 
   /**
@@ -350,12 +767,8 @@ public class Location {
    * @see #mapId(String, String)
    */
   public static String getMappedId(String id) {
-    if (getIdMap() == null) return id;
-    String filename = null;
-    if (id != null && (getIdMap().get(id) instanceof String)) {
-      filename = (String) getIdMap().get(id);
-    }
-    return filename == null ? id : filename;
+    Object mapped = lookupId(id);
+    return mapped instanceof String ? (String) mapped : id;
   }
 
   /**
@@ -366,12 +779,8 @@ public class Location {
    * @see #mapFile(String, IRandomAccess)
    */
   public static IRandomAccess getMappedFile(String id) {
-    if (getIdMap() == null) return null;
-    IRandomAccess ira = null;
-    if (id != null && (getIdMap().get(id) instanceof IRandomAccess)) {
-      ira = (IRandomAccess) getIdMap().get(id);
-    }
-    return ira;
+    Object mapped = lookupId(id);
+    return mapped instanceof IRandomAccess ? (IRandomAccess) mapped : null;
   }
 
   /**
@@ -397,6 +806,51 @@ public class Location {
     idMap.set(map);
   }
 
+  /**
+   * Return the process-wide id scope.  Ids mapped in the global scope are
+   * visible to all threads, after each thread's own id map and any scope
+   * bound to the thread.  The global scope is empty by default.
+   *
+   * @return the global scope
+   * @see IdScope
+   */
+  public static IdScope getGlobalIdScope() {
+    return IdScope.GLOBAL;
+  }
+
+  /**
+   * Remove all ids mapped in the global id scope.  This changes the ids
+   * seen by every thread, so it should only be done once no thread
+   * depends on them, such as between test cases.
+   *
+   * @see #getGlobalIdScope()
+   */
+  public static void clearGlobalIdScope() {
+    IdScope.GLOBAL.clear();
+  }
+
+  /**
+   * Bind an id scope, such as a session's scope, to the current thread.
+   * Ids that are not in the thread's own id map are looked up in the bound
+   * scope and its parents.  By default the global scope is bound.
+   *
+   * @param scope the scope to bind, or null to bind the global scope
+   * @see IdScope#wrap(java.util.concurrent.Callable)
+   */
+  public static void setIdScope(IdScope scope) {
+    if (scope == null || scope == IdScope.GLOBAL) idScope.remove();
+    else idScope.set(scope);
+  }
+
+  /**
+   * @return the id scope bound to the current thread
+   * @see #setIdScope(IdScope)
+   */
+  public static IdScope getIdScope() {
+    IdScope scope = idScope.get();
+    return scope == null ? IdScope.GLOBAL : scope;
+  }
+
   /**
    * Gets an IRandomAccess object that can read from the given file.
    *
@@ -469,21 +923,27 @@ public class Location {
     if (handle == null) {
       LOGGER.trace("no handle was mapped for this ID");
       String mapId = getMappedId(id);
+      Path path = toPath(mapId);
 
-      if (id.startsWith("http://") || id.startsWith("https://")
-          || id.startsWith("s3://")) {
-        handle = new URLHandle(mapId);
+      if (S3Handle.canHandleScheme(id)) {
+        handle = new S3Handle(mapId);
       }
-      else if (allowArchiveHandles && ZipHandle.isZipFile(mapId)) {
-        handle = new ZipHandle(mapId);
+      else if (id.startsWith("http://") || id.startsWith("https://")) {
+        handle = new URLHandle(mapId);
       }
-      else if (allowArchiveHandles && GZipHandle.isGZipFile(mapId)) {
-        handle = new GZipHandle(mapId);
+      else if (path != null) {
+        // checked before the archive providers, as the GZip and BZip2
+        // handles only read files on the default filesystem
+        String mode = writable ? "rw" : "r";
+        handle = bufferSize > 0 ?
+          new PathHandle(path, mode, bufferSize) : new PathHandle(path, mode);
       }
-      else if (allowArchiveHandles && BZip2Handle.isBZip2File(mapId)) {
-        handle = new BZip2Handle(mapId);
+      else if (allowArchiveHandles) {
+        HandleProvider provider = HandleProviders.findProvider(mapId);
+        if (provider != null) handle = provider.createHandle(mapId);
       }
-      else {
+
+      if (handle == null) {
         if (bufferSize > 0) {
           handle = new NIOFileHandle(
             new File(mapId), writable ? "rw" : "r", bufferSize);
@@ -504,6 +964,12 @@ public class Location {
   /**
    * Checks that the given id points at a valid data stream.
    *
+   * No handle is opened: a local file costs a stat and, if its suffix is
+   * that of a compressed or archive format, a read of its header, which
+   * is checked with {@link HandleProviders#probe(String)}.  Other files
+   * are checked with the same request as {@link #exists()}.  Errors past
+   * the header of a file are only found when the file is read.
+   *
    * @param id
    *          The id string to validate.
    * @throws IOException
@@ -515,10 +981,47 @@ public class Location {
       // not destroy an existing mapped IRandomAccess handle by closing it.
       return;
     }
-    // NB: Try to actually open a handle to make sure it is valid. Close it
-    // afterward so we don't leave it dangling. The process of doing this will
-    // throw IOException if something goes wrong.
-    Location.getHandle(id).close();
+    String mapId = getMappedId(id);
+    Path path = toPath(mapId);
+    if (S3Handle.canHandleScheme(id) ||
+      id.startsWith("http://") || id.startsWith("https://"))
+    {
+      Location remote = new Location(mapId);
+      URLLocationProperties properties = remote.getURLProperties();
+      // an S3 prefix has no data
+      if (!properties.exists || (remote.url == null && properties.directory))
+      {
+        throw new FileNotFoundException(mapId);
+      }
+      return;
+    }
+    if (path == null) {
+      try {
+        path = Paths.get(mapId);
+      }
+      catch (InvalidPathException e) {
+        throw new IOException(e);
+      }
+    }
+    BasicFileAttributes attrs;
+    try {
+      attrs = Files.readAttributes(path, BasicFileAttributes.class);
+    }
+    catch (NoSuchFileException e) {
+      FileNotFoundException missing = new FileNotFoundException(mapId);
+      missing.initCause(e);
+      throw missing;
+    }
+    if (attrs.isDirectory()) {
+      throw new FileNotFoundException(mapId + " is a directory");
+    }
+    // archive handles are only used for local files, and reading the
+    // header shows that the file is readable
+    if ((path.getFileSystem() != FileSystems.getDefault() ||
+      HandleProviders.probe(mapId) == null) && !Files.isReadable(path))
+    {
+      throw new AccessDeniedException(mapId);
+    }
   }
 
   /**
@@ -532,81 +1035,252 @@ public class Location {
    */
   public String[] list(boolean noHiddenFiles) {
     LOGGER.trace("list({})", noHiddenFiles);
-    String key = getAbsolutePath() + Boolean.toString(noHiddenFiles);
+    ListingKey key = null;
+    long generation = -1;
     String [] result = null;
     if (cacheListings) {
-      cleanStaleCacheEntries();
-      ListingsResult listingsResult = fileListings.get(key);
+      key = new ListingKey(getAbsolutePath(), noHiddenFiles, false);
+      ListingsResult listingsResult = fileListings.getIfPresent(key);
       if (listingsResult != null) {
         return listingsResult.listing;
       }
+      if (watchListings && !isURL && nioPath == null) {
+        // watch before listing, so that no change can be missed
+        generation = DirectoryWatcher.watch(key.path);
+        // a listing that cannot be watched might never be refreshed
+        if (generation < 0) key = null;
+      }
     }
     final List<String> files = new ArrayList<String>();
-    if (isURL) {
+    if (isURL && url == null) {
       try {
-        URLConnection c = url.openConnection();
-        InputStream is = c.getInputStream();
-        boolean foundEnd = false;
-        BufferedReader br = new BufferedReader(
-              new InputStreamReader(is, Constants.ENCODING));
-        String input;
-        StringBuffer buffer = new StringBuffer();
-        while ((input = br.readLine()) != null){
-          buffer.append(input);
-        }
-        br.close();
-        String s = buffer.toString();
-        while (!foundEnd) {
-         if (s.toLowerCase().indexOf("</html>") != -1) foundEnd = true;
-
-          while (s.indexOf("a href") != -1) {
-            int ndx = s.indexOf("a href") + 8;
-            int idx = s.indexOf("\"", ndx);
-            if (idx < 0) break;
-            String f = s.substring(ndx, idx);
-            if (files.size() > 0 && f.startsWith("/")) {
-              return null;
-            }
-            s = s.substring(idx + 1);
-            if (f.startsWith("?")) continue;
-            Location check = new Location(getAbsolutePath(), f);
-            if (check.exists() && (!noHiddenFiles || !check.isHidden())) {
-              files.add(check.getName());
-            }
-          }
-        }
-        is.close();
-        if (files.size() == 0) {
-          return null;
-        }
+        result = S3Handle.list(getAbsolutePath());
+      }
+      catch (IOException e) {
+        LOGGER.trace("Could not retrieve object listing", e);
+      }
+      if (result == null) return null;
+      files.addAll(Arrays.asList(result));
+    }
+    else if (isURL) {
+      Set<String> links = new LinkedHashSet<String>();
+      try (Reader in = new BufferedReader(new InputStreamReader(
+        url.openConnection().getInputStream(), Constants.ENCODING)))
+      {
+        if (!URLListing.readLinks(in, links)) return null;
       }
       catch (IOException e) {
         LOGGER.trace("Could not retrieve directory listing", e);
         return null;
       }
+      String path = getAbsolutePath();
+      List<Location> children = new ArrayList<Location>();
+      for (String link : links) {
+        children.add(new Location(path, link));
+      }
+      if (!trustURLListings) {
+        children = URLListing.filterExisting(children);
+      }
+      for (Location child : children) {
+        if (!noHiddenFiles || !child.isHidden()) {
+          files.add(child.getName());
+        }
+      }
+      if (files.size() == 0) {
+        return null;
+      }
     }
     else {
-      if (file == null) return null;
-      String[] f = file.list();
-      if (f == null) return null;
-      String path = file.getAbsolutePath();
-      for (String name : f) {
-        if (!noHiddenFiles || !(name.startsWith(".") ||
-          new Location(path, name).isHidden()))
-        {
-          files.add(name);
+      if (file == null && nioPath == null) return null;
+      try (DirectoryStream<Path> entries = newDirectoryStream()) {
+        for (Path entry : entries) {
+          String name = entry.getFileName().toString();
+          // on Windows, the attributes are read along with the names
+          if (!noHiddenFiles || !(name.startsWith(".") ||
+            (IS_WINDOWS && isDosHidden(readAttributes(entry)))))
+          {
+            files.add(name);
+          }
         }
       }
+      catch (IOException | DirectoryIteratorException e) {
+        LOGGER.trace("Could not list directory", e);
+        return null;
+      }
     }
 
     result = files.toArray(new String[files.size()]);
-    if (cacheListings) {
-      fileListings.put(key, new ListingsResult(result, System.nanoTime()));
+    if (key != null) {
+      cacheListing(key, generation,
+        new ListingsResult(result, System.nanoTime()));
     }
     LOGGER.trace("  returning {} files", files.size());
     return result;
   }
 
+  /**
+   * Return the names and attributes of the files in this directory, or
+   * null if this is not a directory.
+   *
+   * The attributes of local files are read while listing the directory,
+   * which avoids a separate request per file on network filesystems.
+   * The attributes of remote files are looked up in the URL metadata
+   * cache, and requested concurrently with {@link #stat(Collection)} if
+   * they are not cached.
+   *
+   * If {@link #cacheDirectoryListings(boolean)} is on, listings with
+   * attributes are cached in the same way as plain listings.
+   *
+   * @param noHiddenFiles true if hidden files should be omitted
+   * @return an unsorted list of the attributes of all files in the
+   *         directory represented by this Location
+   * @see #list(boolean)
+   */
+  public LocationInfo[] listWithAttributes(boolean noHiddenFiles) {
+    LOGGER.trace("listWithAttributes({})", noHiddenFiles);
+    String path = getAbsolutePath();
+    ListingKey key = null;
+    long generation = -1;
+    if (cacheListings) {
+      key = new ListingKey(path, noHiddenFiles, true);
+      ListingsResult listingsResult = fileListings.getIfPresent(key);
+      if (listingsResult != null) {
+        return listingsResult.infos;
+      }
+      if (watchListings && !isURL && nioPath == null) {
+        // watch before listing, so that no change can be missed
+        generation = DirectoryWatcher.watch(path);
+        // a listing that cannot be watched might never be refreshed
+        if (generation < 0) key = null;
+      }
+    }
+    final List<LocationInfo> files = new ArrayList<LocationInfo>();
+    if (isURL) {
+      String[] names = list(noHiddenFiles);
+      if (names == null) return null;
+      List<Location> children = new ArrayList<Location>(names.length);
+      for (String name : names) {
+        children.add(new Location(path, name));
+      }
+      files.addAll(LocationStat.stat(children));
+    }
+    else {
+      if (file == null && nioPath == null) return null;
+      try (DirectoryStream<Path> entries = newDirectoryStream()) {
+        for (Path entry : entries) {
+          String name = entry.getFileName().toString();
+          BasicFileAttributes attrs = readAttributes(entry);
+          boolean hidden = name.startsWith(".") || isDosHidden(attrs);
+          if (noHiddenFiles && hidden) continue;
+          String child = nioPath == null ?
+            entry.toAbsolutePath().toString() : idOf(entry);
+          if (attrs == null) {
+            // a broken link, or removed while listing
+            files.add(new LocationInfo(child, name, false, false, hidden,
+              0, 0));
+          }
+          else {
+            files.add(new LocationInfo(child, name, true, attrs.isDirectory(),
+              hidden, attrs.size(), attrs.lastModifiedTime().toMillis()));
+          }
+        }
+      }
+      catch (IOException | DirectoryIteratorException e) {
+        LOGGER.trace("Could not list directory", e);
+        return null;
+      }
+    }
+    LocationInfo[] result = files.toArray(new LocationInfo[files.size()]);
+    if (key != null) {
+      String[] names = new String[result.length];
+      for (int i=0; i<names.length; i++) {
+        names[i] = result[i].getName();
+      }
+      cacheListing(key, generation,
+        new ListingsResult(names, result, System.nanoTime()));
+    }
+    return result;
+  }
+
+  /**
+   * Return the names and attributes of the files in this directory, or
+   * null if this is not a directory.  Hidden files are included.
+   *
+   * @see #listWithAttributes(boolean)
+   */
+  public LocationInfo[] listWithAttributes() {
+    return listWithAttributes(false);
+  }
+
+  /**
+   * Walk the tree of files below this directory, passing each file and
+   * directory to the given visitor.  Directories are listed concurrently,
+   * up to {@link #setWalkThreads(int)} at a time, with
+   * {@link #listWithAttributes(boolean)}, so listings are cached if
+   * {@link #cacheDirectoryListings(boolean)} is on.  This directory itself
+   * is not visited.
+   *
+   * Symbolic links to directories are followed, so trees that contain
+   * link cycles should be walked with a depth limit.
+   *
+   * @param maxDepth the maximum depth to walk; the entries of this
+   *                 directory have depth 1
+   * @param filter files and directories that do not match the filter are
+   *               not visited, and directories that do not match are not
+   *               walked.  May be null.
+   * @param visitor receives each file and directory, in no particular
+   *                order, and may stop the walk by returning false
+   * @return false if the visitor stopped the walk, true otherwise
+   */
+  public boolean walk(int maxDepth, Predicate<LocationInfo> filter,
+    LocationVisitor visitor)
+  {
+    return LocationWalker.walk(this, maxDepth, filter, visitor);
+  }
+
+  /**
+   * Walk the tree of files below this directory in the background,
+   * returning each file and directory as it is found, in no particular
+   * order.  The walk is run as for
+   * {@link #walk(int, Predicate, LocationVisitor)}.
+   *
+   * The stream should be closed, for example with a try-with-resources
+   * statement, to stop the walk when not all of the stream is consumed.
+   *
+   * @param maxDepth the maximum depth to walk; the entries of this
+   *                 directory have depth 1
+   * @param filter files and directories that do not match the filter are
+   *               not returned, and directories that do not match are not
+   *               walked.  May be null.
+   * @return a stream of the attributes of the files and directories found
+   */
+  public Stream<LocationInfo> walk(int maxDepth,
+    Predicate<LocationInfo> filter)
+  {
+    return LocationWalker.stream(this, maxDepth, filter);
+  }
+
+  /**
+   * Walk the whole tree of files below this directory.
+   *
+   * @return a stream of the attributes of the files and directories found
+   * @see #walk(int, Predicate)
+   */
+  public Stream<LocationInfo> walk() {
+    return walk(Integer.MAX_VALUE, null);
+  }
+
+  /**
+   * Set the maximum number of directories listed at once by
+   * {@link #walk(int, Predicate, LocationVisitor)}.  The default is the
+   * number of processors, and at least 8.
+   *
+   * @param threads the number of concurrent listings, at least 1
+   */
+  public static void setWalkThreads(int threads) {
+    LocationWalker.setThreads(threads);
+  }
+
   // -- File API methods --
 
   /**
@@ -619,6 +1293,7 @@ public class Location {
    */
   public boolean canRead() {
     LOGGER.trace("canRead()");
+    if (nioPath != null) return Files.isReadable(nioPath);
     // Note: isFile calls exist
     return isURL ? (isDirectory() || isFile()) : file.canRead();
   }
@@ -632,6 +1307,7 @@ public class Location {
    */
   public boolean canWrite() {
     LOGGER.trace("canWrite()");
+    if (nioPath != null) return Files.isWritable(nioPath);
     return isURL ? false : file.canWrite();
   }
 
@@ -648,6 +1324,15 @@ public class Location {
    */
   public boolean createNewFile() throws IOException {
     if (isURL) throw new IOException("Unimplemented");
+    if (nioPath != null) {
+      try {
+        Files.createFile(nioPath);
+        return true;
+      }
+      catch (FileAlreadyExistsException e) {
+        return false;
+      }
+    }
     return file.createNewFile();
   }
 
@@ -660,6 +1345,17 @@ public class Location {
    * @see File#mkdirs()
    */
   public boolean mkdirs() {
+    if (nioPath != null) {
+      if (Files.isDirectory(nioPath)) return false;
+      try {
+        Files.createDirectories(nioPath);
+        return true;
+      }
+      catch (IOException e) {
+        LOGGER.trace("Could not create directories", e);
+        return false;
+      }
+    }
     if (file == null) {
       return false;
     }
@@ -674,17 +1370,28 @@ public class Location {
    * @see java.io.File#delete()
    */
   public boolean delete() {
+    if (nioPath != null) {
+      try {
+        Files.delete(nioPath);
+        return true;
+      }
+      catch (IOException e) {
+        LOGGER.trace("Could not delete file", e);
+        return false;
+      }
+    }
     return isURL ? false : file.delete();
   }
 
   /**
    * Request that this file be deleted when the JVM terminates.
-   * This method will do nothing if the pathname represents a URL.
+   * This method will do nothing if the pathname represents a URL, or a
+   * path on a filesystem other than the default.
    *
    * @see java.io.File#deleteOnExit()
    */
   public void deleteOnExit() {
-    if (!isURL) file.deleteOnExit();
+    if (file != null) file.deleteOnExit();
   }
 
   /**
@@ -708,7 +1415,12 @@ public class Location {
 
   @Override
   public int hashCode() {
-    return getAbsolutePath().hashCode();
+    int h = hash;
+    if (h == 0) {
+      h = getAbsolutePath().hashCode();
+      hash = h;
+    }
+    return h;
   }
 
   /**
@@ -722,10 +1434,12 @@ public class Location {
   public boolean exists() {
     if (isURL) {
       LOGGER.trace("exists(url)");
-      if (cachedProperties == null) {
-        cachedProperties = new URLLocationProperties(this);
-      }
-      return cachedProperties.exists;
+      if (getMappedFile(getAbsolutePath()) != null) return true;
+      return getURLProperties().exists;
+    }
+    if (nioPath != null) {
+      LOGGER.trace("exists(path)");
+      return Files.exists(nioPath);
     }
     LOGGER.trace("exists(file)");
     if (file.exists()) return true;
@@ -742,6 +1456,7 @@ public class Location {
    * @see java.io.File#getAbsoluteFile()
    */
   public Location getAbsoluteFile() {
+    if (nioPath != null) return new Location(nioPath.toAbsolutePath());
     return new Location(getAbsolutePath());
   }
 
@@ -753,7 +1468,13 @@ public class Location {
    */
   public String getAbsolutePath() {
     LOGGER.trace("getAbsolutePath()");
-    return isURL ? uri.normalize().toString() : file.getAbsolutePath();
+    String path = absolutePath;
+    if (path == null) {
+      if (nioPath != null) path = idOf(nioPath);
+      else path = isURL ? uri.normalize().toString() : file.getAbsolutePath();
+      absolutePath = path;
+    }
+    return path;
   }
 
   /**
@@ -767,7 +1488,11 @@ public class Location {
    * @see java.io.File#getCanonicalFile()
    */
   public Location getCanonicalFile() throws IOException {
-    return isURL ? getAbsoluteFile() : new Location(file.getCanonicalFile());
+    if (nioPath != null) {
+      return new Location(nioPath.toAbsolutePath().normalize());
+    }
+    return isURL ? getAbsoluteFile() :
+      new Location(new File(getCanonicalPath()));
   }
 
   /**
@@ -780,7 +1505,18 @@ public class Location {
    * @throws IOException if the path cannot be retrieved
    */
   public String getCanonicalPath() throws IOException {
-    return isURL ? getAbsolutePath() : file.getCanonicalPath();
+    if (nioPath != null) return idOf(nioPath.toAbsolutePath().normalize());
+    if (isURL) return getAbsolutePath();
+    if (canonicalPathNanos <= 0) return file.getCanonicalPath();
+    try {
+      return canonicalPaths.get(getAbsolutePath(), file::getCanonicalPath);
+    }
+    catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException(e.getCause());
+    }
   }
 
   /**
@@ -792,6 +1528,10 @@ public class Location {
    */
   public String getName() {
     LOGGER.trace("getName()");
+    if (nioPath != null) {
+      Path name = nioPath.getFileName();
+      return name == null ? "" : name.toString();
+    }
     if (isURL) {
       // TODO: we should just store new File(uri) in file
       return  new File(uri.getPath()).getName();
@@ -813,11 +1553,15 @@ public class Location {
    */
   public String getParent() {
     LOGGER.trace("getParent()");
+    if (nioPath != null) {
+      Path parent = nioPath.getParent();
+      return parent == null ? null : idOf(parent);
+    }
     if (isURL) {
       // TODO For S3 we should take account of directories not really existing
       String absPath = getAbsolutePath();
       absPath = absPath.substring(0, absPath.lastIndexOf("/"));
-      if (URL_ABOVE_PARENT.matcher(absPath).matches()) {
+      if (isSchemeRoot(absPath)) {
         return null;
       }
       return absPath;
@@ -839,6 +1583,10 @@ public class Location {
    * @see java.io.File#getParentFile()
    */
   public Location getParentFile() {
+    if (nioPath != null) {
+      Path parent = nioPath.getParent();
+      return parent == null ? null : new Location(parent);
+    }
     String parent = this.getParent();
     if (parent == null) return null;
     return new Location(parent);
@@ -851,6 +1599,7 @@ public class Location {
    * @see java.io.File#getPath()
    */
   public String getPath() {
+    if (nioPath != null) return nioPath.toString();
     return isURL ? uri.getHost() + uri.getPath() : file.getPath();
   }
 
@@ -863,6 +1612,7 @@ public class Location {
    */
   public boolean isAbsolute() {
     LOGGER.trace("isAbsolute()");
+    if (nioPath != null) return nioPath.isAbsolute();
     return isURL ? uri.isAbsolute() : file.isAbsolute();
   }
 
@@ -874,6 +1624,7 @@ public class Location {
    */
   public boolean isDirectory() {
     LOGGER.trace("isDirectory()");
+    if (nioPath != null) return Files.isDirectory(nioPath);
     if (isURL) {
       // TODO: this should be removed as well.
       String[] list = list();
@@ -890,6 +1641,7 @@ public class Location {
    */
   public boolean isFile() {
     LOGGER.trace("isFile()");
+    if (nioPath != null) return Files.isRegularFile(nioPath);
     return isURL ? (!isDirectory() && exists()) : file.isFile();
   }
 
@@ -905,6 +1657,7 @@ public class Location {
     if (isURL) {
       return false;
     }
+    if (nioPath != null) return getName().startsWith(".");
     boolean dotFile = file.getName().startsWith(".");
     if (IS_WINDOWS) {
       return dotFile || file.isHidden();
@@ -923,15 +1676,13 @@ public class Location {
   public long lastModified() {
     LOGGER.trace("lastModified()");
     if (isURL) {
+      return getURLProperties().lastModified;
+    }
+    if (nioPath != null) {
       try {
-        if (url != null) {
-          return url.openConnection().getLastModified();
-        } else {
-          return 0;
-        }
+        return Files.getLastModifiedTime(nioPath).toMillis();
       }
       catch (IOException e) {
-        LOGGER.trace("Could not determine URL's last modification time", e);
         return 0;
       }
     }
@@ -948,9 +1699,25 @@ public class Location {
   public long length() {
     if (isURL) {
       LOGGER.trace("length(url)");
-      // Ensure cachedProperties is populated
-      exists();
-      return cachedProperties.length;
+      IRandomAccess handle = getMappedFile(getAbsolutePath());
+      if (handle != null) {
+        try {
+          return handle.length();
+        }
+        catch (IOException e) {
+          LOGGER.warn("Could not get length", e);
+        }
+      }
+      return getURLProperties().length;
+    }
+    if (nioPath != null) {
+      LOGGER.trace("length(path)");
+      try {
+        return Files.size(nioPath);
+      }
+      catch (IOException e) {
+        return 0;
+      }
     }
     IRandomAccess handle = getMappedFile(file.getName());
     if (handle != null && !file.exists()) {
@@ -990,6 +1757,10 @@ public class Location {
     if (s == null) return null;
     Location[] f = new Location[s.length];
     for (int i=0; i<f.length; i++) {
+      if (nioPath != null) {
+        f[i] = new Location(nioPath.resolve(s[i]).toAbsolutePath());
+        continue;
+      }
       f[i] = new Location(getAbsolutePath(), s[i]);
       f[i] = f[i].getAbsoluteFile();
     }
@@ -1004,6 +1775,10 @@ public class Location {
    * @see java.io.File#toURL()
    */
   public URL toURL() throws MalformedURLException {
+    if (isURL && url == null) {
+      throw new MalformedURLException("unknown protocol: " + uri.getScheme());
+    }
+    if (nioPath != null) return nioPath.toUri().toURL();
     return isURL ? url : file.toURI().toURL();
   }
 
@@ -1013,7 +1788,290 @@ public class Location {
    */
   @Override
   public String toString() {
+    if (nioPath != null) return idOf(nioPath);
     return isURL ? uri.toString() : file.toString();
   }
 
+  // -- Helper methods --
+
+  /** Open a stream over the entries of this local directory. */
+  private DirectoryStream<Path> newDirectoryStream() throws IOException {
+    if (nioPath != null) return Files.newDirectoryStream(nioPath);
+    try {
+      return Files.newDirectoryStream(file.toPath());
+    }
+    catch (InvalidPathException e) {
+      throw new IOException(e);
+    }
+  }
+
+  /**
+   * Read the attributes of a file or directory entry, following symbolic
+   * links.
+   * On Windows, the DOS attributes of local files are read, and have
+   * usually been fetched along with the entry's name.
+   *
+   * @return the attributes, or null if the entry is a broken link or was
+   *         removed
+   */
+  private static BasicFileAttributes readAttributes(Path entry) {
+    try {
+      if (IS_WINDOWS && entry.getFileSystem() == FileSystems.getDefault()) {
+        return Files.readAttributes(entry, DosFileAttributes.class);
+      }
+      return Files.readAttributes(entry, BasicFileAttributes.class);
+    }
+    catch (IOException e) {
+      return null;
+    }
+  }
+
+  /** @return true if the given attributes mark a file hidden on Windows */
+  private static boolean isDosHidden(BasicFileAttributes attrs) {
+    return attrs instanceof DosFileAttributes &&
+      ((DosFileAttributes) attrs).isHidden();
+  }
+
+  /**
+   * Look up the attributes of this file.  A local file is read with a
+   * single request to the filesystem, unless it is a mapped id.
+   *
+   * @return the attributes of this file
+   */
+  LocationInfo getInfo() {
+    String path = getAbsolutePath();
+    if (isURL) {
+      if (getMappedFile(path) != null) {
+        // a URL mapped to a handle, as in getHandle
+        return new LocationInfo(path, getName(), true, false, false,
+          length(), 0);
+      }
+      URLLocationProperties p = getURLProperties();
+      return new LocationInfo(path, getName(), p.exists, p.directory, false,
+        p.length, p.lastModified);
+    }
+    BasicFileAttributes attrs = null;
+    try {
+      attrs = readAttributes(nioPath != null ? nioPath : file.toPath());
+    }
+    catch (InvalidPathException e) {
+      LOGGER.trace("Could not read attributes", e);
+    }
+    String name = getName();
+    if (attrs == null) {
+      // missing, or a mapped id
+      return new LocationInfo(path, name, exists(), false, isHidden(),
+        length(), lastModified());
+    }
+    return new LocationInfo(path, name, true, attrs.isDirectory(),
+      name.startsWith(".") || isDosHidden(attrs), attrs.size(),
+      attrs.lastModifiedTime().toMillis());
+  }
+
+  /**
+   * Look up an id in the current thread's id map, and then in the id scope
+   * bound to the thread.
+   *
+   * @return the mapped filename or IRandomAccess, or null
+   */
+  private static Object lookupId(String id) {
+    if (id == null) return null;
+    HashMap<String, Object> map = getIdMap();
+    Object mapped = map == null ? null : map.get(id);
+    return mapped != null ? mapped : getIdScope().get(id);
+  }
+
+  /** @return true if this Location names a remote file */
+  boolean isURL() {
+    return isURL;
+  }
+
+  /**
+   * Check whether a path begins with a URL scheme and "://", as matched by
+   * the pattern <code>\p{Alnum}+(\+\p{Alnum}+)?://.*</code>, without the
+   * cost of a regular expression.
+   *
+   * @return true if the path should be treated as a URL
+   */
+  private static boolean isURLPath(String path) {
+    int colon = schemeEnd(path);
+    if (colon < 0 || !path.startsWith("://", colon)) return false;
+    // as '.' in a pattern, the rest must not contain line terminators
+    for (int i=colon + 3; i<path.length(); i++) {
+      char c = path.charAt(i);
+      if (c == '\n' || c == '\r' || c == '\u0085' ||
+        c == '\u2028' || c == '\u2029')
+      {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Check whether a path is just a URL scheme and ":/", as matched by the
+   * pattern <code>\p{Alnum}+(\+\p{Alnum}+)?:/</code>.  This is where
+   * {@link #getParent()} has gone past the parent of a URL.
+   */
+  private static boolean isSchemeRoot(String path) {
+    int colon = schemeEnd(path);
+    return colon >= 0 && colon == path.length() - 2 &&
+      path.charAt(colon + 1) == '/';
+  }
+
+  /**
+   * @return the index of the ':' that follows a scheme of the form
+   *         <code>\p{Alnum}+(\+\p{Alnum}+)?</code> at the start of the
+   *         path, or -1 if there is none
+   */
+  private static int schemeEnd(String path) {
+    int i = skipAlnum(path, 0);
+    if (i == 0) return -1;
+    if (i < path.length() && path.charAt(i) == '+') {
+      int end = skipAlnum(path, i + 1);
+      if (end == i + 1) return -1;
+      i = end;
+    }
+    return i < path.length() && path.charAt(i) == ':' ? i : -1;
+  }
+
+  /** @return the index of the first non-ASCII-alphanumeric character */
+  private static int skipAlnum(String path, int start) {
+    int i = start;
+    while (i < path.length()) {
+      char c = path.charAt(i);
+      if (!((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') ||
+        (c >= '0' && c <= '9')))
+      {
+        break;
+      }
+      i++;
+    }
+    return i;
+  }
+
+  /** @return the id of a path on any filesystem */
+  private static String idOf(Path path) {
+    return path.getFileSystem() == FileSystems.getDefault() ?
+      path.toAbsolutePath().toString() : path.toUri().toString();
+  }
+
+  /**
+   * Resolve an id that names a file on an installed filesystem other than
+   * the default, such as "jar:file:///data/images.zip!/image.tif".
+   * Filesystems are never opened here, as nothing would close them.
+   *
+   * @return the path, or null if the id is not the URI of a path on an
+   *         open filesystem whose provider is installed
+   */
+  private static Path toPath(String id) {
+    if (id == null) return null;
+    int colon = id.indexOf(':');
+    // a single letter is a Windows drive
+    if (colon < 2 || S3Handle.canHandleScheme(id) || !PathSchemes.SCHEMES
+      .contains(id.substring(0, colon).toLowerCase(Locale.ROOT)))
+    {
+      return null;
+    }
+    try {
+      return Paths.get(new URI(id));
+    }
+    catch (FileSystemNotFoundException e) {
+      LOGGER.debug("Filesystem is not open: {}", id);
+      return null;
+    }
+    catch (URISyntaxException | IllegalArgumentException |
+      ProviderNotFoundException e)
+    {
+      LOGGER.debug("Invalid path: {} {}", id, e);
+      return null;
+    }
+  }
+
+  /** Get the properties of this URL, from the cache if possible. */
+  private URLLocationProperties getURLProperties() {
+    String key = getAbsolutePath();
+    try {
+      return urlMetadata.get(key, () -> URLLocationProperties.fetch(this));
+    }
+    catch (ExecutionException e) {
+      // fetch does not throw checked exceptions
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Cache a directory listing, unless a watched directory changed since
+   * the given generation.
+   */
+  private static void cacheListing(ListingKey key, long generation,
+    ListingsResult listing)
+  {
+    fileListings.put(key, listing);
+    if (generation >= 0 && generation != DirectoryWatcher.getGeneration()) {
+      // a watched directory changed while this one was being listed
+      fileListings.invalidate(key);
+    }
+  }
+
+  /** Drop the cached listings of a local directory that has changed. */
+  private static void directoryChanged(String dir) {
+    for (int i=0; i<4; i++) {
+      fileListings.invalidate(new ListingKey(dir, (i & 1) != 0, i >= 2));
+    }
+  }
+
+  /**
+   * Stop watching a directory once none of its listings are cached.  A
+   * listing that was replaced by a newer listing is still cached.
+   */
+  private static void listingRemoved(
+    RemovalNotification<ListingKey, ListingsResult> removal)
+  {
+    if (removal.getCause() == RemovalCause.REPLACED) return;
+    String dir = removal.getKey().path;
+    Map<ListingKey, ListingsResult> listings = fileListings.asMap();
+    for (int i=0; i<4; i++) {
+      if (listings.containsKey(new ListingKey(dir, (i & 1) != 0, i >= 2))) {
+        return;
+      }
+    }
+    DirectoryWatcher.unwatch(dir);
+  }
+
+  /**
+   * Replace the listings cache with an empty one, and stop watching the
+   * directories whose listings were in the old cache.
+   */
+  private static void rebuildListingCache() {
+    Cache<ListingKey, ListingsResult> old = fileListings;
+    fileListings = buildListingCache();
+    old.invalidateAll();
+  }
+
+  private static Cache<ListingKey, ListingsResult> buildListingCache() {
+    return CacheBuilder.newBuilder()
+      .expireAfterWrite(cacheNanos, TimeUnit.NANOSECONDS)
+      .maximumSize(listingCacheSize)
+      .removalListener(Location::listingRemoved)
+      .recordStats()
+      .build();
+  }
+
+  private static Cache<String, URLLocationProperties>
+    buildURLMetadataCache()
+  {
+    return CacheBuilder.newBuilder()
+      .expireAfterWrite(urlMetadataNanos, TimeUnit.NANOSECONDS)
+      .maximumSize(urlMetadataSize)
+      .build();
+  }
+
+  private static Cache<String, String> buildCanonicalPathCache() {
+    return CacheBuilder.newBuilder()
+      .expireAfterWrite(canonicalPathNanos, TimeUnit.NANOSECONDS)
+      .maximumSize(canonicalPathSize)
+      .build();
+  }
+
 }
@@ -0,0 +1,148 @@
+/*
+ * #%L
+ * Common package for I/O and related utilities
+ * %%
+ * Copyright (C) 2005 - 2016 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.common;
+
+/**
+ * Immutable snapshot of the attributes of a {@link Location}, as read
+ * from the filesystem or server at one point in time.
+ *
+ * @see Location#listWithAttributes(boolean)
+ */
+public final class LocationInfo {
+
+  // -- Fields --
+
+  private final String path;
+  private final String name;
+  private final boolean exists;
+  private final boolean directory;
+  private final boolean hidden;
+  private final long length;
+  private final long lastModified;
+
+  // -- Constructor --
+
+  LocationInfo(String path, String name, boolean exists, boolean directory,
+    boolean hidden, long length, long lastModified)
+  {
+    this.path = path;
+    this.name = name;
+    this.exists = exists;
+    this.directory = directory;
+    this.hidden = hidden;
+    this.length = length;
+    this.lastModified = lastModified;
+  }
+
+  // -- LocationInfo API methods --
+
+  /**
+   * @return the absolute path of the file
+   * @see Location#getAbsolutePath()
+   */
+  public String getPath() {
+    return path;
+  }
+
+  /**
+   * @return the name of the file, without its parent directory
+   * @see Location#getName()
+   */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * @return a Location for the file
+   */
+  public Location getLocation() {
+    return new Location(path);
+  }
+
+  /**
+   * @return true if the file existed
+   * @see Location#exists()
+   */
+  public boolean exists() {
+    return exists;
+  }
+
+  /**
+   * @return true if the file was a directory
+   * @see Location#isDirectory()
+   */
+  public boolean isDirectory() {
+    return directory;
+  }
+
+  /**
+   * @return true if the file existed and was not a directory
+   * @see Location#isFile()
+   */
+  public boolean isFile() {
+    return exists && !directory;
+  }
+
+  /**
+   * @return true if the file was hidden
+   * @see Location#isHidden()
+   */
+  public boolean isHidden() {
+    return hidden;
+  }
+
+  /**
+   * @return the length of the file in bytes, or 0 if it did not exist
+   * @see Location#length()
+   */
+  public long length() {
+    return length;
+  }
+
+  /**
+   * @return the last modification time of the file in milliseconds since
+   *         the epoch, or 0 if it is not known
+   * @see Location#lastModified()
+   */
+  public long lastModified() {
+    return lastModified;
+  }
+
+  // -- Object API methods --
+
+  @Override
+  public String toString() {
+    return path;
+  }
+
+}
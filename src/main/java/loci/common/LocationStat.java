@@ -0,0 +1,143 @@
+/*
+ * #%L
+ * Common package for I/O and related utilities
+ * %%
+ * Copyright (C) 2005 - 2016 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.common;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+/**
+ * Looks up the attributes of many Locations concurrently, on a bounded
+ * pool of daemon threads.
+ *
+ * @see Location#stat(Collection)
+ */
+final class LocationStat {
+
+  // -- Constants --
+
+  /** Default number of concurrent lookups. */
+  static final int DEFAULT_THREADS = 8;
+
+  private static final ThreadPoolExecutor LOOKUPS = new ThreadPoolExecutor(
+    DEFAULT_THREADS, DEFAULT_THREADS, 30, TimeUnit.SECONDS,
+    new LinkedBlockingQueue<Runnable>(),
+    new ThreadFactoryBuilder().setDaemon(true)
+      .setNameFormat("location-stat-%d").build());
+
+  static {
+    LOOKUPS.allowCoreThreadTimeOut(true);
+  }
+
+  /** Whether the current thread belongs to the lookup pool. */
+  private static final ThreadLocal<Boolean> IN_POOL =
+    ThreadLocal.withInitial(() -> Boolean.FALSE);
+
+  // -- Constructor --
+
+  private LocationStat() { }
+
+  // -- LocationStat API methods --
+
+  /**
+   * Set the maximum number of lookups run at once.
+   *
+   * @param threads the number of lookups, at least 1
+   */
+  static synchronized void setThreads(int threads) {
+    if (threads < 1) {
+      throw new IllegalArgumentException("Invalid thread count: " + threads);
+    }
+    if (threads > LOOKUPS.getMaximumPoolSize()) {
+      LOOKUPS.setMaximumPoolSize(threads);
+      LOOKUPS.setCorePoolSize(threads);
+    }
+    else {
+      LOOKUPS.setCorePoolSize(threads);
+      LOOKUPS.setMaximumPoolSize(threads);
+    }
+  }
+
+  /**
+   * Look up the attributes of the given Locations concurrently.
+   *
+   * If called from a pool thread, for example by a lookup that lists a
+   * remote directory, the lookups are run one at a time in that thread,
+   * so that the pool cannot deadlock.  Lookups on the pool see the calling
+   * thread's id map and id scope.  Interrupting the calling thread
+   * does not stop the lookups, but its interrupt status is kept.
+   *
+   * @param locations the Locations to look up
+   * @return the attributes of each Location, in the same order
+   */
+  static List<LocationInfo> stat(Collection<Location> locations) {
+    boolean inline = locations.size() < 2 || IN_POOL.get();
+    List<FutureTask<LocationInfo>> lookups =
+      new ArrayList<FutureTask<LocationInfo>>(locations.size());
+    IdContext ids = inline ? null : IdContext.capture();
+    for (Location location : locations) {
+      if (inline) {
+        lookups.add(new FutureTask<LocationInfo>(location::getInfo));
+        continue;
+      }
+      FutureTask<LocationInfo> lookup =
+        new FutureTask<LocationInfo>(ids.wrap(() -> {
+          IN_POOL.set(Boolean.TRUE);
+          return location.getInfo();
+        }));
+      lookups.add(lookup);
+      LOOKUPS.execute(lookup);
+    }
+    List<LocationInfo> infos = new ArrayList<LocationInfo>(lookups.size());
+    for (FutureTask<LocationInfo> lookup : lookups) {
+      if (inline) lookup.run();
+      try {
+        infos.add(Uninterruptibles.getUninterruptibly(lookup));
+      }
+      catch (ExecutionException e) {
+        // getInfo does not throw checked exceptions
+        throw new IllegalStateException(e.getCause());
+      }
+    }
+    return infos;
+  }
+
+}
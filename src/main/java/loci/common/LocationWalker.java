@@ -0,0 +1,300 @@
+/*
+ * #%L
+ * Common package for I/O and related utilities
+ * %%
+ * Copyright (C) 2005 - 2016 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.common;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Walks directory trees in parallel on a fork-join pool, listing each
+ * directory in its own task.
+ *
+ * @see Location#walk(int, Predicate, LocationVisitor)
+ */
+final class LocationWalker {
+
+  // -- Constants --
+
+  /** Default number of directories listed at once. */
+  static final int DEFAULT_THREADS =
+    Math.max(8, Runtime.getRuntime().availableProcessors());
+
+  /** Number of entries found ahead of a stream's consumer. */
+  private static final int STREAM_BUFFER = 1024;
+
+  /** How often a walk that is waiting for its consumer checks for a stop. */
+  private static final long STOP_CHECK_MILLIS = 100;
+
+  /** Marks the end of a streamed walk. */
+  private static final LocationInfo END =
+    new LocationInfo("", "", false, false, false, 0, 0);
+
+  // -- Static fields --
+
+  private static volatile ForkJoinPool pool = new ForkJoinPool(DEFAULT_THREADS);
+
+  // -- Constructor --
+
+  private LocationWalker() { }
+
+  // -- LocationWalker API methods --
+
+  /**
+   * Set the maximum number of directories listed at once.
+   *
+   * @param threads the number of directories, at least 1
+   */
+  static synchronized void setThreads(int threads) {
+    if (threads < 1) {
+      throw new IllegalArgumentException("Invalid thread count: " + threads);
+    }
+    if (threads != pool.getParallelism()) {
+      ForkJoinPool old = pool;
+      pool = new ForkJoinPool(threads);
+      old.shutdown();
+    }
+  }
+
+  /**
+   * Walk the tree below the given directory, passing each file and
+   * directory to the visitor.  The directories are listed, and the visitor
+   * called, with the calling thread's id map and id scope.
+   *
+   * @return false if the visitor stopped the walk
+   */
+  static boolean walk(Location root, int maxDepth,
+    Predicate<LocationInfo> filter, LocationVisitor visitor)
+  {
+    AtomicBoolean stop = new AtomicBoolean();
+    pool.invoke(new WalkTask(root, 1, maxDepth, filter, visitor, stop,
+      IdContext.capture()));
+    return !stop.get();
+  }
+
+  /**
+   * Walk the tree below the given directory in the background, returning
+   * the files and directories as they are found.  At most
+   * {@link #STREAM_BUFFER} entries are found ahead of the consumer, so a
+   * slow consumer holds back the walk.  Closing the stream, or discarding
+   * it, stops the walk.  The directories are listed with the calling
+   * thread's id map and id scope.
+   */
+  static Stream<LocationInfo> stream(Location root, int maxDepth,
+    Predicate<LocationInfo> filter)
+  {
+    BlockingQueue<LocationInfo> found =
+      new ArrayBlockingQueue<LocationInfo>(STREAM_BUFFER);
+    AtomicBoolean stop = new AtomicBoolean();
+    AtomicReference<RuntimeException> failure =
+      new AtomicReference<RuntimeException>();
+
+    Spliterator<LocationInfo> entries =
+      new Spliterators.AbstractSpliterator<LocationInfo>(Long.MAX_VALUE,
+      Spliterator.NONNULL)
+    {
+      @Override
+      public boolean tryAdvance(Consumer<? super LocationInfo> action) {
+        LocationInfo entry;
+        try {
+          entry = found.take();
+        }
+        catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          stop.set(true);
+          throw new IllegalStateException("Interrupted while walking", e);
+        }
+        if (entry == END) {
+          // keep the end marker for any further calls
+          found.add(END);
+          RuntimeException e = failure.get();
+          if (e != null) throw e;
+          return false;
+        }
+        action.accept(entry);
+        return true;
+      }
+    };
+
+    // the walk only holds the stream weakly, so that it stops if the
+    // stream is discarded without being closed
+    WeakReference<Spliterator<LocationInfo>> consumer =
+      new WeakReference<Spliterator<LocationInfo>>(entries);
+    LocationVisitor visitor = entry -> put(found, entry, stop, consumer);
+    IdContext ids = IdContext.capture();
+    pool.execute(ForkJoinTask.adapt(() -> {
+      try {
+        new WalkTask(root, 1, maxDepth, filter, visitor, stop, ids).invoke();
+      }
+      catch (RuntimeException e) {
+        failure.set(e);
+      }
+      finally {
+        put(found, END, stop, consumer);
+      }
+    }));
+
+    return StreamSupport.stream(entries, false).onClose(() -> stop.set(true));
+  }
+
+  // -- Helper methods --
+
+  /**
+   * Add an entry to a stream's queue, waiting while the queue is full.
+   * The wait is managed by the pool, which adds a worker while this one
+   * waits, so that slow consumers cannot hold up other walks.
+   *
+   * @return false if the walk was stopped, or the stream was discarded,
+   *         before there was space
+   */
+  private static boolean put(BlockingQueue<LocationInfo> queue,
+    LocationInfo entry, AtomicBoolean stop, WeakReference<?> consumer)
+  {
+    QueuedPut put = new QueuedPut(queue, entry, stop, consumer);
+    try {
+      ForkJoinPool.managedBlock(put);
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    if (!put.added) stop.set(true);
+    return put.added;
+  }
+
+  // -- Helper classes --
+
+  /** Waits for space in a stream's queue, or for the walk to stop. */
+  private static final class QueuedPut implements ForkJoinPool.ManagedBlocker {
+
+    private final BlockingQueue<LocationInfo> queue;
+    private final LocationInfo entry;
+    private final AtomicBoolean stop;
+    private final WeakReference<?> consumer;
+    private boolean added;
+
+    QueuedPut(BlockingQueue<LocationInfo> queue, LocationInfo entry,
+      AtomicBoolean stop, WeakReference<?> consumer)
+    {
+      this.queue = queue;
+      this.entry = entry;
+      this.stop = stop;
+      this.consumer = consumer;
+    }
+
+    @Override
+    public boolean isReleasable() {
+      if (!added) added = queue.offer(entry);
+      return added || isStopped();
+    }
+
+    @Override
+    public boolean block() throws InterruptedException {
+      if (!added) {
+        added = queue.offer(entry, STOP_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+      }
+      return added || isStopped();
+    }
+
+    private boolean isStopped() {
+      return stop.get() || consumer.get() == null;
+    }
+  }
+
+  /** Lists one directory, and forks a task for each subdirectory. */
+  private static final class WalkTask extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Location dir;
+    private final int depth;
+    private final int maxDepth;
+    private final Predicate<LocationInfo> filter;
+    private final LocationVisitor visitor;
+    private final AtomicBoolean stop;
+    private final IdContext ids;
+
+    WalkTask(Location dir, int depth, int maxDepth,
+      Predicate<LocationInfo> filter, LocationVisitor visitor,
+      AtomicBoolean stop, IdContext ids)
+    {
+      this.dir = dir;
+      this.depth = depth;
+      this.maxDepth = maxDepth;
+      this.filter = filter;
+      this.visitor = visitor;
+      this.stop = stop;
+      this.ids = ids;
+    }
+
+    @Override
+    protected void compute() {
+      // tasks can run on any worker, so each binds the caller's ids
+      ids.run(this::walk);
+    }
+
+    private void walk() {
+      if (depth > maxDepth || stop.get()) return;
+      LocationInfo[] entries = dir.listWithAttributes(false);
+      if (entries == null) return;
+      List<WalkTask> subdirectories = new ArrayList<WalkTask>();
+      for (LocationInfo entry : entries) {
+        if (stop.get()) return;
+        if (filter != null && !filter.test(entry)) continue;
+        if (!visitor.visit(entry)) {
+          stop.set(true);
+          return;
+        }
+        if (entry.isDirectory() && depth < maxDepth) {
+          subdirectories.add(new WalkTask(entry.getLocation(), depth + 1,
+            maxDepth, filter, visitor, stop, ids));
+        }
+      }
+      invokeAll(subdirectories);
+    }
+  }
+
+}
@@ -32,6 +32,9 @@
 
 package loci.common;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
@@ -40,6 +43,12 @@ import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -72,12 +81,30 @@ public class NIOFileHandle extends AbstractNIOHandle {
 
   // -- Fields --
 
-  /** The random access file object backing this FileHandle. */
+  /**
+   * The random access file object backing this FileHandle, or
+   * <code>null</code> if the file is not on the default filesystem.
+   */
   protected RandomAccessFile raf;
 
-  /** The file channel backed by the random access file. */
+  /**
+   * The file channel backed by the random access file, or <code>null</code>
+   * if the file's filesystem does not provide a file channel.
+   */
   protected FileChannel channel;
 
+  /**
+   * The path of the file, or <code>null</code> if the handle was not
+   * opened on a path.
+   */
+  protected Path path;
+
+  /**
+   * The channel that the file is read and written through; the same as
+   * {@link #channel} if that is not <code>null</code>.
+   */
+  protected SeekableByteChannel byteChannel;
+
   /** The absolute position within the file. */
   protected long position = 0;
 
@@ -129,6 +156,7 @@ public class NIOFileHandle extends AbstractNIOHandle {
     }
     raf = new RandomAccessFile(file, mode);
     channel = raf.getChannel();
+    byteChannel = channel;
     byteBufferProvider = new NIOByteBufferProvider(channel, mapMode);
     buffer(position, 0);
 
@@ -165,6 +193,50 @@ public class NIOFileHandle extends AbstractNIOHandle {
     this(new File(name), mode);
   }
 
+  /**
+   * Creates a random access stream to read from, and optionally to write
+   * to, the file at the given path.  Files on the default filesystem are
+   * opened as by {@link #NIOFileHandle(File, String, int)}.  Files on any
+   * other filesystem are read and written through the channel returned by
+   * {@link Files#newByteChannel(Path, OpenOption...)}; channels that cannot
+   * change position are reopened to seek backwards.
+   *
+   * @param path the path of a file on any installed filesystem
+   * @param mode the access mode; <code>r</code> (read only) and
+   *             <code>rw</code> (read/write) are supported
+   * @param bufferSize the size of the buffer used to speed up reading
+   *                   and writing
+   * @throws IOException if there is an error accessing the file
+   */
+  protected NIOFileHandle(Path path, String mode, int bufferSize)
+    throws IOException
+  {
+    this.path = path;
+    this.bufferSize = bufferSize;
+    validateMode(mode);
+    if (mode.equals("rw")) {
+      isReadWrite = true;
+      mapMode = FileChannel.MapMode.READ_WRITE;
+    }
+    if (path.getFileSystem() == FileSystems.getDefault()) {
+      raf = new RandomAccessFile(path.toFile(), mode);
+      byteChannel = raf.getChannel();
+    }
+    else {
+      byteChannel = open();
+    }
+    if (byteChannel instanceof FileChannel) {
+      channel = (FileChannel) byteChannel;
+      byteBufferProvider = new NIOByteBufferProvider(channel, mapMode);
+    }
+    buffer(position, 0);
+
+    // if we know the length won't change, cache the original length
+    if (mode.equals("r")) {
+      defaultLength = byteChannel.size();
+    }
+  }
+
   // -- NIOFileHandle API methods --
 
   /**
@@ -201,9 +273,13 @@ public class NIOFileHandle extends AbstractNIOHandle {
   }
 
   /**
-   * @return the FileChannel from this FileHandle.
+   * @return the FileChannel from this FileHandle, or <code>null</code> if
+   *         the file's filesystem does not provide one.
    */
   public FileChannel getFileChannel() {
+    if (channel == null) {
+      return null;
+    }
     try {
       channel.position(position);
     }
@@ -225,6 +301,14 @@ public class NIOFileHandle extends AbstractNIOHandle {
   /* @see AbstractNIOHandle.setLength(long) */
   @Override
   public void setLength(long length) throws IOException {
+    if (raf == null) {
+      if (byteChannel.size() < length) {
+        // writing the last byte extends the file
+        writeAt(ByteBuffer.allocate(1), length - 1);
+      }
+      buffer = null;
+      return;
+    }
     if (raf.length() < length) {
       raf.setLength(length);
       if (raf.length() != length) {
@@ -247,6 +331,10 @@ public class NIOFileHandle extends AbstractNIOHandle {
   /* @see IRandomAccess.close() */
   @Override
   public void close() throws IOException {
+    if (raf == null) {
+      byteChannel.close();
+      return;
+    }
     raf.close();
   }
 
@@ -262,7 +350,7 @@ public class NIOFileHandle extends AbstractNIOHandle {
     if (defaultLength != null) {
       return defaultLength;
     }
-    return raf.length();
+    return raf == null ? byteChannel.size() : raf.length();
   }
 
   /* @see IRandomAccess.getOrder() */
@@ -307,6 +395,13 @@ public class NIOFileHandle extends AbstractNIOHandle {
       return -1;
     }
     buf.limit(off + realLength);
+    if (channel == null && realLength > bufferSize) {
+      // large reads go straight to the destination
+      readAt(buf, position);
+      position += realLength;
+      buffer = null;
+      return realLength;
+    }
     buffer(position, realLength);
     position += realLength;
     while (buf.hasRemaining()) {
@@ -421,6 +516,9 @@ public class NIOFileHandle extends AbstractNIOHandle {
   /* @see java.io.DataInput.readLine() */
   @Override
   public String readLine() throws IOException {
+    if (raf == null) {
+      return readBufferedLine();
+    }
     raf.seek(position);
     String line = raf.readLine();
     buffer(raf.getFilePointer(), 0);
@@ -470,6 +568,9 @@ public class NIOFileHandle extends AbstractNIOHandle {
   /* @see java.io.DataInput.readUTF() */
   @Override
   public String readUTF() throws IOException {
+    if (raf == null) {
+      return DataInputStream.readUTF(this);
+    }
     raf.seek(position);
     String utf8 = raf.readUTF();
     buffer(raf.getFilePointer(), 0);
@@ -522,8 +623,14 @@ public class NIOFileHandle extends AbstractNIOHandle {
     // Also, the channel.write() will handle resizing the file as needed.
     buf.limit(off + len);
     buf.position(off);
-    position += channel.write(buf, position);
-    raf.seek(position);
+    if (raf == null) {
+      writeAt(buf, position);
+      position += len;
+    }
+    else {
+      position += channel.write(buf, position);
+      raf.seek(position);
+    }
     buffer = null;
   }
 
@@ -610,6 +717,14 @@ public class NIOFileHandle extends AbstractNIOHandle {
   /* @see java.io.DataOutput.writeUTF(String)  */
   @Override
   public void writeUTF(String str) throws IOException {
+    if (raf == null) {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeUTF(str);
+      out.close();
+      write(bytes.toByteArray());
+      return;
+    }
     // NB: number of bytes written is greater than the length of the string
     int strlen = str.getBytes(Constants.ENCODING).length + 2;
     writeSetup(strlen);
@@ -619,9 +734,112 @@ public class NIOFileHandle extends AbstractNIOHandle {
     buffer = null;
   }
 
+  // -- Helper methods --
+
+  /** Open a channel on the path, with the options for this handle's mode. */
+  private SeekableByteChannel open() throws IOException {
+    if (isReadWrite) {
+      return Files.newByteChannel(path, StandardOpenOption.READ,
+        StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+    }
+    return Files.newByteChannel(path, StandardOpenOption.READ);
+  }
+
+  /**
+   * Move the channel to the given position.  Channels that cannot change
+   * position, such as those over compressed streams, are reopened to move
+   * backwards and read to move forwards.
+   */
+  private void moveTo(long pos) throws IOException {
+    try {
+      byteChannel.position(pos);
+      return;
+    }
+    catch (UnsupportedOperationException e) {
+      LOGGER.trace("Channel cannot change position", e);
+    }
+    if (pos < byteChannel.position()) {
+      byteChannel.close();
+      byteChannel = open();
+    }
+    ByteBuffer skip = ByteBuffer.allocate((int) Math.min(bufferSize,
+      Math.max(1, pos - byteChannel.position())));
+    while (byteChannel.position() < pos) {
+      skip.clear();
+      skip.limit((int) Math.min(skip.capacity(),
+        pos - byteChannel.position()));
+      if (byteChannel.read(skip) < 0) {
+        break;
+      }
+    }
+  }
+
+  /**
+   * Fill the given buffer with data from the given position in the file,
+   * stopping early at the end of the file.
+   */
+  private void readAt(ByteBuffer buf, long pos) throws IOException {
+    if (channel != null) {
+      while (buf.hasRemaining()) {
+        int n = channel.read(buf, pos);
+        if (n < 0) {
+          break;
+        }
+        pos += n;
+      }
+      return;
+    }
+    moveTo(pos);
+    while (buf.hasRemaining()) {
+      if (byteChannel.read(buf) < 0) {
+        break;
+      }
+    }
+  }
+
+  /** Write the given buffer to the given position in the file. */
+  private void writeAt(ByteBuffer buf, long pos) throws IOException {
+    if (channel != null) {
+      while (buf.hasRemaining()) {
+        pos += channel.write(buf, pos);
+      }
+      return;
+    }
+    moveTo(pos);
+    while (buf.hasRemaining()) {
+      byteChannel.write(buf);
+    }
+  }
+
+  /**
+   * Read a line one byte per character, as
+   * {@link RandomAccessFile#readLine()}.
+   */
+  private String readBufferedLine() throws IOException {
+    long length = length();
+    if (position >= length) {
+      return null;
+    }
+    StringBuilder line = new StringBuilder();
+    while (position < length) {
+      int c = readUnsignedByte();
+      if (c == '\n') {
+        break;
+      }
+      if (c == '\r') {
+        if (position < length && readUnsignedByte() != '\n') {
+          seek(position - 1);
+        }
+        break;
+      }
+      line.append((char) c);
+    }
+    return line.toString();
+  }
+
   /**
-   * Aligns the NIO buffer, maps it if it is not currently and sets all
-   * relevant positions and offsets.
+   * Aligns the NIO buffer, maps or fills it if it is not currently and
+   * sets all relevant positions and offsets.
    * @param offset The location within the file to read from.
    * @param size The requested read length.
    * @throws IOException If there is an issue mapping, aligning or allocating
@@ -644,7 +862,15 @@ public class NIOFileHandle extends AbstractNIOHandle {
       }
       offset = bufferStartPosition;
       ByteOrder byteOrder = buffer == null ? order : getOrder();
-      buffer = byteBufferProvider.allocate(bufferStartPosition, (int) newSize);
+      if (byteBufferProvider != null) {
+        buffer =
+          byteBufferProvider.allocate(bufferStartPosition, (int) newSize);
+      }
+      else {
+        buffer = ByteBuffer.allocate((int) newSize);
+        readAt(buffer, bufferStartPosition);
+        buffer.limit(buffer.position());
+      }
       if (byteOrder != null) setOrder(byteOrder);
     }
     buffer.position((int) (offset - bufferStartPosition));
@@ -661,6 +887,14 @@ public class NIOFileHandle extends AbstractNIOHandle {
   }
 
   private void doWrite(int length) throws IOException {
+    if (channel == null) {
+      ByteBuffer written = buffer.duplicate();
+      written.position(buffer.position() - length);
+      written.limit(buffer.position());
+      writeAt(written, position);
+      position += length;
+      return;
+    }
     buffer.position(buffer.position() - length);
     channel.write(buffer, position);
     position += length;
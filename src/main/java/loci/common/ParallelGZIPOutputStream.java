@@ -0,0 +1,344 @@
+/*
+ * #%L
+ * Common package for I/O and related utilities
+ * %%
+ * Copyright (C) 2005 - 2016 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.common;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * OutputStream that writes gzip-compressed data, deflating blocks of input
+ * in parallel.  Blocks are compressed on a thread pool and written in order.
+ *
+ * By default a single gzip member is written, as with pigz: each block is
+ * deflated using the last 32 KB of the previous block as a preset
+ * dictionary and ends on a byte boundary, so the compressed blocks join to
+ * form one deflate stream.  Alternatively, each block can be written as an
+ * independent BGZF member, which allows {@link GZipHandle} to read the
+ * result with random access.
+ *
+ * @see GZipOutputHandle
+ */
+public class ParallelGZIPOutputStream extends FilterOutputStream {
+
+  // -- Constants --
+
+  /** Default number of uncompressed bytes per block. */
+  public static final int DEFAULT_BLOCK_SIZE = 128 * 1024;
+
+  /** Maximum number of uncompressed bytes per BGZF block. */
+  public static final int BGZF_BLOCK_SIZE = 65280;
+
+  private static final int DICTIONARY_SIZE = 32768;
+
+  private static final byte[] GZIP_HEADER =
+    {0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+  // -- Fields --
+
+  private final boolean bgzf;
+  private final int level;
+  private final int threads;
+  private final ExecutorService executor;
+
+  /** Compressed blocks that have not yet been written, in order. */
+  private final Deque<Future<byte[]>> pending =
+    new ArrayDeque<Future<byte[]>>();
+
+  private byte[] block;
+  private int blockLength = 0;
+
+  /** Tail of the previous block, used as a dictionary for the next. */
+  private byte[] dictionary;
+
+  private final CRC32 crc = new CRC32();
+  private long totalIn = 0;
+  private boolean finished = false;
+
+  // -- Constructors --
+
+  /**
+   * Constructs a new stream that writes a single gzip member using one
+   * thread per available processor.
+   *
+   * @param out the stream to which compressed data is written
+   * @throws IOException if the gzip header cannot be written
+   */
+  public ParallelGZIPOutputStream(OutputStream out) throws IOException {
+    this(out, false, DEFAULT_BLOCK_SIZE,
+      Runtime.getRuntime().availableProcessors(), Deflater.DEFAULT_COMPRESSION);
+  }
+
+  /**
+   * Constructs a new stream.
+   *
+   * @param out the stream to which compressed data is written
+   * @param bgzf true if each block should be written as a BGZF member
+   * @param blockSize the number of uncompressed bytes per block; this is
+   *                  limited to {@link #BGZF_BLOCK_SIZE} if bgzf is true
+   * @param threads the number of blocks to compress at once
+   * @param level the deflate compression level, from 0 to 9, or -1 for
+   *              the default level
+   * @throws IOException if the gzip header cannot be written
+   */
+  public ParallelGZIPOutputStream(OutputStream out, boolean bgzf,
+    int blockSize, int threads, int level) throws IOException
+  {
+    super(out);
+    if (blockSize <= 0) {
+      throw new IllegalArgumentException("Invalid block size: " + blockSize);
+    }
+    this.bgzf = bgzf;
+    this.level = level;
+    this.threads = Math.max(1, threads);
+    block = new byte[bgzf ? Math.min(blockSize, BGZF_BLOCK_SIZE) : blockSize];
+    executor = Executors.newFixedThreadPool(this.threads,
+      new ThreadFactoryBuilder().setDaemon(true)
+        .setNameFormat("gzip-deflater-%d").build());
+    if (!bgzf) out.write(GZIP_HEADER);
+  }
+
+  // -- ParallelGZIPOutputStream API methods --
+
+  /**
+   * @return the number of uncompressed bytes written so far
+   */
+  public long getBytesWritten() {
+    return totalIn;
+  }
+
+  /**
+   * Compress and write all remaining data and the gzip trailer, without
+   * closing the underlying stream.
+   *
+   * @throws IOException if the data cannot be written
+   */
+  public void finish() throws IOException {
+    if (finished) return;
+    try {
+      if (blockLength > 0 || !bgzf) submit(true);
+      drain(0);
+      if (bgzf) {
+        out.write(compressBGZF(new byte[0], 0));
+      }
+      else {
+        ByteBuffer trailer = ByteBuffer.allocate(8);
+        trailer.order(ByteOrder.LITTLE_ENDIAN);
+        trailer.putInt((int) crc.getValue());
+        trailer.putInt((int) totalIn);
+        out.write(trailer.array());
+      }
+      finished = true;
+    }
+    finally {
+      if (finished) executor.shutdown();
+    }
+  }
+
+  // -- OutputStream API methods --
+
+  @Override
+  public void write(int b) throws IOException {
+    if (finished) throw new IOException("Stream is finished");
+    if (blockLength == block.length) submit(false);
+    block[blockLength++] = (byte) b;
+    totalIn++;
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    if (finished) throw new IOException("Stream is finished");
+    while (len > 0) {
+      if (blockLength == block.length) submit(false);
+      int n = Math.min(len, block.length - blockLength);
+      System.arraycopy(b, off, block, blockLength, n);
+      blockLength += n;
+      totalIn += n;
+      off += n;
+      len -= n;
+    }
+  }
+
+  @Override
+  public void flush() throws IOException {
+    drain(0);
+    out.flush();
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      finish();
+    }
+    finally {
+      executor.shutdownNow();
+      out.close();
+    }
+  }
+
+  // -- Helper methods --
+
+  /** Queue the current block for compression. */
+  private void submit(final boolean last) throws IOException {
+    final byte[] input = Arrays.copyOf(block, blockLength);
+    final int length = blockLength;
+    blockLength = 0;
+
+    if (bgzf) {
+      pending.add(executor.submit(() -> compressBGZF(input, length)));
+    }
+    else {
+      crc.update(input, 0, length);
+      final byte[] dict = dictionary;
+      if (length >= DICTIONARY_SIZE) {
+        dictionary =
+          Arrays.copyOfRange(input, length - DICTIONARY_SIZE, length);
+      }
+      else if (length > 0) {
+        // combine the end of the previous dictionary with this block
+        byte[] previous = dict == null ? new byte[0] : dict;
+        int keep = Math.min(previous.length, DICTIONARY_SIZE - length);
+        byte[] next = new byte[keep + length];
+        System.arraycopy(previous, previous.length - keep, next, 0, keep);
+        System.arraycopy(input, 0, next, keep, length);
+        dictionary = next;
+      }
+      pending.add(
+        executor.submit(() -> compressRaw(input, length, dict, last)));
+    }
+    drain(2 * threads);
+  }
+
+  /** Write completed blocks until at most the given number are pending. */
+  private void drain(int maxPending) throws IOException {
+    while (pending.size() > maxPending) {
+      Future<byte[]> next = pending.poll();
+      try {
+        out.write(next.get());
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException(e);
+      }
+      catch (ExecutionException e) {
+        throw new IOException(e.getCause());
+      }
+    }
+  }
+
+  /**
+   * Deflate one block of a single gzip member.  All but the last block end
+   * with a sync flush, so that the blocks can be concatenated.
+   */
+  private byte[] compressRaw(byte[] input, int length, byte[] dict,
+    boolean last)
+  {
+    Deflater deflater = new Deflater(level, true);
+    try {
+      if (dict != null) deflater.setDictionary(dict);
+      deflater.setInput(input, 0, length);
+      ByteArrayOutputStream result =
+        new ByteArrayOutputStream(length / 2 + 64);
+      byte[] buf = new byte[Math.max(length, 1024) + 64];
+      if (last) {
+        deflater.finish();
+        while (!deflater.finished()) {
+          int n = deflater.deflate(buf);
+          result.write(buf, 0, n);
+        }
+      }
+      else {
+        int n;
+        do {
+          n = deflater.deflate(buf, 0, buf.length, Deflater.SYNC_FLUSH);
+          result.write(buf, 0, n);
+        } while (n == buf.length);
+      }
+      return result.toByteArray();
+    }
+    finally {
+      deflater.end();
+    }
+  }
+
+  /** Compress one block as a complete BGZF member. */
+  private byte[] compressBGZF(byte[] input, int length) {
+    Deflater deflater = new Deflater(level, true);
+    byte[] compressed;
+    int compressedLength = 0;
+    try {
+      deflater.setInput(input, 0, length);
+      deflater.finish();
+      compressed = new byte[length + 1024];
+      while (!deflater.finished()) {
+        compressedLength += deflater.deflate(compressed, compressedLength,
+          compressed.length - compressedLength);
+      }
+    }
+    finally {
+      deflater.end();
+    }
+    CRC32 blockCrc = new CRC32();
+    blockCrc.update(input, 0, length);
+
+    ByteBuffer member = ByteBuffer.allocate(18 + compressedLength + 8);
+    member.order(ByteOrder.LITTLE_ENDIAN);
+    member.put(GZIP_HEADER, 0, 3);
+    member.put((byte) 4); // FEXTRA
+    member.put(GZIP_HEADER, 4, 6);
+    member.putShort((short) 6);
+    member.put((byte) 'B');
+    member.put((byte) 'C');
+    member.putShort((short) 2);
+    member.putShort((short) (member.capacity() - 1));
+    member.put(compressed, 0, compressedLength);
+    member.putInt((int) blockCrc.getValue());
+    member.putInt(length);
+    return member.array();
+  }
+
+}
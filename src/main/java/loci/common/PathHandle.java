@@ -0,0 +1,118 @@
+/*
+ * #%L
+ * Common package for I/O and related utilities
+ * %%
+ * Copyright (C) 2005 - 2016 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.common;
+
+import java.io.IOException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Path;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A wrapper for buffered NIO logic that implements the IRandomAccess
+ * interface over a {@link Path} on any installed filesystem, such as the
+ * zip filesystem or an in-memory filesystem.
+ *
+ * @see IRandomAccess
+ * @see NIOFileHandle#NIOFileHandle(Path, String, int)
+ * @see java.nio.channels.SeekableByteChannel
+ */
+public class PathHandle extends NIOFileHandle {
+
+  // -- Constants --
+
+  /** Logger for this class. */
+  private static final Logger LOGGER =
+    LoggerFactory.getLogger(PathHandle.class);
+
+  // -- Constructors --
+
+  /**
+   * Creates a random access stream to read from, and optionally to write
+   * to, the file at the given path.
+   *
+   * @param path the path of a file on any installed filesystem
+   * @param mode the access mode; <code>r</code> (read only) and
+   *             <code>rw</code> (read/write) are supported
+   * @param bufferSize the size of the buffer used to speed up reading
+   *                   and writing
+   * @throws IOException if there is an error accessing the file
+   */
+  public PathHandle(Path path, String mode, int bufferSize)
+    throws IOException
+  {
+    super(path, mode, bufferSize);
+  }
+
+  /**
+   * Creates a random access stream to read from, and optionally to write
+   * to, the file at the given path.  The buffer size is the default size
+   * of an {@link NIOFileHandle} with the same mode.
+   *
+   * @param path the path of a file on any installed filesystem
+   * @param mode the access mode; <code>r</code> (read only) and
+   *             <code>rw</code> (read/write) are supported
+   * @throws IOException if there is an error accessing the file
+   * @see NIOFileHandle#setDefaultBufferSize(int)
+   * @see NIOFileHandle#setDefaultReadWriteBufferSize(int)
+   */
+  public PathHandle(Path path, String mode) throws IOException {
+    this(path, mode, mode.equals("rw") ? defaultRWBufferSize :
+      defaultBufferSize);
+  }
+
+  // -- PathHandle API methods --
+
+  /**
+   * @return the path of the file backing this handle.
+   */
+  public Path getPath() {
+    return path;
+  }
+
+  /**
+   * @return the channel backing this handle, positioned at the current
+   *         file pointer.
+   */
+  public SeekableByteChannel getChannel() {
+    try {
+      byteChannel.position(position);
+    }
+    catch (IOException | UnsupportedOperationException e) {
+      LOGGER.warn("SeekableByteChannel.position failed", e);
+    }
+    return byteChannel;
+  }
+
+}
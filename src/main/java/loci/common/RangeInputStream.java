@@ -0,0 +1,411 @@
+/*
+ * #%L
+ * Common package for I/O and related utilities
+ * %%
+ * Copyright (C) 2005 - 2016 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.common;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+
+/**
+ * InputStream with random access to an HTTP resource whose server supports
+ * byte range requests.  Each contiguous run of reads is served by a single
+ * "Range: bytes=N-" request; a new request is only made when the position
+ * moves backwards or too far forwards to be worth reading through.
+ *
+ * If a {@link URLBlockCache} is set, reads are served from aligned blocks
+ * of the cache, and missing blocks are loaded with the same range
+ * requests.  Reads can also be served by a {@link RangePrefetcher},
+ * which fetches the blocks ahead of a sequential reader concurrently, and
+ * by a {@link URLDiskCache}, which keeps blocks on local disk.
+ *
+ * @see URLHandle
+ */
+class RangeInputStream extends InputStream {
+
+  // -- Constants --
+
+  /**
+   * Forward gaps up to this size are read through on the open connection
+   * instead of starting a new request.
+   */
+  private static final int SKIP_THRESHOLD = 65536;
+
+  private static final int BUFFER_SIZE = 65536;
+
+  // -- Fields --
+
+  private final URL url;
+  private final String key;
+  private final String version;
+  private final long length;
+
+  /** Block cache, or null if reads go straight to the server. */
+  private URLBlockCache cache;
+
+  /** Cached contents on local disk, or null. */
+  private URLDiskCache.Entry disk;
+
+  /** Fetcher of blocks ahead of sequential reads, or null. */
+  private RangePrefetcher prefetcher;
+  private int prefetch;
+
+  /** Most recently used block, and its index. */
+  private byte[] block;
+  private long blockIndex = -1;
+
+  /** Position of the next byte to be returned. */
+  private long position;
+
+  /** Connection serving the current read run, or null. */
+  private HttpURLConnection conn;
+
+  /** Body of the current connection, or null. */
+  private InputStream in;
+
+  /** Position of the next byte available from {@link #in}. */
+  private long inPosition;
+
+  // -- Constructor --
+
+  /**
+   * Construct a stream over the given resource.
+   *
+   * @param url the resource to read
+   * @param version the version of the resource, which keeps its blocks
+   *                apart from other versions' in the block cache; may be
+   *                null if unknown
+   * @param length the total length of the resource
+   * @param conn an already connected request for the whole resource,
+   *             which is used for the first read run; may be null
+   */
+  RangeInputStream(URL url, String version, long length,
+    HttpURLConnection conn)
+    throws IOException
+  {
+    this.url = url;
+    this.key = url.toString();
+    this.version = version;
+    this.length = length;
+    if (conn != null) {
+      this.conn = conn;
+      this.in = new BufferedInputStream(conn.getInputStream(), BUFFER_SIZE);
+    }
+  }
+
+  // -- RangeInputStream API methods --
+
+  /** @return the position of the next byte to be read */
+  public long position() {
+    return position;
+  }
+
+  /** Move to the given position; no request is made until the next read. */
+  public void position(long pos) {
+    position = Math.max(0, Math.min(pos, length));
+  }
+
+  /** @return the total length of the resource */
+  public long length() {
+    return length;
+  }
+
+  /**
+   * Set the block cache used by later reads.
+   *
+   * @param cache the cache, or null to read straight from the server
+   */
+  public void setCache(URLBlockCache cache) throws IOException {
+    this.cache = cache;
+    block = null;
+    blockIndex = -1;
+    setPrefetch(prefetch);
+  }
+
+  /**
+   * Set the local disk cache used by later reads.  The previous entry, if
+   * any, is closed.
+   *
+   * @param entry the cached contents of this resource, or null
+   */
+  public void setDiskEntry(URLDiskCache.Entry entry) throws IOException {
+    if (disk != null) disk.close();
+    disk = entry;
+    block = null;
+    blockIndex = -1;
+  }
+
+  /**
+   * Set the number of blocks fetched concurrently ahead of sequential reads.
+   * Blocks are the size of the cache's blocks if a cache is set, and
+   * {@link URLBlockCache#DEFAULT_BLOCK_SIZE} otherwise.
+   *
+   * @param blocks the number of blocks, or 0 to turn prefetching off
+   */
+  public void setPrefetch(int blocks) throws IOException {
+    prefetch = blocks;
+    if (prefetcher != null) prefetcher.cancel();
+    prefetcher = null;
+    block = null;
+    blockIndex = -1;
+    if (blocks > 0) {
+      int blockSize = cache == null ?
+        URLBlockCache.DEFAULT_BLOCK_SIZE : cache.getBlockSize();
+      try {
+        prefetcher =
+          new RangePrefetcher(url.toURI(), length, blockSize, blocks);
+      }
+      catch (URISyntaxException e) {
+        throw new IOException(e);
+      }
+    }
+  }
+
+  // -- InputStream API methods --
+
+  @Override
+  public int read() throws IOException {
+    if (position >= length) return -1;
+    if (isBlockMode()) {
+      int offset = loadBlock();
+      position++;
+      return block[offset] & 0xff;
+    }
+    int n = -1;
+    for (int attempt=0; attempt<2 && n < 0; attempt++) {
+      openRun();
+      n = in.read();
+      if (n < 0) closeRun();
+    }
+    if (n < 0) {
+      throw new EOFException("Unexpected end of " + url + " at " + position);
+    }
+    position++;
+    inPosition++;
+    return n;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (len == 0) return 0;
+    if (position >= length) return -1;
+    len = (int) Math.min(len, length - position);
+    if (isBlockMode()) {
+      int offset = loadBlock();
+      int n = Math.min(len, block.length - offset);
+      System.arraycopy(block, offset, b, off, n);
+      position += n;
+      return n;
+    }
+    int n = readRun(b, off, len);
+    position += n;
+    return n;
+  }
+
+  @Override
+  public long skip(long n) {
+    long skipped = Math.max(0, Math.min(n, length - position));
+    position += skipped;
+    return skipped;
+  }
+
+  @Override
+  public int available() throws IOException {
+    return in != null && inPosition == position ? in.available() : 0;
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (prefetcher != null) prefetcher.cancel();
+    try {
+      closeRun();
+    }
+    finally {
+      setDiskEntry(null);
+    }
+  }
+
+  // -- Helper methods --
+
+  /** @return true if reads are served from whole blocks */
+  private boolean isBlockMode() {
+    return cache != null || prefetcher != null || disk != null;
+  }
+
+  /**
+   * Make sure that {@link #block} holds the byte at {@link #position}.
+   * @return the offset of that byte within the block
+   */
+  private int loadBlock() throws IOException {
+    long blockSize = prefetcher != null ? prefetcher.getBlockSize() :
+      cache != null ? cache.getBlockSize() : disk.getBlockSize();
+    long index = position / blockSize;
+    if (index != blockIndex || block == null) {
+      if (prefetcher != null) {
+        prefetcher.access(index, i -> isCached(i, blockSize));
+      }
+      block = cache == null ? load(index, blockSize) :
+        cache.getBlock(key, version, index, () -> load(index, blockSize));
+      blockIndex = index;
+    }
+    return (int) (position - index * blockSize);
+  }
+
+  /** @return true if the given block is in the memory or disk cache */
+  private boolean isCached(long index, long blockSize) {
+    if (cache != null && cache.contains(key, version, index)) return true;
+    if (disk == null) return false;
+    long start = index * blockSize;
+    try {
+      return disk.contains(start, (int) Math.min(blockSize, length - start));
+    }
+    catch (IOException e) {
+      return false;
+    }
+  }
+
+  /** Get a block from the disk cache, the prefetcher, or the server. */
+  private byte[] load(long index, long blockSize) throws IOException {
+    long start = index * blockSize;
+    int len = (int) Math.min(blockSize, length - start);
+    if (disk != null) {
+      byte[] b = new byte[len];
+      if (disk.read(start, b)) return b;
+    }
+    byte[] b = prefetcher == null ? null : prefetcher.take(index);
+    if (b == null) b = fetch(start, len);
+    if (disk != null) disk.write(start, b);
+    return b;
+  }
+
+  /** Read the given range from the server. */
+  private byte[] fetch(long start, int len) throws IOException {
+    byte[] b = new byte[len];
+    long p = position;
+    position = start;
+    try {
+      int n = 0;
+      while (n < len) {
+        int r = readRun(b, n, len - n);
+        n += r;
+        position += r;
+      }
+    }
+    finally {
+      position = p;
+    }
+    return b;
+  }
+
+  /**
+   * Read from the current run at {@link #position}, starting a new run if
+   * needed.  {@link #position} is not updated.
+   */
+  private int readRun(byte[] b, int off, int len) throws IOException {
+    int n = -1;
+    for (int attempt=0; attempt<2 && n <= 0; attempt++) {
+      openRun();
+      n = in.read(b, off, len);
+      if (n <= 0) {
+        // the connection ended early; start a new run from here
+        closeRun();
+      }
+    }
+    if (n <= 0) {
+      throw new EOFException("Unexpected end of " + url + " at " + position);
+    }
+    inPosition += n;
+    return n;
+  }
+
+  /** Make sure that {@link #in} is positioned at {@link #position}. */
+  private void openRun() throws IOException {
+    if (in != null) {
+      long gap = position - inPosition;
+      if (gap >= 0 && gap <= SKIP_THRESHOLD && skipFully(in, gap)) {
+        inPosition = position;
+        return;
+      }
+      closeRun();
+    }
+    conn = (HttpURLConnection) url.openConnection();
+    conn.setRequestProperty("Range", "bytes=" + position + "-");
+    int code = conn.getResponseCode();
+    if (code != HttpURLConnection.HTTP_PARTIAL &&
+      code != HttpURLConnection.HTTP_OK)
+    {
+      String message = conn.getResponseMessage();
+      conn.disconnect();
+      conn = null;
+      throw new IOException("Range request for " + url + " failed: " +
+        code + " " + message);
+    }
+    in = new BufferedInputStream(conn.getInputStream(), BUFFER_SIZE);
+    inPosition = position;
+    if (code == HttpURLConnection.HTTP_OK) {
+      // the range was ignored, so read up to the requested position
+      inPosition = 0;
+      if (!skipFully(in, position)) {
+        throw new EOFException("Unexpected end of " + url);
+      }
+      inPosition = position;
+    }
+  }
+
+  private void closeRun() throws IOException {
+    // closing the body lets a fully read connection be reused
+    try {
+      if (in != null) in.close();
+    }
+    finally {
+      in = null;
+      conn = null;
+    }
+  }
+
+  private static boolean skipFully(InputStream s, long n) throws IOException {
+    while (n > 0) {
+      long skipped = s.skip(n);
+      if (skipped <= 0) {
+        if (s.read() < 0) return false;
+        skipped = 1;
+      }
+      n -= skipped;
+    }
+    return true;
+  }
+
+}
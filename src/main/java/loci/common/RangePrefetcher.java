@@ -0,0 +1,202 @@
+/*
+ * #%L
+ * Common package for I/O and related utilities
+ * %%
+ * Copyright (C) 2005 - 2016 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.common;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.function.LongPredicate;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Fetches blocks of an HTTP resource ahead of a sequential reader.  Once two
+ * consecutive blocks have been read, the following blocks are requested
+ * concurrently as separate range requests, up to the configured number in
+ * flight; the reader then takes them in order.  Any non-sequential read
+ * cancels the blocks that are no longer ahead of the reader.
+ *
+ * Requests are made with a shared {@link HttpClient}, whose connection pool
+ * lets several blocks be transferred at once.
+ *
+ * Instances are not thread-safe; each belongs to a single
+ * {@link RangeInputStream}.
+ */
+class RangePrefetcher {
+
+  // -- Constants --
+
+  private static final HttpClient CLIENT = HttpClient.newBuilder()
+    .version(HttpClient.Version.HTTP_1_1)
+    .followRedirects(HttpClient.Redirect.NORMAL)
+    .executor(Executors.newCachedThreadPool(new ThreadFactoryBuilder()
+      .setDaemon(true).setNameFormat("url-prefetch-%d").build()))
+    .build();
+
+  // -- Fields --
+
+  private final URI uri;
+  private final long length;
+  private final int blockSize;
+  private final int concurrency;
+
+  /** Blocks being fetched, by index. */
+  private final Map<Long, CompletableFuture<byte[]>> pending =
+    new HashMap<Long, CompletableFuture<byte[]>>();
+
+  private long lastIndex = Long.MIN_VALUE;
+  private boolean sequential = false;
+
+  // -- Constructor --
+
+  /**
+   * @param uri the resource to fetch
+   * @param length the total length of the resource
+   * @param blockSize the size of each block
+   * @param concurrency the maximum number of blocks to fetch ahead
+   */
+  RangePrefetcher(URI uri, long length, int blockSize, int concurrency) {
+    this.uri = uri;
+    this.length = length;
+    this.blockSize = blockSize;
+    this.concurrency = concurrency;
+  }
+
+  // -- RangePrefetcher API methods --
+
+  /** @return the size of each block */
+  int getBlockSize() {
+    return blockSize;
+  }
+
+  /**
+   * Record that the given block is about to be read, and start fetching the
+   * blocks after it if reads are sequential.
+   *
+   * @param index the index of the block being read
+   * @param cached test for blocks that are already cached, and so are
+   *               not fetched
+   */
+  void access(long index, LongPredicate cached) {
+    if (index == lastIndex) return;
+    sequential = index == lastIndex + 1;
+    lastIndex = index;
+
+    Iterator<Map.Entry<Long, CompletableFuture<byte[]>>> it =
+      pending.entrySet().iterator();
+    while (it.hasNext()) {
+      Map.Entry<Long, CompletableFuture<byte[]>> entry = it.next();
+      long i = entry.getKey();
+      if (i < index || (!sequential && i != index)) {
+        entry.getValue().cancel(false);
+        it.remove();
+      }
+    }
+    if (!sequential) return;
+
+    for (long i=index+1; i<=index+concurrency; i++) {
+      if (i * blockSize >= length) break;
+      if (pending.containsKey(i)) continue;
+      if (cached.test(i)) continue;
+      pending.put(i, fetchAsync(i));
+    }
+  }
+
+  /**
+   * Take a block that is being fetched, waiting for it to arrive.
+   *
+   * @param index the index of the block
+   * @return the block's contents, or null if it is not being fetched
+   */
+  byte[] take(long index) throws IOException {
+    CompletableFuture<byte[]> future = pending.remove(index);
+    if (future == null) return null;
+    try {
+      return future.get();
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while fetching " + uri);
+    }
+    catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) throw (IOException) cause;
+      throw new IOException("Could not fetch " + uri, cause);
+    }
+  }
+
+  /** Cancel all blocks that are being fetched. */
+  void cancel() {
+    for (CompletableFuture<byte[]> future : pending.values()) {
+      future.cancel(false);
+    }
+    pending.clear();
+  }
+
+  // -- Helper methods --
+
+  private CompletableFuture<byte[]> fetchAsync(long index) {
+    long start = index * blockSize;
+    long end = Math.min(length, start + blockSize);
+    HttpRequest request = HttpRequest.newBuilder(uri)
+      .header("Range", "bytes=" + start + "-" + (end - 1))
+      .GET()
+      .build();
+    return CLIENT.sendAsync(request, HttpResponse.BodyHandlers.ofByteArray())
+      .thenApply(response -> {
+        byte[] body = response.body();
+        int code = response.statusCode();
+        if (code == 206 && body.length == end - start) {
+          return body;
+        }
+        if (code == 200 && body.length >= end) {
+          // the range was ignored
+          return Arrays.copyOfRange(body, (int) start, (int) end);
+        }
+        throw new CompletionException(new IOException(
+          "Range request for " + uri + " failed: " + code));
+      });
+  }
+
+}
@@ -0,0 +1,365 @@
+/*
+ * #%L
+ * Common package for I/O and related utilities
+ * %%
+ * Copyright (C) 2005 - 2016 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.common;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Provides random access to objects in S3-compatible object stores using
+ * the IRandomAccess interface.  Instances of S3Handle are read-only.
+ *
+ * Two forms of id are supported:
+ * <ul>
+ *   <li><code>s3://bucket/key</code>, which is resolved against the
+ *   endpoint set with {@link #setEndpoint(String)}</li>
+ *   <li><code>s3+http://host:port/bucket/key</code> and
+ *   <code>s3+https://host:port/bucket/key</code>, which name the endpoint
+ *   explicitly</li>
+ * </ul>
+ * Objects are addressed in path style, i.e. as
+ * <code>endpoint/bucket/key</code>.  The length of an object is read with a
+ * HEAD request when the handle is created, and its contents with ranged
+ * GET requests, several of which are made concurrently during sequential
+ * reads.  Requests are not signed, so only objects that allow anonymous
+ * reads are accessible.
+ *
+ * @see URLHandle
+ */
+public class S3Handle extends URLHandle {
+
+  // -- Constants --
+
+  /** Endpoint used for s3:// ids by default. */
+  public static final String DEFAULT_ENDPOINT = "https://s3.amazonaws.com";
+
+  /**
+   * Number of blocks fetched ahead of sequential reads, unless a default
+   * is set with {@link URLHandle#setDefaultPrefetch(int)}.
+   */
+  public static final int DEFAULT_PREFETCH = 4;
+
+  private static final String S3 = "s3://";
+  private static final String S3_HTTP = "s3+http://";
+  private static final String S3_HTTPS = "s3+https://";
+
+  // -- Static fields --
+
+  private static volatile String endpoint = DEFAULT_ENDPOINT;
+
+  // -- Fields --
+
+  private final String bucket;
+  private final String key;
+
+  // -- Constructors --
+
+  /**
+   * Constructs a new S3Handle for the given object.
+   *
+   * @param id an s3://, s3+http:// or s3+https:// id
+   * @throws FileNotFoundException if the object does not exist
+   * @throws IOException if the id is invalid or the object is unreadable
+   */
+  public S3Handle(String id) throws IOException {
+    this(new ObjectId(id));
+  }
+
+  private S3Handle(ObjectId object) throws IOException {
+    super(object.getURL(), head(object));
+    bucket = object.bucket;
+    key = object.key;
+    if (getPrefetch() == 0) setPrefetch(DEFAULT_PREFETCH);
+  }
+
+  // -- S3Handle API methods --
+
+  /**
+   * Set the endpoint against which s3://bucket/key ids are resolved.
+   *
+   * @param url the base URL of the object store,
+   *            e.g. <code>http://localhost:9000</code>
+   */
+  public static void setEndpoint(String url) {
+    if (url == null) url = DEFAULT_ENDPOINT;
+    while (url.endsWith("/")) url = url.substring(0, url.length() - 1);
+    endpoint = url;
+  }
+
+  /**
+   * @return the endpoint against which s3://bucket/key ids are resolved
+   */
+  public static String getEndpoint() {
+    return endpoint;
+  }
+
+  /**
+   * @param id the id to check
+   * @return true if the id names an object in an S3-compatible store
+   */
+  public static boolean canHandleScheme(String id) {
+    return id != null && (id.startsWith(S3) || id.startsWith(S3_HTTP) ||
+      id.startsWith(S3_HTTPS));
+  }
+
+  /** @return the bucket containing this object */
+  public String getBucket() {
+    return bucket;
+  }
+
+  /** @return the key of this object within its bucket */
+  public String getKey() {
+    return key;
+  }
+
+  // -- Package-private methods --
+
+  /**
+   * @param id an S3 id
+   * @return the length of the object, from a HEAD request
+   * @throws FileNotFoundException if there is no such object
+   */
+  static long length(String id) throws IOException {
+    return head(new ObjectId(id)).length;
+  }
+
+  /**
+   * List the objects and common prefixes directly below the given id,
+   * treating '/' as the directory separator.
+   *
+   * @param id an S3 id naming a bucket or a prefix
+   * @return the names of the children, without trailing '/', or null if
+   *         there are none
+   */
+  static String[] list(String id) throws IOException {
+    return list(new ObjectId(id));
+  }
+
+  // -- Helper methods --
+
+  /** @return the length and validators of the given object */
+  private static URLDiskCache.Validators head(ObjectId object)
+    throws IOException
+  {
+    if (object.key.isEmpty() || object.key.endsWith("/")) {
+      throw new FileNotFoundException(object.id + " is not an object");
+    }
+    HttpURLConnection conn =
+      (HttpURLConnection) new URL(object.getURL()).openConnection();
+    try {
+      conn.setRequestMethod("HEAD");
+      int code = conn.getResponseCode();
+      if (code == HttpURLConnection.HTTP_NOT_FOUND) {
+        throw new FileNotFoundException(object.id);
+      }
+      if (code != HttpURLConnection.HTTP_OK) {
+        throw new IOException("HEAD " + object.id + " failed: " + code + " " +
+          conn.getResponseMessage());
+      }
+      long length = conn.getContentLengthLong();
+      if (length < 0) {
+        throw new IOException("No content length for " + object.id);
+      }
+      return new URLDiskCache.Validators(conn.getHeaderField("ETag"),
+        conn.getHeaderField("Last-Modified"), length);
+    }
+    finally {
+      conn.disconnect();
+    }
+  }
+
+  private static String[] list(ObjectId object) throws IOException {
+    String prefix = object.key;
+    if (!prefix.isEmpty() && !prefix.endsWith("/")) prefix += "/";
+    List<String> names = new ArrayList<String>();
+    String token = null;
+    do {
+      StringBuilder query = new StringBuilder("?list-type=2&delimiter=%2F");
+      query.append("&prefix=").append(encode(prefix));
+      if (token != null) {
+        query.append("&continuation-token=").append(encode(token));
+      }
+      URL url = new URL(object.getBucketURL() + query);
+      HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+      int code = conn.getResponseCode();
+      if (code == HttpURLConnection.HTTP_NOT_FOUND) {
+        conn.disconnect();
+        return null;
+      }
+      if (code != HttpURLConnection.HTTP_OK) {
+        conn.disconnect();
+        throw new IOException("Listing " + object.id + " failed: " + code);
+      }
+      try (InputStream in = conn.getInputStream()) {
+        token = parseListing(in, prefix, names);
+      }
+    } while (token != null);
+    return names.isEmpty() ? null : names.toArray(new String[names.size()]);
+  }
+
+  /**
+   * Add the children in a ListObjectsV2 response to the given list.
+   *
+   * @return the continuation token if the listing is truncated, or null
+   */
+  private static String parseListing(InputStream in, String prefix,
+    List<String> names) throws IOException
+  {
+    XMLInputFactory factory = XMLInputFactory.newFactory();
+    factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    try {
+      XMLStreamReader reader = factory.createXMLStreamReader(in);
+      boolean truncated = false;
+      String token = null;
+      String parent = null;
+      while (reader.hasNext()) {
+        if (reader.next() != XMLStreamReader.START_ELEMENT) continue;
+        String element = reader.getLocalName();
+        if ("Contents".equals(element) || "CommonPrefixes".equals(element)) {
+          parent = element;
+        }
+        else if ("Key".equals(element) && "Contents".equals(parent)) {
+          String name = reader.getElementText().substring(prefix.length());
+          // skip the marker object of the directory itself
+          if (!name.isEmpty()) names.add(name);
+        }
+        else if ("Prefix".equals(element) &&
+          "CommonPrefixes".equals(parent))
+        {
+          String name = reader.getElementText().substring(prefix.length());
+          if (name.endsWith("/")) {
+            name = name.substring(0, name.length() - 1);
+          }
+          if (!name.isEmpty()) names.add(name);
+        }
+        else if ("IsTruncated".equals(element)) {
+          truncated = Boolean.parseBoolean(reader.getElementText().trim());
+        }
+        else if ("NextContinuationToken".equals(element)) {
+          token = reader.getElementText();
+        }
+      }
+      reader.close();
+      return truncated ? token : null;
+    }
+    catch (XMLStreamException e) {
+      throw new IOException("Invalid listing", e);
+    }
+  }
+
+  private static String encode(String s) throws UnsupportedEncodingException {
+    return URLEncoder.encode(s, Constants.ENCODING).replace("+", "%20");
+  }
+
+  // -- Helper classes --
+
+  /** Endpoint, bucket and key parsed from an id. */
+  private static final class ObjectId {
+    private final String id;
+    private final String endpoint;
+    private final String bucket;
+    private final String key;
+
+    ObjectId(String id) throws IOException {
+      this.id = id;
+      String path;
+      if (id.startsWith(S3)) {
+        endpoint = S3Handle.endpoint;
+        path = id.substring(S3.length());
+      }
+      else if (id.startsWith(S3_HTTP) || id.startsWith(S3_HTTPS)) {
+        String scheme = id.startsWith(S3_HTTP) ? "http://" : "https://";
+        String rest = id.substring(id.indexOf("://") + 3);
+        int slash = rest.indexOf('/');
+        if (slash < 0) throw new IOException("No bucket in " + id);
+        endpoint = scheme + rest.substring(0, slash);
+        path = rest.substring(slash + 1);
+      }
+      else {
+        throw new IOException("Not an S3 id: " + id);
+      }
+      path = decode(path);
+      int slash = path.indexOf('/');
+      bucket = slash < 0 ? path : path.substring(0, slash);
+      key = slash < 0 ? "" : path.substring(slash + 1);
+      if (bucket.isEmpty()) throw new IOException("No bucket in " + id);
+    }
+
+    /** @return the URL of the bucket, without trailing '/' */
+    String getBucketURL() throws IOException {
+      return toURL("/" + bucket);
+    }
+
+    /** @return the URL of the object */
+    String getURL() throws IOException {
+      return toURL("/" + bucket + "/" + key);
+    }
+
+    private String toURL(String path) throws IOException {
+      try {
+        URI base = new URI(endpoint);
+        String basePath = base.getPath() == null ? "" : base.getPath();
+        return new URI(base.getScheme(), base.getUserInfo(), base.getHost(),
+          base.getPort(), basePath + path, null, null).toASCIIString();
+      }
+      catch (URISyntaxException e) {
+        throw new IOException("Invalid S3 endpoint: " + endpoint, e);
+      }
+    }
+
+    /** Decode any %-escapes left by Location's URI normalization. */
+    private static String decode(String path) {
+      if (path.indexOf('%') < 0) return path;
+      try {
+        return new URI("s3:/" + path).getPath().substring(1);
+      }
+      catch (URISyntaxException e) {
+        return path;
+      }
+    }
+  }
+
+}
@@ -0,0 +1,273 @@
+/*
+ * #%L
+ * Common package for I/O and related utilities
+ * %%
+ * Copyright (C) 2005 - 2016 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.common;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * InputStream that keeps a copy of every byte read from an expensive source,
+ * such as a decompressor or a network connection.  Data is held in memory up
+ * to a configurable limit, and in a temporary file beyond that.  Any position
+ * that has already been read from the source can be returned to with
+ * {@link #position(long)} without touching the source again.
+ *
+ * @see StreamHandle#setSpill(boolean)
+ */
+class SpillInputStream extends InputStream {
+
+  // -- Constants --
+
+  private static final Logger LOGGER =
+    LoggerFactory.getLogger(SpillInputStream.class);
+
+  private static final int CHUNK_SIZE = 65536;
+
+  // -- Fields --
+
+  private InputStream source;
+  private boolean sourceDone = false;
+
+  /** Number of bytes read from the source so far. */
+  private long produced = 0;
+
+  private long position = 0;
+  private long markPosition = 0;
+
+  /** Maximum number of bytes to hold in memory before using a file. */
+  private final long memoryLimit;
+
+  private byte[] memory = new byte[CHUNK_SIZE];
+
+  private File spillFile;
+  private FileChannel channel;
+
+  /** Recently read region of the spill file. */
+  private final byte[] window = new byte[CHUNK_SIZE];
+  private long windowStart = 0;
+  private int windowLength = 0;
+
+  private final byte[] single = new byte[1];
+
+  // -- Constructor --
+
+  /**
+   * @param source the stream whose contents should be kept
+   * @param memoryLimit the number of bytes to hold in memory before
+   *                    spilling to a temporary file
+   */
+  SpillInputStream(InputStream source, long memoryLimit) {
+    this.source = source;
+    this.memoryLimit = Math.min(memoryLimit, Integer.MAX_VALUE - 8);
+  }
+
+  // -- SpillInputStream API methods --
+
+  /**
+   * Move to the given position in the source's data.  Positions beyond the
+   * data read so far are reached lazily on the next read.
+   */
+  void position(long pos) {
+    position = pos;
+  }
+
+  /** @return the current position in the source's data */
+  long position() {
+    return position;
+  }
+
+  // -- InputStream API methods --
+
+  @Override
+  public int read() throws IOException {
+    if (memory != null && position < produced) {
+      return memory[(int) position++] & 0xff;
+    }
+    int n = read(single, 0, 1);
+    return n <= 0 ? -1 : single[0] & 0xff;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (len == 0) return 0;
+    if (position > produced) fill(position);
+    if (position < produced) {
+      int n = (int) Math.min(len, produced - position);
+      readSpill(position, b, off, n);
+      position += n;
+      return n;
+    }
+    if (sourceDone) return -1;
+    int n = source.read(b, off, len);
+    if (n < 0) {
+      sourceDone = true;
+      return -1;
+    }
+    append(b, off, n);
+    position += n;
+    return n;
+  }
+
+  @Override
+  public long skip(long n) throws IOException {
+    if (n <= 0) return 0;
+    long target = position + n;
+    if (target > produced) fill(target);
+    long skipped = Math.min(target, produced) - position;
+    position += skipped;
+    return skipped;
+  }
+
+  @Override
+  public int available() throws IOException {
+    if (position < produced) {
+      return (int) Math.min(Integer.MAX_VALUE, produced - position);
+    }
+    return sourceDone || position > produced ? 0 : source.available();
+  }
+
+  @Override
+  public boolean markSupported() {
+    return true;
+  }
+
+  @Override
+  public synchronized void mark(int readLimit) {
+    markPosition = position;
+  }
+
+  @Override
+  public synchronized void reset() {
+    position = markPosition;
+  }
+
+  @Override
+  public void close() throws IOException {
+    memory = null;
+    try {
+      if (source != null) source.close();
+    }
+    finally {
+      source = null;
+      if (channel != null) channel.close();
+      channel = null;
+      if (spillFile != null && !spillFile.delete()) {
+        LOGGER.debug("Could not delete {}", spillFile);
+      }
+      spillFile = null;
+    }
+  }
+
+  // -- Helper methods --
+
+  /** Read from the source until the given position has been produced. */
+  private void fill(long target) throws IOException {
+    byte[] buf = new byte[CHUNK_SIZE];
+    while (produced < target && !sourceDone) {
+      int n = source.read(buf, 0, buf.length);
+      if (n < 0) sourceDone = true;
+      else append(buf, 0, n);
+    }
+  }
+
+  private void append(byte[] b, int off, int len) throws IOException {
+    if (memory != null && produced + len > memoryLimit) {
+      spillToFile();
+    }
+    if (memory != null) {
+      if (produced + len > memory.length) {
+        long size = Math.max(produced + len, 2L * memory.length);
+        memory = Arrays.copyOf(memory, (int) Math.min(size, memoryLimit));
+      }
+      System.arraycopy(b, off, memory, (int) produced, len);
+    }
+    else {
+      ByteBuffer buf = ByteBuffer.wrap(b, off, len);
+      long pos = produced;
+      while (buf.hasRemaining()) {
+        pos += channel.write(buf, pos);
+      }
+    }
+    produced += len;
+  }
+
+  private void spillToFile() throws IOException {
+    spillFile = File.createTempFile("spill", ".tmp");
+    spillFile.deleteOnExit();
+    channel = FileChannel.open(spillFile.toPath(), StandardOpenOption.READ,
+      StandardOpenOption.WRITE);
+    ByteBuffer buf = ByteBuffer.wrap(memory, 0, (int) produced);
+    long pos = 0;
+    while (buf.hasRemaining()) {
+      pos += channel.write(buf, pos);
+    }
+    memory = null;
+    LOGGER.debug("Spilling stream data to {}", spillFile);
+  }
+
+  private void readSpill(long pos, byte[] b, int off, int len)
+    throws IOException
+  {
+    if (memory != null) {
+      System.arraycopy(memory, (int) pos, b, off, len);
+      return;
+    }
+    if (len >= window.length) {
+      ByteBuffer buf = ByteBuffer.wrap(b, off, len);
+      while (buf.hasRemaining()) {
+        int n = channel.read(buf, pos + buf.position() - off);
+        if (n < 0) throw new IOException("Spill file truncated");
+      }
+      return;
+    }
+    if (pos < windowStart || pos + len > windowStart + windowLength) {
+      windowStart = pos;
+      windowLength = (int) Math.min(window.length, produced - pos);
+      ByteBuffer buf = ByteBuffer.wrap(window, 0, windowLength);
+      while (buf.hasRemaining()) {
+        int n = channel.read(buf, pos + buf.position());
+        if (n < 0) throw new IOException("Spill file truncated");
+      }
+    }
+    System.arraycopy(window, (int) (pos - windowStart), b, off, len);
+  }
+
+}
@@ -36,6 +36,7 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 
@@ -54,6 +55,13 @@ public abstract class StreamHandle implements IRandomAccess {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(StreamHandle.class);
 
+  // -- Static fields --
+
+  private static volatile boolean defaultSpill = false;
+
+  // By default, hold up to 64 MB of spilled data in memory.
+  private static volatile long spillMemoryLimit = 64L * 1024 * 1024;
+
   // -- Fields --
 
   /** Name of the open stream. */
@@ -77,6 +85,12 @@ public abstract class StreamHandle implements IRandomAccess {
   /** Byte ordering of this stream. */
   protected ByteOrder order;
 
+  /** Whether data read from the stream should be kept for later seeks. */
+  private boolean spill;
+
+  /** Copy of the data read so far, if spilling is enabled. */
+  private SpillInputStream spillStream;
+
   // -- Constructor --
 
   /**
@@ -87,6 +101,53 @@ public abstract class StreamHandle implements IRandomAccess {
   public StreamHandle() {
     fp = 0;
     order = ByteOrder.BIG_ENDIAN;
+    spill = defaultSpill;
+  }
+
+  // -- StreamHandle API methods --
+
+  /**
+   * Turn spilling on or off for StreamHandles created after this call.
+   * Spilling is turned off by default.
+   *
+   * When spilling is on, each byte of decompressed or downloaded data is
+   * kept the first time it is read, in memory up to the limit set by
+   * {@link #setSpillMemoryLimit(long)} and in a temporary file beyond that.
+   * Seeking back to any position that has already been read is then
+   * served from the kept copy instead of restarting the stream.
+   *
+   * @param spill true to turn spilling on, false to leave it off
+   */
+  public static void setDefaultSpill(boolean spill) {
+    defaultSpill = spill;
+  }
+
+  /**
+   * Set the number of bytes of spilled data that each handle may hold in
+   * memory before switching to a temporary file.
+   *
+   * @param bytes the in-memory limit, in bytes
+   */
+  public static void setSpillMemoryLimit(long bytes) {
+    spillMemoryLimit = bytes;
+  }
+
+  /**
+   * Turn spilling on or off for this handle.  The change takes effect
+   * the next time the underlying stream is reset.
+   *
+   * @param spill true to keep data for later backward seeks
+   * @see #setDefaultSpill(boolean)
+   */
+  public void setSpill(boolean spill) {
+    this.spill = spill;
+  }
+
+  /**
+   * @return true if this handle keeps data for later backward seeks
+   */
+  public boolean isSpill() {
+    return spill;
   }
 
   // -- IRandomAccess API methods --
@@ -98,8 +159,10 @@ public abstract class StreamHandle implements IRandomAccess {
     length = fp = mark = 0;
     if (stream != null) stream.close();
     if (outStream != null) outStream.close();
+    if (spillStream != null) spillStream.close();
     stream = null;
     outStream = null;
+    spillStream = null;
     file = null;
   }
 
@@ -170,6 +233,12 @@ public abstract class StreamHandle implements IRandomAccess {
   @Override
   public void seek(long pos) throws IOException {
     LOGGER.trace("{}", pos);
+    if (spillStream != null) {
+      spillStream.position(pos);
+      fp = pos;
+      markManager();
+      return;
+    }
     long diff = pos - fp;
     fp = pos;
 
@@ -493,6 +562,47 @@ public abstract class StreamHandle implements IRandomAccess {
    */
   protected abstract void resetStream() throws IOException;
 
+  /**
+   * Create the stream to be used for reading from the given source.
+   * Subclasses should call this from {@link #resetStream()} instead of
+   * wrapping the source directly, so that spilling can be applied.
+   *
+   * @param source the decompressed or downloaded data
+   * @return a stream that reads from the source, and keeps a copy of its
+   *         data if spilling is enabled
+   */
+  protected DataInputStream createStream(InputStream source) {
+    if (spillStream != null) {
+      try {
+        spillStream.close();
+      }
+      catch (IOException e) {
+        LOGGER.debug("Could not close spill", e);
+      }
+      spillStream = null;
+    }
+    if (!spill) return new DataInputStream(source);
+    spillStream = new SpillInputStream(source, spillMemoryLimit);
+    return new DataInputStream(spillStream);
+  }
+
+  /**
+   * Return to the beginning of the stream using the spilled data, if
+   * spilling is enabled and a stream has already been opened.  Subclasses
+   * should call this at the start of {@link #resetStream()}, and skip
+   * reopening the source if it returns true.
+   *
+   * @return true if the stream was rewound without reopening the source
+   */
+  protected boolean rewindSpill() {
+    if (spillStream == null || !spill) return false;
+    spillStream.position(0);
+    fp = 0;
+    mark = 0;
+    stream.mark(RandomAccessInputStream.MAX_OVERHEAD);
+    return true;
+  }
+
   /** Reset the marked position, if necessary. */
   private void markManager() {
     if (fp >= mark + RandomAccessInputStream.MAX_OVERHEAD - 1) {
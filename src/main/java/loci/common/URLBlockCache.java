@@ -0,0 +1,214 @@
+/*
+ * #%L
+ * Common package for I/O and related utilities
+ * %%
+ * Copyright (C) 2005 - 2016 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.common;
+
+import java.io.IOException;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+/**
+ * Read-through cache of fixed-size, aligned blocks of remote resources.
+ * Blocks are keyed by URL, version and block index, so a single cache can
+ * be shared by any number of {@link URLHandle}s, including several open on
+ * the same URL.  The version comes from the resource's ETag and
+ * Last-Modified validators, so blocks of a resource that has changed are
+ * never mixed with blocks of the new version.  The total size of the
+ * cached blocks is bounded; the least recently used blocks are evicted
+ * first.
+ *
+ * Caching only applies to handles that read with HTTP range requests.
+ *
+ * @see URLHandle#setDefaultBlockCache(URLBlockCache)
+ * @see URLHandle#setBlockCache(URLBlockCache)
+ */
+public class URLBlockCache {
+
+  // -- Constants --
+
+  /** Default block size: 1 MB. */
+  public static final int DEFAULT_BLOCK_SIZE = 1024 * 1024;
+
+  /** Default bound on the size of all cached blocks: 64 MB. */
+  public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+  // -- Fields --
+
+  private final int blockSize;
+  private final long maxBytes;
+  private final Cache<Key, byte[]> blocks;
+  private final AtomicLong size = new AtomicLong();
+
+  // -- Constructors --
+
+  /** Construct a cache with the default block size and bound. */
+  public URLBlockCache() {
+    this(DEFAULT_BLOCK_SIZE, DEFAULT_MAX_BYTES);
+  }
+
+  /**
+   * Construct a cache with the given block size and bound.
+   *
+   * @param blockSize the size in bytes of each block; blocks start at
+   *                  multiples of this size
+   * @param maxBytes the maximum total size in bytes of cached blocks
+   */
+  public URLBlockCache(int blockSize, long maxBytes) {
+    if (blockSize <= 0) {
+      throw new IllegalArgumentException("Invalid block size: " + blockSize);
+    }
+    if (maxBytes < 0) {
+      throw new IllegalArgumentException("Invalid cache size: " + maxBytes);
+    }
+    this.blockSize = blockSize;
+    this.maxBytes = maxBytes;
+    // a single segment keeps the bound and LRU order exact across all
+    // blocks; lookups only happen once per block read, so contention is low
+    blocks = CacheBuilder.newBuilder()
+      .concurrencyLevel(1)
+      .maximumWeight(maxBytes)
+      .<Key, byte[]>weigher((key, block) -> block.length)
+      .<Key, byte[]>removalListener(n -> size.addAndGet(-n.getValue().length))
+      .recordStats()
+      .build();
+  }
+
+  // -- URLBlockCache API methods --
+
+  /** @return the size in bytes of each block */
+  public int getBlockSize() {
+    return blockSize;
+  }
+
+  /** @return the maximum total size in bytes of cached blocks */
+  public long getMaxBytes() {
+    return maxBytes;
+  }
+
+  /** @return the total size in bytes of the blocks currently cached */
+  public long getSize() {
+    return size.get();
+  }
+
+  /** @return the number of blocks currently cached */
+  public long getBlockCount() {
+    return blocks.size();
+  }
+
+  /**
+   * @return hit, miss, load and eviction counts since this cache was
+   *         created
+   */
+  public CacheStats getStats() {
+    return blocks.stats();
+  }
+
+  /**
+   * Discard all cached blocks of the given URL, of any version.
+   *
+   * @param url the URL whose blocks should be discarded
+   */
+  public void invalidate(String url) {
+    blocks.asMap().keySet().removeIf(key -> key.url.equals(url));
+  }
+
+  /** Discard all cached blocks. */
+  public void clear() {
+    blocks.invalidateAll();
+  }
+
+  // -- Package-private methods --
+
+  /**
+   * Get a block, calling the given loader if it is not cached.
+   * Concurrent requests for the same missing block wait for a single load.
+   *
+   * @param version the version of the resource, or null if unknown
+   */
+  byte[] getBlock(String url, String version, long index,
+    Callable<byte[]> loader)
+    throws IOException
+  {
+    try {
+      return blocks.get(new Key(url, version, index), () -> {
+        byte[] block = loader.call();
+        size.addAndGet(block.length);
+        return block;
+      });
+    }
+    catch (ExecutionException | UncheckedExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) throw (IOException) cause;
+      throw new IOException(cause);
+    }
+  }
+
+  /** @return true if the given block is cached; not counted in stats */
+  boolean contains(String url, String version, long index) {
+    return blocks.asMap().containsKey(new Key(url, version, index));
+  }
+
+  // -- Helper classes --
+
+  private static final class Key {
+    private final String url;
+    private final String version;
+    private final long index;
+
+    Key(String url, String version, long index) {
+      this.url = url;
+      this.version = version;
+      this.index = index;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) return false;
+      Key k = (Key) o;
+      return index == k.index && url.equals(k.url) &&
+        Objects.equals(version, k.version);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(url, version, index);
+    }
+  }
+
+}
@@ -0,0 +1,414 @@
+/*
+ * #%L
+ * Common package for I/O and related utilities
+ * %%
+ * Copyright (C) 2005 - 2016 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.common;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+
+import com.google.common.hash.Hashing;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Persistent cache of the contents of remote resources in a local
+ * directory, so that resources read by one JVM need not be downloaded again
+ * by the next.
+ *
+ * Contents are addressed by URL together with the resource's ETag and
+ * Last-Modified validators, so a changed resource is never served from
+ * stale data.  When a handle is opened, the stored validators are sent in a
+ * conditional request; a "304 Not Modified" response means that the cached
+ * contents can be used.  Contents are filled block by block as they are
+ * read, and cached blocks are read back with positional reads of a local
+ * file.  When the cached contents exceed the disk quota, the least recently
+ * used resources are removed.
+ *
+ * Several JVMs may share a cache directory.  Only resources served with a
+ * validator and with support for range requests are cached.
+ *
+ * @see URLHandle#setDefaultDiskCache(URLDiskCache)
+ */
+public class URLDiskCache {
+
+  // -- Constants --
+
+  private static final Logger LOGGER =
+    LoggerFactory.getLogger(URLDiskCache.class);
+
+  /** Default size of the blocks in which presence is recorded: 64 KB. */
+  public static final int DEFAULT_BLOCK_SIZE = 65536;
+
+  private static final String URL_SUFFIX = ".url";
+  private static final String DATA_SUFFIX = ".data";
+  private static final String BLOCKS_SUFFIX = ".blocks";
+
+  // -- Fields --
+
+  private final File directory;
+  private final long maxBytes;
+  private final int blockSize;
+
+  /** Number of bytes of cached contents. */
+  private long size;
+
+  // -- Constructors --
+
+  /**
+   * Construct a cache in the given directory, with the default block size.
+   *
+   * @param directory the directory in which to store cached contents;
+   *                  created if it does not exist
+   * @param maxBytes the disk quota, in bytes
+   * @throws IOException if the directory cannot be created
+   */
+  public URLDiskCache(File directory, long maxBytes) throws IOException {
+    this(directory, maxBytes, DEFAULT_BLOCK_SIZE);
+  }
+
+  /**
+   * Construct a cache in the given directory.
+   *
+   * @param directory the directory in which to store cached contents;
+   *                  created if it does not exist
+   * @param maxBytes the disk quota, in bytes
+   * @param blockSize the granularity, in bytes, at which cached contents
+   *                  are recorded
+   * @throws IOException if the directory cannot be created
+   */
+  public URLDiskCache(File directory, long maxBytes, int blockSize)
+    throws IOException
+  {
+    if (blockSize <= 0) {
+      throw new IllegalArgumentException("Invalid block size: " + blockSize);
+    }
+    Files.createDirectories(directory.toPath());
+    this.directory = directory;
+    this.maxBytes = maxBytes;
+    this.blockSize = blockSize;
+    for (File blocks : listFiles(BLOCKS_SUFFIX)) {
+      size += countBlocks(blocks) * (long) blockSize;
+    }
+  }
+
+  // -- URLDiskCache API methods --
+
+  /** @return the directory in which contents are stored */
+  public File getDirectory() {
+    return directory;
+  }
+
+  /** @return the disk quota, in bytes */
+  public long getMaxBytes() {
+    return maxBytes;
+  }
+
+  /** @return the granularity at which cached contents are recorded */
+  public int getBlockSize() {
+    return blockSize;
+  }
+
+  /**
+   * @return the approximate number of bytes of cached contents written or
+   *         found by this instance
+   */
+  public synchronized long getSize() {
+    return size;
+  }
+
+  /** Remove all cached contents. */
+  public synchronized void clear() {
+    for (File f : listFiles(null)) {
+      if (!f.delete()) LOGGER.debug("Could not delete {}", f);
+    }
+    size = 0;
+  }
+
+  // -- Package-private methods --
+
+  /**
+   * Look up the validators stored for the given URL.
+   *
+   * @return the stored validators, or null if nothing is cached for the URL
+   */
+  Validators lookup(String url) {
+    File index = new File(directory, hash(url) + URL_SUFFIX);
+    if (!index.exists()) return null;
+    Properties p = new Properties();
+    try (InputStream in = new FileInputStream(index)) {
+      p.load(in);
+    }
+    catch (IOException e) {
+      LOGGER.debug("Could not read {}", index, e);
+      return null;
+    }
+    if (!url.equals(p.getProperty("url"))) return null;
+    long length;
+    try {
+      length = Long.parseLong(p.getProperty("length"));
+    }
+    catch (NumberFormatException e) {
+      // a truncated or edited index; the cache is optional, so ignore it
+      LOGGER.debug("Invalid length in {}", index, e);
+      return null;
+    }
+    Validators v = new Validators(p.getProperty("etag"),
+      p.getProperty("lastModified"), length);
+    if (!new File(directory, v.key(url) + DATA_SUFFIX).exists()) return null;
+    return v;
+  }
+
+  /**
+   * Open the cached contents of the given version of a URL, creating them
+   * if needed, and record the version as the URL's current one.
+   *
+   * @return the cached contents, or null if the resource cannot be cached
+   */
+  Entry open(String url, Validators validators) throws IOException {
+    if (validators.etag == null && validators.lastModified == null) {
+      return null;
+    }
+    String key = validators.key(url);
+    Properties p = new Properties();
+    p.setProperty("url", url);
+    if (validators.etag != null) p.setProperty("etag", validators.etag);
+    if (validators.lastModified != null) {
+      p.setProperty("lastModified", validators.lastModified);
+    }
+    p.setProperty("length", String.valueOf(validators.length));
+    File index = new File(directory, hash(url) + URL_SUFFIX);
+    File tmp = File.createTempFile(index.getName(), ".tmp", directory);
+    try (OutputStream out = new FileOutputStream(tmp)) {
+      p.store(out, null);
+    }
+    Files.move(tmp.toPath(), index.toPath(),
+      StandardCopyOption.REPLACE_EXISTING);
+    return new Entry(key, validators.length);
+  }
+
+  // -- Helper methods --
+
+  /** Record newly cached bytes, and evict old contents if over quota. */
+  private synchronized void added(long bytes, String current) {
+    size += bytes;
+    if (size <= maxBytes) return;
+    List<File> data = listFiles(DATA_SUFFIX);
+    data.sort(Comparator.comparingLong(File::lastModified));
+    for (File f : data) {
+      if (size <= maxBytes) break;
+      String key = f.getName().substring(0,
+        f.getName().length() - DATA_SUFFIX.length());
+      if (key.equals(current)) continue;
+      File blocks = new File(directory, key + BLOCKS_SUFFIX);
+      long freed = countBlocks(blocks) * (long) blockSize;
+      if (f.delete() | blocks.delete()) {
+        LOGGER.debug("Evicted {} ({} bytes)", key, freed);
+        size -= freed;
+      }
+    }
+  }
+
+  private List<File> listFiles(String suffix) {
+    File[] files = directory.listFiles((dir, name) -> suffix == null ?
+      name.endsWith(URL_SUFFIX) || name.endsWith(DATA_SUFFIX) ||
+      name.endsWith(BLOCKS_SUFFIX) : name.endsWith(suffix));
+    return files == null ? new ArrayList<File>() :
+      new ArrayList<File>(Arrays.asList(files));
+  }
+
+  private static long countBlocks(File blocks) {
+    try {
+      long count = 0;
+      for (byte b : Files.readAllBytes(blocks.toPath())) {
+        if (b != 0) count++;
+      }
+      return count;
+    }
+    catch (IOException e) {
+      return 0;
+    }
+  }
+
+  private static String hash(String s) {
+    return Hashing.sha256().hashString(s, StandardCharsets.UTF_8).toString();
+  }
+
+  // -- Helper classes --
+
+  /** Validators and length of one version of a resource. */
+  static final class Validators {
+    final String etag;
+    final String lastModified;
+    final long length;
+
+    Validators(String etag, String lastModified, long length) {
+      this.etag = etag;
+      this.lastModified = lastModified;
+      this.length = length;
+    }
+
+    /** @return a string that differs between versions of a resource */
+    String version() {
+      return etag + "\n" + lastModified + "\n" + length;
+    }
+
+    /** @return the key under which this version's contents are stored */
+    String key(String url) {
+      return hash(url + "\n" + version());
+    }
+  }
+
+  /** Cached contents of one version of a resource. */
+  final class Entry {
+    private final String key;
+    private final long length;
+    private final FileChannel data;
+    private final FileChannel blocks;
+
+    /** Blocks known to be present. */
+    private final boolean[] present;
+
+    Entry(String key, long length) throws IOException {
+      this.key = key;
+      this.length = length;
+      File dataFile = new File(directory, key + DATA_SUFFIX);
+      data = FileChannel.open(dataFile.toPath(), StandardOpenOption.CREATE,
+        StandardOpenOption.READ, StandardOpenOption.WRITE);
+      blocks = FileChannel.open(
+        new File(directory, key + BLOCKS_SUFFIX).toPath(),
+        StandardOpenOption.CREATE, StandardOpenOption.READ,
+        StandardOpenOption.WRITE);
+      present = new boolean[(int) ((length + blockSize - 1) / blockSize)];
+      // mark as recently used
+      if (!dataFile.setLastModified(System.currentTimeMillis())) {
+        LOGGER.debug("Could not update {}", dataFile);
+      }
+    }
+
+    /**
+     * Read cached contents into the given array.
+     *
+     * @param start the offset of the first byte to read
+     * @param b the array to fill
+     * @return false if any of the requested bytes are not cached
+     */
+    boolean read(long start, byte[] b) throws IOException {
+      if (!contains(start, b.length)) return false;
+      ByteBuffer buf = ByteBuffer.wrap(b);
+      while (buf.hasRemaining()) {
+        if (data.read(buf, start + buf.position()) < 0) return false;
+      }
+      return true;
+    }
+
+    /**
+     * @param start the offset of the first byte
+     * @param len the number of bytes
+     * @return true if all of the given bytes are cached
+     */
+    boolean contains(long start, int len) throws IOException {
+      long first = start / blockSize;
+      long last = (start + len - 1) / blockSize;
+      for (long i=first; i<=last; i++) {
+        if (!isPresent((int) i)) return false;
+      }
+      return true;
+    }
+
+    /**
+     * Store the given contents.
+     *
+     * @param start the offset of the first byte
+     * @param b the contents
+     */
+    void write(long start, byte[] b) throws IOException {
+      ByteBuffer buf = ByteBuffer.wrap(b);
+      while (buf.hasRemaining()) {
+        data.write(buf, start + buf.position());
+      }
+      long end = start + b.length;
+      long first = (start + blockSize - 1) / blockSize;
+      long added = 0;
+      for (long i=first; i<present.length; i++) {
+        long blockEnd = Math.min(length, (i + 1) * blockSize);
+        if (blockEnd > end) break;
+        if (!isPresent((int) i)) {
+          blocks.write(ByteBuffer.wrap(new byte[] {1}), i);
+          present[(int) i] = true;
+          added += blockSize;
+        }
+      }
+      if (added > 0) added(added, key);
+    }
+
+    /** @return the granularity at which contents are recorded */
+    int getBlockSize() {
+      return blockSize;
+    }
+
+    void close() throws IOException {
+      try {
+        data.close();
+      }
+      finally {
+        blocks.close();
+      }
+    }
+
+    private boolean isPresent(int index) throws IOException {
+      if (present[index]) return true;
+      ByteBuffer b = ByteBuffer.allocate(1);
+      // another handle or JVM may have added the block
+      if (blocks.read(b, index) == 1 && b.get(0) != 0) {
+        present[index] = true;
+      }
+      return present[index];
+    }
+  }
+
+}
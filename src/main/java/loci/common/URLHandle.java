@@ -35,6 +35,7 @@ package loci.common;
 import java.io.BufferedInputStream;
 import java.io.DataInputStream;
 import java.io.IOException;
+import java.net.HttpURLConnection;
 import java.net.URL;
 import java.net.URLConnection;
 
@@ -42,6 +43,18 @@ import java.net.URLConnection;
  * Provides random access to URLs using the IRandomAccess interface.
  * Instances of URLHandle are read-only.
  *
+ * If an HTTP server advertises "Accept-Ranges: bytes" and reports the
+ * length of the resource, seeks are served with byte range requests, so
+ * that each contiguous run of reads costs a single request.  Otherwise
+ * the resource is streamed from the beginning, and backward seeks restart
+ * the download.
+ *
+ * Handles that use range requests can read through a shared
+ * {@link URLBlockCache}, so that repeated reads of the same region of a
+ * URL are served from memory, and through a persistent
+ * {@link URLDiskCache}, so that resources need not be downloaded again by
+ * later processes.
+ *
  * @see IRandomAccess
  * @see StreamHandle
  * @see java.net.URLConnection
@@ -50,6 +63,14 @@ import java.net.URLConnection;
  */
 public class URLHandle extends StreamHandle {
 
+  // -- Static fields --
+
+  private static volatile URLBlockCache defaultBlockCache = null;
+
+  private static volatile int defaultPrefetch = 0;
+
+  private static volatile URLDiskCache defaultDiskCache = null;
+
   // -- Fields --
 
   /** URL of open socket */
@@ -58,6 +79,21 @@ public class URLHandle extends StreamHandle {
   /** Socket underlying this stream */
   private URLConnection conn;
 
+  /** Range request stream, if the server supports byte ranges. */
+  private RangeInputStream ranges;
+
+  /** Block cache used by the range request stream, or null. */
+  private URLBlockCache blockCache = defaultBlockCache;
+
+  /** Number of blocks fetched ahead of sequential reads. */
+  private int prefetch = defaultPrefetch;
+
+  /** Local disk cache of the resource's contents, or null. */
+  private URLDiskCache diskCache = defaultDiskCache;
+
+  /** Validators of the version of the resource being read, if known. */
+  private URLDiskCache.Validators validators;
+
   // -- Constructors --
 
   /**
@@ -74,12 +110,37 @@ public class URLHandle extends StreamHandle {
     resetStream();
   }
 
+  /**
+   * Constructs a new URLHandle that reads the given URL with range requests
+   * only.  No request is made until the first read.
+   *
+   * @param url the fully qualified URL of a server that supports byte
+   *            range requests
+   * @param head the validators and length of the resource, as returned
+   *             by a HEAD request
+   * @throws IOException if the URL is invalid
+   */
+  URLHandle(String url, URLDiskCache.Validators head) throws IOException {
+    this.url = url;
+    this.length = head.length;
+    this.validators = head;
+    openRanges(new URL(url), null);
+  }
+
   // -- IRandomAccess API methods --
 
   /* @see IRandomAccess#seek(long) */
   @Override
   public void seek(long pos) throws IOException {
-    if (pos < fp && pos >= mark) {
+    if (ranges != null) {
+      ranges.position(pos);
+      fp = pos;
+    }
+    else if (isSpill()) {
+      // backward seeks are served from the spilled data
+      super.seek(pos);
+    }
+    else if (pos < fp && pos >= mark) {
       try {
         // try to reset to the marked position first
         // if it works, this is faster
@@ -97,22 +158,212 @@ public class URLHandle extends StreamHandle {
     else super.seek(pos);
   }
 
+  /* @see IRandomAccess#close() */
+  @Override
+  public void close() throws IOException {
+    super.close();
+    ranges = null;
+  }
+
+  // -- URLHandle API methods --
+
+  /**
+   * Set the block cache used by URLHandles created after this call.
+   * By default no block cache is used.
+   *
+   * @param cache the cache to share, or null to turn caching off
+   */
+  public static void setDefaultBlockCache(URLBlockCache cache) {
+    defaultBlockCache = cache;
+  }
+
+  /**
+   * @return the block cache used by new URLHandles, or null
+   */
+  public static URLBlockCache getDefaultBlockCache() {
+    return defaultBlockCache;
+  }
+
+  /**
+   * Set the block cache used by this handle.  The cache is only used
+   * if the server supports range requests.
+   *
+   * @param cache the cache to use, or null to turn caching off
+   */
+  public void setBlockCache(URLBlockCache cache) throws IOException {
+    blockCache = cache;
+    if (ranges != null) ranges.setCache(cache);
+  }
+
+  /**
+   * @return the block cache used by this handle, or null
+   */
+  public URLBlockCache getBlockCache() {
+    return blockCache;
+  }
+
+  /**
+   * Set the number of blocks that URLHandles created after this call fetch
+   * concurrently ahead of sequential reads.  Prefetching is off by default.
+   *
+   * @param blocks the number of blocks, or 0 to turn prefetching off
+   * @see #setPrefetch(int)
+   */
+  public static void setDefaultPrefetch(int blocks) {
+    defaultPrefetch = blocks;
+  }
+
+  /**
+   * Set the number of blocks that this handle fetches concurrently ahead of
+   * sequential reads.  Once two consecutive blocks have been read, each of
+   * the following blocks is requested over its own pooled connection, and
+   * the blocks are returned in order as they arrive.  This can use more of
+   * the available bandwidth than a single connection, particularly to
+   * object storage.  Blocks are the size of the block cache's blocks if one
+   * is set, and {@link URLBlockCache#DEFAULT_BLOCK_SIZE} otherwise.
+   *
+   * Prefetching is only used if the server supports range requests.
+   *
+   * @param blocks the number of blocks, or 0 to turn prefetching off
+   */
+  public void setPrefetch(int blocks) throws IOException {
+    prefetch = blocks;
+    if (ranges != null) ranges.setPrefetch(blocks);
+  }
+
+  /**
+   * @return the number of blocks fetched ahead of sequential reads
+   */
+  public int getPrefetch() {
+    return prefetch;
+  }
+
+  /**
+   * Set the local disk cache used by URLHandles created after this call.
+   * By default no disk cache is used.
+   *
+   * @param cache the cache to use, or null to turn disk cacheing off
+   * @see #setDiskCache(URLDiskCache)
+   */
+  public static void setDefaultDiskCache(URLDiskCache cache) {
+    defaultDiskCache = cache;
+  }
+
+  /**
+   * @return the disk cache used by new URLHandles, or null
+   */
+  public static URLDiskCache getDefaultDiskCache() {
+    return defaultDiskCache;
+  }
+
+  /**
+   * Set the local disk cache used by this handle.  Blocks read from the
+   * server are stored in the cache, and blocks already in the cache are
+   * read from local disk.  The disk cache is only used if the server
+   * supports range requests and sends an ETag or Last-Modified header.
+   *
+   * If a disk cache is set before the handle is created, with
+   * {@link #setDefaultDiskCache(URLDiskCache)}, the cached version of the
+   * resource is revalidated with a conditional request, and no contents are
+   * downloaded if it has not changed.
+   *
+   * @param cache the cache to use, or null to turn disk cacheing off
+   */
+  public void setDiskCache(URLDiskCache cache) throws IOException {
+    diskCache = cache;
+    if (ranges != null) {
+      ranges.setDiskEntry(cache == null || validators == null ? null :
+        cache.open(url, validators));
+    }
+  }
+
+  /**
+   * @return the disk cache used by this handle, or null
+   */
+  public URLDiskCache getDiskCache() {
+    return diskCache;
+  }
+
+  /**
+   * @return true if this handle reads with HTTP byte range requests
+   */
+  public boolean isRangeRequests() {
+    return ranges != null;
+  }
+
+  // -- DataInput API methods --
+
+  /* @see StreamHandle#skipBytes(long) */
+  @Override
+  public long skipBytes(long n) throws IOException {
+    if (ranges == null) return super.skipBytes(n);
+    long skipped = Math.max(0, Math.min(n, length - fp));
+    seek(fp + skipped);
+    return skipped;
+  }
+
   // -- StreamHandle API methods --
 
   /* @see StreamHandle#resetStream() */
   @Override
   protected void resetStream() throws IOException {
-    conn = (new URL(url)).openConnection();
-    stream = new DataInputStream(new BufferedInputStream(
-      conn.getInputStream(), RandomAccessInputStream.MAX_OVERHEAD));
+    if (ranges != null) {
+      seek(0);
+      mark = 0;
+      return;
+    }
+    if (rewindSpill()) return;
+    URL u = new URL(url);
+    conn = u.openConnection();
     fp = 0;
     mark = 0;
-    length = conn.getContentLength();
+    URLDiskCache.Validators cached = null;
+    if (diskCache != null && conn instanceof HttpURLConnection) {
+      cached = diskCache.lookup(url);
+      if (cached != null && cached.etag != null) {
+        conn.setRequestProperty("If-None-Match", cached.etag);
+      }
+      if (cached != null && cached.lastModified != null) {
+        conn.setRequestProperty("If-Modified-Since", cached.lastModified);
+      }
+    }
+    if (cached != null && ((HttpURLConnection) conn).getResponseCode() ==
+      HttpURLConnection.HTTP_NOT_MODIFIED)
+    {
+      // the cached version is current, so nothing needs to be downloaded
+      length = cached.length;
+      validators = cached;
+      openRanges(u, null);
+      return;
+    }
+    length = conn.getContentLengthLong();
+    if (conn instanceof HttpURLConnection && length >= 0 &&
+      "bytes".equalsIgnoreCase(conn.getHeaderField("Accept-Ranges")))
+    {
+      validators = new URLDiskCache.Validators(conn.getHeaderField("ETag"),
+        conn.getHeaderField("Last-Modified"), length);
+      openRanges(u, (HttpURLConnection) conn);
+      return;
+    }
+    stream = createStream(new BufferedInputStream(
+      conn.getInputStream(), RandomAccessInputStream.MAX_OVERHEAD));
     if (stream != null) stream.mark(RandomAccessInputStream.MAX_OVERHEAD);
   }
 
   // -- Helper methods --
 
+  /** Switch to reading with range requests. */
+  private void openRanges(URL u, HttpURLConnection first) throws IOException {
+    ranges = new RangeInputStream(u,
+      validators == null ? null : validators.version(), length, first);
+    ranges.setCache(blockCache);
+    ranges.setPrefetch(prefetch);
+    if (diskCache != null && validators != null) {
+      ranges.setDiskEntry(diskCache.open(url, validators));
+    }
+    stream = new DataInputStream(ranges);
+  }
+
   /** Skip over the given number of bytes. */
   private void skip(long bytes) throws IOException {
     long skipped = 0;
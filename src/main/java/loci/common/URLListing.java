@@ -0,0 +1,165 @@
+/*
+ * #%L
+ * Common package for I/O and related utilities
+ * %%
+ * Copyright (C) 2005 - 2016 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.common;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Helpers for listing the contents of a remote directory from its HTML
+ * index page.
+ *
+ * @see Location#list(boolean)
+ */
+final class URLListing {
+
+  // -- Constructor --
+
+  private URLListing() { }
+
+  // -- URLListing API methods --
+
+  /**
+   * Read the targets of the links in an HTML page, in a single pass over
+   * the page.  Only links that name something inside the listed directory
+   * are kept: query strings, fragments, absolute URLs and parent
+   * references are skipped.
+   *
+   * @param in the page to read
+   * @param links the collection to which the relative link targets are
+   *              added, in page order
+   * @return false if the page does not look like a directory listing,
+   *         i.e. an absolute path follows a relative link
+   */
+  static boolean readLinks(Reader in, Collection<String> links)
+    throws IOException
+  {
+    boolean foundRelative = false;
+    int c = in.read();
+    while (c >= 0) {
+      if (c != '<') {
+        c = in.read();
+        continue;
+      }
+      c = in.read();
+      if (c != 'a' && c != 'A') continue;
+      c = in.read();
+      if (!Character.isWhitespace(c)) continue;
+      String href = readHref(in);
+      c = in.read();
+      if (href == null || href.isEmpty()) continue;
+
+      if (href.startsWith("/")) {
+        if (foundRelative) return false;
+        continue;
+      }
+      if (href.startsWith("?") || href.startsWith("#") ||
+        href.startsWith("..") || href.startsWith("./") ||
+        href.indexOf(':') >= 0)
+      {
+        continue;
+      }
+      foundRelative = true;
+      links.add(href);
+    }
+    return true;
+  }
+
+  /**
+   * Keep the Locations that exist, checking them concurrently with
+   * {@link LocationStat#stat(Collection)}.
+   *
+   * @param candidates the Locations to check
+   * @return the Locations that exist, in the same order
+   */
+  static List<Location> filterExisting(List<Location> candidates) {
+    List<LocationInfo> infos = LocationStat.stat(candidates);
+    List<Location> existing = new ArrayList<Location>();
+    for (int i=0; i<candidates.size(); i++) {
+      if (infos.get(i).exists()) existing.add(candidates.get(i));
+    }
+    return existing;
+  }
+
+  // -- Helper methods --
+
+  /**
+   * Read the attributes of a tag up to the closing '&gt;'.
+   * @return the value of the href attribute, or null
+   */
+  private static String readHref(Reader in) throws IOException {
+    String href = null;
+    StringBuilder name = new StringBuilder();
+    StringBuilder value = new StringBuilder();
+    int c = in.read();
+    while (c >= 0 && c != '>') {
+      if (Character.isWhitespace(c)) {
+        c = in.read();
+        continue;
+      }
+      name.setLength(0);
+      while (c >= 0 && c != '>' && c != '=' && !Character.isWhitespace(c)) {
+        name.append((char) c);
+        c = in.read();
+      }
+      while (c >= 0 && Character.isWhitespace(c)) c = in.read();
+      if (c != '=') continue;
+      c = in.read();
+      while (c >= 0 && Character.isWhitespace(c)) c = in.read();
+      value.setLength(0);
+      if (c == '"' || c == '\'') {
+        int quote = c;
+        c = in.read();
+        while (c >= 0 && c != quote) {
+          value.append((char) c);
+          c = in.read();
+        }
+        if (c >= 0) c = in.read();
+      }
+      else {
+        while (c >= 0 && c != '>' && !Character.isWhitespace(c)) {
+          value.append((char) c);
+          c = in.read();
+        }
+      }
+      if ("href".equalsIgnoreCase(name.toString())) {
+        href = value.toString().trim();
+      }
+    }
+    return href;
+  }
+
+}
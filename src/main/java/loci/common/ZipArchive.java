@@ -0,0 +1,145 @@
+/*
+ * #%L
+ * Common package for I/O and related utilities
+ * %%
+ * Copyright (C) 2005 - 2016 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.common;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Random access to the entries of a Zip file.  The central directory is read
+ * once when the archive is opened, after which a {@link ZipHandle} for any
+ * entry can be obtained without scanning the archive.
+ *
+ * ZipArchive instances are immutable and may be shared between threads.
+ * Each handle returned by {@link #getHandle(String)} has its own underlying
+ * file handle, so different handles can be read concurrently; as with other
+ * {@link IRandomAccess} implementations, a single handle must not be used
+ * by more than one thread at a time.
+ *
+ * @see ZipHandle
+ */
+public class ZipArchive {
+
+  // -- Fields --
+
+  private final String file;
+  private final ZipCentralDirectory directory;
+  private final List<String> entryNames;
+
+  // -- Constructor --
+
+  /**
+   * Constructs a new ZipArchive by reading the central directory of the
+   * specified Zip file.
+   *
+   * @param file a name that can be passed to
+   *        {@link Location#getHandle(String, boolean, boolean)}
+   * @throws HandleException if the file does not have a central directory
+   * @throws IOException if the file cannot be read
+   */
+  public ZipArchive(String file) throws IOException {
+    this.file = file;
+    try (RandomAccessInputStream in = new RandomAccessInputStream(
+      Location.getHandle(file, false, false), file))
+    {
+      directory = ZipCentralDirectory.read(in);
+    }
+    if (directory == null) {
+      throw new HandleException(file + " is not a Zip file");
+    }
+    List<String> names = new ArrayList<String>(directory.size());
+    for (ZipCentralDirectory.Entry e : directory.getEntries()) {
+      names.add(e.getName());
+    }
+    entryNames = Collections.unmodifiableList(names);
+  }
+
+  // -- ZipArchive API methods --
+
+  /**
+   * @return the name of the Zip file
+   */
+  public String getFile() {
+    return file;
+  }
+
+  /**
+   * @return the names of all entries, in central directory order
+   */
+  public List<String> getEntryNames() {
+    return entryNames;
+  }
+
+  /**
+   * @return the number of entries
+   */
+  public int getEntryCount() {
+    return entryNames.size();
+  }
+
+  /**
+   * @param name the name of an entry
+   * @return true if the archive contains an entry with the given name
+   */
+  public boolean hasEntry(String name) {
+    return directory.getEntry(name) != null;
+  }
+
+  /**
+   * @param name the name of an entry
+   * @return the uncompressed size of the entry, or -1 if it does not exist
+   */
+  public long getEntrySize(String name) {
+    ZipCentralDirectory.Entry entry = directory.getEntry(name);
+    return entry == null ? -1 : entry.getSize();
+  }
+
+  /**
+   * Open a new, independent handle to the given entry.
+   *
+   * @param name the name of an entry
+   * @return a read-only handle to the entry's uncompressed data
+   * @throws HandleException if the archive has no entry with the given name
+   * @throws IOException if the entry cannot be opened
+   */
+  public ZipHandle getHandle(String name) throws IOException {
+    ZipCentralDirectory.Entry entry = directory.getEntry(name);
+    if (entry == null) {
+      throw new HandleException("No entry " + name + " in " + file);
+    }
+    return new ZipHandle(file, entry);
+  }
+
+}
@@ -0,0 +1,316 @@
+/*
+ * #%L
+ * Common package for I/O and related utilities
+ * %%
+ * Copyright (C) 2005 - 2016 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.common;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Parsed central directory of a Zip file.  The directory is read once from
+ * the end of the archive, so that any entry can be located without scanning
+ * the local headers.  Zip64 archives are supported.
+ *
+ * @see ZipHandle
+ */
+class ZipCentralDirectory {
+
+  // -- Constants --
+
+  private static final int EOCD_SIGNATURE = 0x06054b50;
+  private static final int ZIP64_EOCD_SIGNATURE = 0x06064b50;
+  private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+  private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+  private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+
+  private static final int EOCD_LENGTH = 22;
+  private static final int ZIP64_LOCATOR_LENGTH = 20;
+  private static final int ZIP64_EOCD_LENGTH = 56;
+  private static final int CENTRAL_HEADER_LENGTH = 46;
+  private static final int LOCAL_HEADER_LENGTH = 30;
+  private static final int MAX_COMMENT_LENGTH = 0xffff;
+
+  private static final int ZIP64_EXTRA_ID = 0x0001;
+
+  /** Compression method for entries that are not compressed. */
+  public static final int STORED = 0;
+
+  /** Compression method for deflated entries. */
+  public static final int DEFLATED = 8;
+
+  // -- Fields --
+
+  private final List<Entry> entries;
+  private final Map<String, Entry> entryMap;
+
+  // -- Constructor --
+
+  private ZipCentralDirectory(List<Entry> entries) {
+    this.entries = Collections.unmodifiableList(entries);
+    Map<String, Entry> map = new HashMap<String, Entry>();
+    for (Entry e : entries) {
+      if (!map.containsKey(e.getName())) map.put(e.getName(), e);
+    }
+    this.entryMap = map;
+  }
+
+  // -- ZipCentralDirectory API methods --
+
+  /**
+   * Read the central directory from the given stream.
+   *
+   * @param in the stream containing the entire Zip file
+   * @return the parsed directory, or null if no central directory was found
+   * @throws IOException if the directory cannot be read or is corrupt
+   */
+  public static ZipCentralDirectory read(RandomAccessInputStream in)
+    throws IOException
+  {
+    long fileLength = in.length();
+    if (fileLength < EOCD_LENGTH) return null;
+
+    // the end of central directory record is followed by a comment of
+    // at most 65535 bytes, so only the tail of the file needs searching
+    int tailLength =
+      (int) Math.min(fileLength, EOCD_LENGTH + MAX_COMMENT_LENGTH);
+    long tailStart = fileLength - tailLength;
+    byte[] tail = new byte[tailLength];
+    in.seek(tailStart);
+    in.readFully(tail);
+    ByteBuffer buf = ByteBuffer.wrap(tail).order(ByteOrder.LITTLE_ENDIAN);
+
+    int eocd = -1;
+    for (int i=tailLength - EOCD_LENGTH; i>=0; i--) {
+      if (buf.getInt(i) == EOCD_SIGNATURE &&
+        i + EOCD_LENGTH + (buf.getShort(i + 20) & 0xffff) <= tailLength)
+      {
+        eocd = i;
+        break;
+      }
+    }
+    if (eocd < 0) return null;
+
+    long entryCount = buf.getShort(eocd + 10) & 0xffff;
+    long directorySize = buf.getInt(eocd + 12) & 0xffffffffL;
+    long directoryOffset = buf.getInt(eocd + 16) & 0xffffffffL;
+
+    long locator = tailStart + eocd - ZIP64_LOCATOR_LENGTH;
+    if (locator >= 0 && (entryCount == 0xffff ||
+      directorySize == 0xffffffffL || directoryOffset == 0xffffffffL))
+    {
+      byte[] record = new byte[ZIP64_LOCATOR_LENGTH];
+      in.seek(locator);
+      in.readFully(record);
+      ByteBuffer locatorBuf =
+        ByteBuffer.wrap(record).order(ByteOrder.LITTLE_ENDIAN);
+      if (locatorBuf.getInt(0) == ZIP64_LOCATOR_SIGNATURE) {
+        long zip64Offset = locatorBuf.getLong(8);
+        record = new byte[ZIP64_EOCD_LENGTH];
+        in.seek(zip64Offset);
+        in.readFully(record);
+        ByteBuffer zip64 =
+          ByteBuffer.wrap(record).order(ByteOrder.LITTLE_ENDIAN);
+        if (zip64.getInt(0) != ZIP64_EOCD_SIGNATURE) {
+          throw new IOException("Invalid Zip64 end of central directory");
+        }
+        entryCount = zip64.getLong(32);
+        directorySize = zip64.getLong(40);
+        directoryOffset = zip64.getLong(48);
+      }
+    }
+
+    if (directoryOffset + directorySize > fileLength ||
+      directorySize > Integer.MAX_VALUE)
+    {
+      throw new IOException("Invalid Zip central directory");
+    }
+
+    byte[] directory = new byte[(int) directorySize];
+    in.seek(directoryOffset);
+    in.readFully(directory);
+    buf = ByteBuffer.wrap(directory).order(ByteOrder.LITTLE_ENDIAN);
+
+    List<Entry> entries = new ArrayList<Entry>();
+    int pos = 0;
+    while (pos + CENTRAL_HEADER_LENGTH <= directory.length &&
+      buf.getInt(pos) == CENTRAL_HEADER_SIGNATURE)
+    {
+      int flags = buf.getShort(pos + 8) & 0xffff;
+      int method = buf.getShort(pos + 10) & 0xffff;
+      long crc = buf.getInt(pos + 16) & 0xffffffffL;
+      long compressedSize = buf.getInt(pos + 20) & 0xffffffffL;
+      long size = buf.getInt(pos + 24) & 0xffffffffL;
+      int nameLength = buf.getShort(pos + 28) & 0xffff;
+      int extraLength = buf.getShort(pos + 30) & 0xffff;
+      int commentLength = buf.getShort(pos + 32) & 0xffff;
+      long localHeaderOffset = buf.getInt(pos + 42) & 0xffffffffL;
+
+      int nameStart = pos + CENTRAL_HEADER_LENGTH;
+      int extraStart = nameStart + nameLength;
+      int next = extraStart + extraLength + commentLength;
+      if (next > directory.length) {
+        throw new IOException("Truncated Zip central directory");
+      }
+      String name = new String(directory, nameStart, nameLength,
+        StandardCharsets.UTF_8);
+
+      // sizes and offsets that overflow 32 bits are stored in the Zip64
+      // extra field, in this order and only if the 32-bit value is saturated
+      int extra = extraStart;
+      int extraEnd = extraStart + extraLength;
+      while (extra + 4 <= extraEnd) {
+        int id = buf.getShort(extra) & 0xffff;
+        int length = buf.getShort(extra + 2) & 0xffff;
+        int data = extra + 4;
+        if (id == ZIP64_EXTRA_ID) {
+          int dataEnd = Math.min(data + length, extraEnd);
+          if (size == 0xffffffffL && data + 8 <= dataEnd) {
+            size = buf.getLong(data);
+            data += 8;
+          }
+          if (compressedSize == 0xffffffffL && data + 8 <= dataEnd) {
+            compressedSize = buf.getLong(data);
+            data += 8;
+          }
+          if (localHeaderOffset == 0xffffffffL && data + 8 <= dataEnd) {
+            localHeaderOffset = buf.getLong(data);
+          }
+          break;
+        }
+        extra = data + length;
+      }
+
+      entries.add(new Entry(name, flags, method, crc, compressedSize, size,
+        localHeaderOffset));
+      pos = next;
+    }
+
+    if (entries.size() != entryCount) {
+      throw new IOException("Expected " + entryCount +
+        " Zip entries, found " + entries.size());
+    }
+    return new ZipCentralDirectory(entries);
+  }
+
+  /**
+   * @return all entries, in the order in which they appear in the directory
+   */
+  public List<Entry> getEntries() {
+    return entries;
+  }
+
+  /**
+   * @param name the name of the entry
+   * @return the first entry with the given name, or null if there is none
+   */
+  public Entry getEntry(String name) {
+    return entryMap.get(name);
+  }
+
+  /**
+   * @return the number of entries in the directory
+   */
+  public int size() {
+    return entries.size();
+  }
+
+  /**
+   * Determine where the data for the given entry begins, by reading the
+   * entry's local header.
+   *
+   * @param in the stream containing the entire Zip file
+   * @param entry an entry from this directory
+   * @return the offset of the first byte of (possibly compressed) entry data
+   * @throws IOException if the local header is invalid
+   */
+  public static long getDataOffset(RandomAccessInputStream in, Entry entry)
+    throws IOException
+  {
+    byte[] header = new byte[LOCAL_HEADER_LENGTH];
+    in.seek(entry.getLocalHeaderOffset());
+    in.readFully(header);
+    ByteBuffer buf = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+    if (buf.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+      throw new IOException("Invalid local header for Zip entry " +
+        entry.getName());
+    }
+    int nameLength = buf.getShort(26) & 0xffff;
+    int extraLength = buf.getShort(28) & 0xffff;
+    return entry.getLocalHeaderOffset() + LOCAL_HEADER_LENGTH +
+      nameLength + extraLength;
+  }
+
+  // -- Helper classes --
+
+  /** A single file header from the central directory. */
+  public static class Entry {
+    private final String name;
+    private final int flags;
+    private final int method;
+    private final long crc;
+    private final long compressedSize;
+    private final long size;
+    private final long localHeaderOffset;
+
+    Entry(String name, int flags, int method, long crc, long compressedSize,
+      long size, long localHeaderOffset)
+    {
+      this.name = name;
+      this.flags = flags;
+      this.method = method;
+      this.crc = crc;
+      this.compressedSize = compressedSize;
+      this.size = size;
+      this.localHeaderOffset = localHeaderOffset;
+    }
+
+    public String getName() { return name; }
+    public int getFlags() { return flags; }
+    public int getMethod() { return method; }
+    public long getCrc() { return crc; }
+    public long getCompressedSize() { return compressedSize; }
+    public long getSize() { return size; }
+    public long getLocalHeaderOffset() { return localHeaderOffset; }
+
+    public boolean isDirectory() {
+      return name.endsWith("/");
+    }
+  }
+
+}
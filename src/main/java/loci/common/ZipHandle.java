@@ -36,19 +36,37 @@ import java.io.BufferedInputStream;
 import java.io.DataInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 /**
  * StreamHandle implementation for reading from Zip-compressed files
  * or byte arrays.  Instances of ZipHandle are read-only.
  *
+ * Entries are located using the Zip file's central directory, so opening
+ * or resetting a handle does not require scanning the archive.  Entries that
+ * are stored without compression are read directly from the underlying file,
+ * and seeking within them does not require any data to be skipped.
+ *
  * @see StreamHandle
  *
  * @author Melissa Linkert melissa at glencoesoftware.com
  */
 public class ZipHandle extends StreamHandle {
 
+  // -- Constants --
+
+  private static final Logger LOGGER =
+    LoggerFactory.getLogger(ZipHandle.class);
+
+  private static final int INFLATER_BUFFER_SIZE = 65536;
+
   // -- Fields --
 
   private RandomAccessInputStream in;
@@ -56,6 +74,15 @@ public class ZipHandle extends StreamHandle {
   private String entryName;
   private int entryCount;
 
+  /** Central directory record for the current entry, if available. */
+  private ZipCentralDirectory.Entry entry;
+
+  /** Offset to the current entry's data, or -1 if not yet known. */
+  private long dataOffset = -1;
+
+  /** Direct view of the current entry's data, if it is not compressed. */
+  private EntryInputStream storedStream;
+
   // -- Constructor --
 
   public ZipHandle(String file) throws IOException {
@@ -63,7 +90,6 @@ public class ZipHandle extends StreamHandle {
     this.file = file;
 
     in = openStream(file);
-    zip = new ZipInputStream(in);
     entryName = null;
     entryCount = 0;
 
@@ -75,22 +101,45 @@ public class ZipHandle extends StreamHandle {
 
     // look for Zip entry with same prefix as the Zip file itself
     boolean matchFound = false;
-    length = 0;
+    ZipCentralDirectory directory = readDirectory(in, file);
+    if (directory != null) {
+      for (ZipCentralDirectory.Entry e : directory.getEntries()) {
+        if (entryName == null) entryName = e.getName();
+        if (!matchFound && e.getName().startsWith(innerFile)) {
+          entryName = e.getName();
+          matchFound = true;
+        }
+      }
+      entryCount = directory.size();
+      if (entryName != null) {
+        entry = directory.getEntry(entryName);
+        length = entry.getSize();
+        resetStream();
+        return;
+      }
+    }
+
+    // no usable central directory, so scan the local headers; moving to
+    // the next entry consumes the previous one, which fills in any sizes
+    // that were only recorded in a data descriptor
+    zip = new ZipInputStream(in);
+    ZipEntry selected = null;
     while (true) {
       ZipEntry ze = zip.getNextEntry();
       if (ze == null) break;
-      if (entryName == null) entryName = ze.getName();
+      if (selected == null) selected = ze;
       if (!matchFound && ze.getName().startsWith(innerFile)) {
         // found entry with matching name
-        entryName = ze.getName();
+        selected = ze;
         matchFound = true;
       }
       entryCount++;
-      length += ze.getSize();
     }
+    if (selected != null) entryName = selected.getName();
+    length = selected == null ? 0 : selected.getSize();
     resetStream();
 
-    if (length <= 0) {
+    if (length < 0) {
       populateLength();
     }
   }
@@ -110,18 +159,51 @@ public class ZipHandle extends StreamHandle {
     this.file = file;
 
     in = openStream(file);
-    zip = new ZipInputStream(in);
     entryName = entry.getName();
     entryCount = 1;
 
+    ZipCentralDirectory directory = readDirectory(in, file);
+    if (directory != null) {
+      this.entry = directory.getEntry(entryName);
+      if (this.entry != null) {
+        length = this.entry.getSize();
+        resetStream();
+        return;
+      }
+    }
+
+    zip = new ZipInputStream(in);
     seekToEntry();
     resetStream();
     length = entry.getSize();
-    if (length <= 0) {
+    if (length < 0) {
       populateLength();
     }
   }
 
+  /**
+   * Constructs a new ZipHandle for an entry that has already been located
+   * in the central directory.  No part of the archive other than the
+   * entry's local header is read.
+   *
+   * @param file a name that can be passed to
+   *        {@link Location#getHandle(String, boolean, boolean)}
+   * @param entry the central directory record of the entry to be opened
+   * @throws IOException if the entry cannot be opened
+   * @see ZipArchive#getHandle(String)
+   */
+  ZipHandle(String file, ZipCentralDirectory.Entry entry) throws IOException {
+    super();
+    this.file = file;
+
+    in = openStream(file);
+    entryName = entry.getName();
+    entryCount = 1;
+    this.entry = entry;
+    length = entry.getSize();
+    resetStream();
+  }
+
   // -- ZipHandle API methods --
 
   /**
@@ -171,17 +253,46 @@ public class ZipHandle extends StreamHandle {
     super.close();
     zip = null;
     entryName = null;
+    entry = null;
+    storedStream = null;
     if (in != null) in.close();
     in = null;
     entryCount = 0;
   }
 
+  /* @see IRandomAccess#seek(long) */
+  @Override
+  public void seek(long pos) throws IOException {
+    if (storedStream == null) {
+      super.seek(pos);
+      return;
+    }
+    storedStream.position(pos);
+    fp = pos;
+  }
+
+  // -- DataInput API methods --
+
+  /* @see StreamHandle#skipBytes(long) */
+  @Override
+  public long skipBytes(long n) throws IOException {
+    if (storedStream == null) return super.skipBytes(n);
+    long skipped = Math.max(0, Math.min(n, length - fp));
+    seek(fp + skipped);
+    return skipped;
+  }
+
   // -- StreamHandle API methods --
 
   /* @see StreamHandle#resetStream() */
   @Override
   protected void resetStream() throws IOException {
+    if (rewindSpill()) return;
     if (stream != null) stream.close();
+    if (entry != null) {
+      resetEntryStream();
+      return;
+    }
     if (in != null) {
       in.close();
       in = openStream(file);
@@ -189,26 +300,83 @@ public class ZipHandle extends StreamHandle {
     if (zip != null) zip.close();
     zip = new ZipInputStream(in);
     if (entryName != null) seekToEntry();
-    stream = new DataInputStream(new BufferedInputStream(
+    stream = createStream(new BufferedInputStream(
       zip, RandomAccessInputStream.MAX_OVERHEAD));
     stream.mark(RandomAccessInputStream.MAX_OVERHEAD);
   }
 
   // -- Helper methods --
 
+  /**
+   * Open the current entry's data directly, using the offsets from the
+   * central directory.
+   */
+  private void resetEntryStream() throws IOException {
+    if (dataOffset < 0) {
+      dataOffset = ZipCentralDirectory.getDataOffset(in, entry);
+    }
+    EntryInputStream raw =
+      new EntryInputStream(in, dataOffset, entry.getCompressedSize());
+    switch (entry.getMethod()) {
+      case ZipCentralDirectory.STORED:
+        storedStream = raw;
+        stream = new DataInputStream(raw);
+        break;
+      case ZipCentralDirectory.DEFLATED:
+        storedStream = null;
+        stream = createStream(new BufferedInputStream(
+          new EntryInflaterInputStream(raw),
+          RandomAccessInputStream.MAX_OVERHEAD));
+        break;
+      default:
+        throw new HandleException("Unsupported compression method " +
+          entry.getMethod() + " for Zip entry " + entryName);
+    }
+    stream.mark(RandomAccessInputStream.MAX_OVERHEAD);
+  }
+
   private void seekToEntry() throws IOException {
     while (!entryName.equals(zip.getNextEntry().getName()));
   }
 
+  /**
+   * Determine the uncompressed length of the current entry when it was not
+   * recorded in any header, by inflating it in large blocks.
+   */
   private void populateLength() throws IOException {
-    length = -1;
-    while (stream.available() > 0) {
-      stream.skip(1);
-      length++;
+    byte[] discard = new byte[INFLATER_BUFFER_SIZE];
+    length = 0;
+    int n;
+    while ((n = stream.read(discard, 0, discard.length)) > 0) {
+      length += n;
     }
     resetStream();
   }
 
+  /**
+   * Read the central directory, returning null if it is missing or
+   * unreadable so that the archive can still be scanned sequentially.
+   */
+  private static ZipCentralDirectory readDirectory(
+    RandomAccessInputStream in, String file)
+  {
+    try {
+      return ZipCentralDirectory.read(in);
+    }
+    catch (IOException e) {
+      LOGGER.debug("Could not read central directory of {}", file, e);
+      return null;
+    }
+    finally {
+      try {
+        in.seek(0);
+      }
+      catch (IOException e) {
+        LOGGER.debug("Could not rewind {}", file, e);
+      }
+    }
+  }
+
   private static IRandomAccess getHandle(String file) throws IOException {
     return Location.getHandle(file, false, false);
   }
@@ -219,4 +387,95 @@ public class ZipHandle extends StreamHandle {
     return new RandomAccessInputStream(getHandle(file), file);
   }
 
+  // -- Helper classes --
+
+  /**
+   * InputStream over a byte range of the Zip file.  Closing it does not
+   * close the underlying stream.
+   */
+  private static class EntryInputStream extends InputStream {
+    private final RandomAccessInputStream in;
+    private final long start;
+    private final long length;
+    private long position;
+    private long markPosition;
+
+    EntryInputStream(RandomAccessInputStream in, long start, long length) {
+      this.in = in;
+      this.start = start;
+      this.length = length;
+    }
+
+    void position(long pos) {
+      position = pos;
+    }
+
+    @Override
+    public int read() throws IOException {
+      if (position >= length) return -1;
+      in.seek(start + position);
+      position++;
+      return in.readUnsignedByte();
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) return 0;
+      if (position >= length) return -1;
+      int n = (int) Math.min(len, length - position);
+      in.seek(start + position);
+      in.readFully(b, off, n);
+      position += n;
+      return n;
+    }
+
+    @Override
+    public long skip(long n) {
+      long skipped = Math.max(0, Math.min(n, length - position));
+      position += skipped;
+      return skipped;
+    }
+
+    @Override
+    public int available() {
+      return (int) Math.min(Integer.MAX_VALUE, Math.max(0, length - position));
+    }
+
+    @Override
+    public boolean markSupported() {
+      return true;
+    }
+
+    @Override
+    public synchronized void mark(int readLimit) {
+      markPosition = position;
+    }
+
+    @Override
+    public synchronized void reset() {
+      position = markPosition;
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+
+  /** Raw deflate stream that releases its Inflater when closed. */
+  private static class EntryInflaterInputStream extends InflaterInputStream {
+    private boolean closed = false;
+
+    EntryInflaterInputStream(InputStream in) {
+      super(in, new Inflater(true), INFLATER_BUFFER_SIZE);
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (closed) return;
+      closed = true;
+      super.close();
+      inf.end();
+    }
+  }
+
 }
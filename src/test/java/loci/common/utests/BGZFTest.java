@@ -0,0 +1,173 @@
+/*
+ * #%L
+ * Common package for I/O and related utilities
+ * %%
+ * Copyright (C) 2005 - 2016 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.common.utests;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import loci.common.GZipHandle;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for reading BGZF files with {@link loci.common.GZipHandle}.
+ */
+public class BGZFTest {
+
+  // -- Fields --
+
+  private byte[] data;
+
+  // -- Setup methods --
+
+  @BeforeMethod
+  public void setup() {
+    data = new byte[500000];
+    Random r = new Random(11);
+    // compressible but not trivial data
+    for (int i=0; i<data.length; i++) {
+      data[i] = (byte) (r.nextInt(16) + (i / 1000));
+    }
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    int processors = Runtime.getRuntime().availableProcessors();
+    GZipHandle.setBGZFPrefetchBlocks(processors);
+  }
+
+  // -- Test methods --
+
+  @Test
+  public void testDetection() throws IOException {
+    File plain = File.createTempFile("plain", ".gz");
+    plain.deleteOnExit();
+    try (OutputStream out =
+      new GZIPOutputStream(new FileOutputStream(plain)))
+    {
+      out.write(data);
+    }
+    GZipHandle handle = new GZipHandle(plain.getAbsolutePath());
+    assertFalse(handle.isBGZF());
+    handle.close();
+
+    handle = new GZipHandle(createBGZF().getAbsolutePath());
+    assertTrue(handle.isBGZF());
+    assertEquals(data.length, handle.length());
+    handle.close();
+  }
+
+  @Test
+  public void testReadableAsGzip() throws IOException {
+    File bgzf = createBGZF();
+    byte[] read = new byte[data.length];
+    try (GZIPInputStream in =
+      new GZIPInputStream(new FileInputStream(bgzf)))
+    {
+      int n = 0;
+      while (n < read.length) {
+        int r = in.read(read, n, read.length - n);
+        if (r < 0) break;
+        n += r;
+      }
+      assertEquals(data.length, n);
+    }
+    for (int i=0; i<data.length; i++) {
+      assertEquals(data[i], read[i]);
+    }
+  }
+
+  @Test
+  public void testRandomAccess() throws IOException {
+    GZipHandle handle = new GZipHandle(createBGZF().getAbsolutePath());
+    Random r = new Random(5);
+    byte[] buf = new byte[3000];
+    for (int i=0; i<200; i++) {
+      int pos = r.nextInt(data.length - buf.length);
+      handle.seek(pos);
+      handle.readFully(buf);
+      for (int j=0; j<buf.length; j++) {
+        assertEquals(data[pos + j], buf[j]);
+      }
+    }
+    handle.close();
+  }
+
+  @Test
+  public void testSequentialRead() throws IOException {
+    checkSequentialRead();
+  }
+
+  @Test
+  public void testSequentialReadWithoutPrefetch() throws IOException {
+    GZipHandle.setBGZFPrefetchBlocks(0);
+    checkSequentialRead();
+  }
+
+  // -- Helper methods --
+
+  private File createBGZF() throws IOException {
+    File bgzf = File.createTempFile("bgzf", ".gz");
+    bgzf.deleteOnExit();
+    TestUtilities.writeBGZF(data, 10000, bgzf);
+    return bgzf;
+  }
+
+  private void checkSequentialRead() throws IOException {
+    GZipHandle handle = new GZipHandle(createBGZF().getAbsolutePath());
+    byte[] buf = new byte[777];
+    int pos = 0;
+    while (pos < data.length) {
+      int n = handle.read(buf, 0, Math.min(buf.length, data.length - pos));
+      for (int j=0; j<n; j++) {
+        assertEquals(data[pos + j], buf[j]);
+      }
+      pos += n;
+    }
+    assertEquals(data.length, handle.getFilePointer());
+    handle.close();
+  }
+
+}
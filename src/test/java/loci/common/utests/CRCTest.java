@@ -0,0 +1,92 @@
+/*
+ * #%L
+ * Common package for I/O and related utilities
+ * %%
+ * Copyright (C) 2005 - 2016 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.common.utests;
+
+import static org.testng.AssertJUnit.assertEquals;
+
+import java.util.Random;
+
+import loci.common.CRC;
+import loci.common.Constants;
+
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for {@link loci.common.CRC}.
+ */
+public class CRCTest {
+
+  // -- Tests --
+
+  @Test
+  public void testCheckValue() throws Exception {
+    // standard check value for CRC-32/BZIP2
+    byte[] data = "123456789".getBytes(Constants.ENCODING);
+    CRC crc = new CRC();
+    crc.updateCRC(data, 0, data.length);
+    assertEquals(0xfc891918, crc.getFinalCRC());
+  }
+
+  @Test
+  public void testBulkMatchesSingleByte() {
+    byte[] data = new byte[1031];
+    new Random(1234).nextBytes(data);
+
+    for (int off=0; off<9; off++) {
+      for (int len : new int[] {0, 1, 7, 8, 9, 63, 1000, data.length - off}) {
+        CRC single = new CRC();
+        for (int i=off; i<off + len; i++) {
+          single.updateCRC(data[i] & 0xff);
+        }
+        CRC bulk = new CRC();
+        bulk.updateCRC(data, off, len);
+        assertEquals(single.getFinalCRC(), bulk.getFinalCRC());
+      }
+    }
+  }
+
+  @Test
+  public void testSplitUpdates() {
+    byte[] data = new byte[4096];
+    new Random(5678).nextBytes(data);
+
+    CRC whole = new CRC();
+    whole.updateCRC(data, 0, data.length);
+    CRC split = new CRC();
+    split.updateCRC(data, 0, 13);
+    split.updateCRC(data[13] & 0xff);
+    split.updateCRC(data, 14, data.length - 14);
+    assertEquals(whole.getFinalCRC(), split.getFinalCRC());
+  }
+
+}
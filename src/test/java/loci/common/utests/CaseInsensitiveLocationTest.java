@@ -0,0 +1,179 @@
+/*
+ * #%L
+ * Common package for I/O and related utilities
+ * %%
+ * Copyright (C) 2005 - 2016 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.common.utests;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import loci.common.CaseInsensitiveLocation;
+
+import org.testng.SkipException;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for the directory cache of
+ * {@link loci.common.CaseInsensitiveLocation}.
+ */
+@SuppressWarnings("deprecation")
+public class CaseInsensitiveLocationTest {
+
+  // -- Fields --
+
+  private File dir;
+
+  // -- Setup methods --
+
+  @BeforeMethod
+  public void setup() throws IOException {
+    dir = Files.createTempDirectory("case-insensitive").toFile();
+    new File(dir, "Image.TIF").createNewFile();
+    new File(dir, "other.txt").createNewFile();
+    CaseInsensitiveLocation.setCacheSize(
+      CaseInsensitiveLocation.DEFAULT_CACHE_SIZE);
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    CaseInsensitiveLocation.setCheckModificationTime(false);
+    CaseInsensitiveLocation.setCacheSize(
+      CaseInsensitiveLocation.DEFAULT_CACHE_SIZE);
+    for (File f : dir.listFiles()) {
+      f.delete();
+    }
+    dir.delete();
+  }
+
+  // -- Test methods --
+
+  @Test
+  public void testLookup() throws IOException {
+    assertEquals(new File(dir, "Image.TIF").getAbsolutePath(),
+      lookup("image.tif"));
+    assertEquals(new File(dir, "other.txt").getAbsolutePath(),
+      lookup("OTHER.TXT"));
+    assertEquals(new File(dir, "missing").getAbsolutePath(),
+      lookup("missing"));
+    assertEquals(1, CaseInsensitiveLocation.getCacheStats().loadCount());
+    assertEquals(2, CaseInsensitiveLocation.getCacheStats().hitCount());
+  }
+
+  @Test
+  public void testConcurrentMisses() throws Exception {
+    int threads = 8;
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    CountDownLatch start = new CountDownLatch(1);
+    try {
+      List<Future<String>> results = new ArrayList<Future<String>>();
+      for (int i=0; i<threads; i++) {
+        results.add(pool.submit((Callable<String>) () -> {
+          start.await();
+          return lookup("IMAGE.tif");
+        }));
+      }
+      start.countDown();
+      for (Future<String> result : results) {
+        assertEquals(new File(dir, "Image.TIF").getAbsolutePath(),
+          result.get());
+      }
+    }
+    finally {
+      pool.shutdown();
+    }
+    assertEquals(1, CaseInsensitiveLocation.getCacheStats().loadCount());
+  }
+
+  @Test
+  public void testSizeBound() throws IOException {
+    File sub = new File(dir, "sub");
+    assertTrue(sub.mkdir());
+    CaseInsensitiveLocation.setCacheSize(1);
+    lookup("image.tif");
+    new CaseInsensitiveLocation(new File(sub, "x"));
+    lookup("image.tif");
+    assertEquals(3, CaseInsensitiveLocation.getCacheStats().loadCount());
+    assertTrue(CaseInsensitiveLocation.getCacheStats().evictionCount() > 0);
+  }
+
+  @Test
+  public void testModificationTime() throws IOException {
+    CaseInsensitiveLocation.setCheckModificationTime(true);
+    lookup("image.tif");
+    File added = new File(dir, "Added.TIF");
+    added.createNewFile();
+    // make sure that the change is visible at any timestamp resolution
+    dir.setLastModified(dir.lastModified() + 10000);
+    assertEquals(added.getAbsolutePath(), lookup("added.tif"));
+  }
+
+  @Test
+  public void testInvalidate() throws IOException {
+    lookup("image.tif");
+    File added = new File(dir, "Added.TIF");
+    added.createNewFile();
+    assertEquals(new File(dir, "added.tif").getAbsolutePath(),
+      lookup("added.tif"));
+    CaseInsensitiveLocation.invalidateCache(dir);
+    assertEquals(added.getAbsolutePath(), lookup("added.tif"));
+  }
+
+  @Test(expectedExceptions = IOException.class)
+  public void testMultipleMatches() throws IOException {
+    File duplicate = new File(dir, "IMAGE.tif");
+    duplicate.createNewFile();
+    if (dir.list().length < 3) {
+      throw new SkipException("Filesystem is not case-sensitive");
+    }
+    lookup("image.tif");
+  }
+
+  // -- Helper methods --
+
+  private String lookup(String name) throws IOException {
+    return new CaseInsensitiveLocation(
+      new File(dir, name).getAbsolutePath()).getAbsolutePath();
+  }
+
+}
@@ -0,0 +1,191 @@
+/*
+ * #%L
+ * Common package for I/O and related utilities
+ * %%
+ * Copyright (C) 2005 - 2016 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.common.utests;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import loci.common.GZipHandle;
+import loci.common.GZipOutputHandle;
+import loci.common.HandleException;
+import loci.common.ParallelGZIPOutputStream;
+import loci.common.RandomAccessOutputStream;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for {@link loci.common.GZipOutputHandle} and
+ * {@link loci.common.ParallelGZIPOutputStream}.
+ */
+public class GZipOutputHandleTest {
+
+  // -- Fields --
+
+  private byte[] data;
+
+  // -- Setup methods --
+
+  @BeforeMethod
+  public void setup() {
+    data = new byte[1000000];
+    Random r = new Random(21);
+    for (int i=0; i<data.length; i++) {
+      data[i] = (byte) (r.nextInt(8) + (i % 251));
+    }
+  }
+
+  // -- Test methods --
+
+  @Test
+  public void testSingleMember() throws IOException {
+    File file = createTempFile();
+    RandomAccessOutputStream out =
+      new RandomAccessOutputStream(new GZipOutputHandle(file.getPath()));
+    out.write(data, 0, 1000);
+    out.seek(1000);
+    out.write(data, 1000, data.length - 1000);
+    assertEquals(data.length, out.length());
+    out.close();
+
+    assertTrue(Arrays.equals(data, gunzip(new FileInputStream(file))));
+  }
+
+  @Test
+  public void testBGZF() throws IOException {
+    File file = createTempFile();
+    GZipOutputHandle gzip = new GZipOutputHandle(file.getPath(), true, 4);
+    RandomAccessOutputStream out = new RandomAccessOutputStream(gzip);
+    out.write(data);
+    out.close();
+
+    assertTrue(Arrays.equals(data, gunzip(new FileInputStream(file))));
+    GZipHandle handle = new GZipHandle(file.getPath());
+    assertTrue(handle.isBGZF());
+    assertEquals(data.length, handle.length());
+    handle.seek(765432);
+    assertEquals(data[765432], handle.readByte());
+    handle.close();
+  }
+
+  @Test
+  public void testSmallBlocks() throws IOException {
+    // blocks smaller than the deflate window exercise dictionary carry-over
+    for (int blockSize : new int[] {1, 100, 40000}) {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      ParallelGZIPOutputStream out =
+        new ParallelGZIPOutputStream(bytes, false, blockSize, 3, 6);
+      int off = 0;
+      while (off < 200000) {
+        int n = Math.min(777, 200000 - off);
+        out.write(data, off, n);
+        off += n;
+      }
+      out.close();
+      byte[] result = gunzip(new ByteArrayInputStream(bytes.toByteArray()));
+      assertTrue(Arrays.equals(Arrays.copyOf(data, 200000), result));
+    }
+  }
+
+  @Test
+  public void testEmpty() throws IOException {
+    for (boolean bgzf : new boolean[] {false, true}) {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      new ParallelGZIPOutputStream(bytes, bgzf, 1000, 2, 6).close();
+      byte[] result = gunzip(new ByteArrayInputStream(bytes.toByteArray()));
+      assertEquals(0, result.length);
+    }
+  }
+
+  @Test(expectedExceptions = {IOException.class})
+  public void testWriteAfterFinish() throws IOException {
+    ParallelGZIPOutputStream out = new ParallelGZIPOutputStream(
+      new ByteArrayOutputStream(), false, 1000, 2, 6);
+    out.finish();
+    out.write(1);
+  }
+
+  @Test(expectedExceptions = {HandleException.class})
+  public void testSeekBackwards() throws IOException {
+    GZipOutputHandle handle = new GZipOutputHandle(createTempFile().getPath());
+    try {
+      handle.write(data, 0, 10);
+      handle.seek(5);
+    }
+    finally {
+      handle.close();
+    }
+  }
+
+  @Test(expectedExceptions = {HandleException.class})
+  public void testRead() throws IOException {
+    GZipOutputHandle handle = new GZipOutputHandle(createTempFile().getPath());
+    try {
+      handle.readByte();
+    }
+    finally {
+      handle.close();
+    }
+  }
+
+  // -- Helper methods --
+
+  private File createTempFile() throws IOException {
+    File file = File.createTempFile("gzipoutput", ".gz");
+    file.deleteOnExit();
+    return file;
+  }
+
+  private byte[] gunzip(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (InputStream gz = new GZIPInputStream(in)) {
+      byte[] buf = new byte[8192];
+      int n;
+      while ((n = gz.read(buf)) > 0) {
+        out.write(buf, 0, n);
+      }
+    }
+    return out.toByteArray();
+  }
+
+}
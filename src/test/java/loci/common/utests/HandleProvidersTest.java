@@ -0,0 +1,248 @@
+/*
+ * #%L
+ * Common package for I/O and related utilities
+ * %%
+ * Copyright (C) 2005 - 2016 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.common.utests;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertNull;
+import static org.testng.AssertJUnit.assertTrue;
+import static org.testng.AssertJUnit.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import loci.common.AbstractHandleProvider;
+import loci.common.ByteArrayHandle;
+import loci.common.Constants;
+import loci.common.GZipHandle;
+import loci.common.HandleProvider;
+import loci.common.HandleProviders;
+import loci.common.IRandomAccess;
+import loci.common.Location;
+import loci.common.NIOFileHandle;
+import loci.common.ZipHandle;
+
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for {@link loci.common.HandleProviders}.
+ */
+public class HandleProvidersTest {
+
+  // -- Test methods --
+
+  @Test
+  public void testBuiltInProviders() throws IOException {
+    File gz = File.createTempFile("providers", ".gz");
+    gz.deleteOnExit();
+    try (OutputStream out = new GZIPOutputStream(new FileOutputStream(gz))) {
+      out.write(1);
+    }
+    assertEquals(HandleProviders.GZIP,
+      HandleProviders.findProvider(gz.getAbsolutePath()));
+    IRandomAccess handle = Location.getHandle(gz.getAbsolutePath());
+    assertTrue(handle instanceof GZipHandle);
+    handle.close();
+
+    File notGz = File.createTempFile("providers", ".gz");
+    notGz.deleteOnExit();
+    assertNull(HandleProviders.findProvider(notGz.getAbsolutePath()));
+    handle = Location.getHandle(notGz.getAbsolutePath());
+    assertTrue(handle instanceof NIOFileHandle);
+    handle.close();
+  }
+
+  @Test
+  public void testCustomProvider() throws IOException {
+    final byte[] contents = "TEST magic".getBytes(Constants.ENCODING);
+    HandleProvider provider = new AbstractHandleProvider(
+      "TEST".getBytes(Constants.ENCODING), ".test")
+    {
+      @Override
+      public IRandomAccess createHandle(String id) {
+        return new ByteArrayHandle(contents);
+      }
+    };
+
+    File file = File.createTempFile("providers", ".TEST");
+    file.deleteOnExit();
+    try (OutputStream out = new FileOutputStream(file)) {
+      out.write(contents);
+    }
+
+    HandleProviders.register(provider);
+    try {
+      assertTrue(HandleProviders.getProviders().contains(provider));
+      IRandomAccess handle = Location.getHandle(file.getAbsolutePath());
+      assertTrue(handle instanceof ByteArrayHandle);
+      handle.close();
+
+      handle = Location.getHandle(file.getAbsolutePath(), false, false);
+      assertTrue(handle instanceof NIOFileHandle);
+      handle.close();
+    }
+    finally {
+      HandleProviders.unregister(provider);
+    }
+    assertNull(HandleProviders.findProvider(file.getAbsolutePath()));
+  }
+
+  @Test
+  public void testMappedArchive() throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (ZipOutputStream out = new ZipOutputStream(bytes)) {
+      out.putNextEntry(new ZipEntry("entry.bin"));
+      out.write(new byte[] {1, 2, 3});
+    }
+    // the archive is only reachable through the id map
+    Location.mapFile("mapped-archive.zip",
+      new ByteArrayHandle(bytes.toByteArray()));
+    Location.mapId("archive.zip", "mapped-archive.zip");
+    try {
+      assertEquals(HandleProviders.ZIP,
+        HandleProviders.findProvider("mapped-archive.zip"));
+      IRandomAccess handle = Location.getHandle("archive.zip");
+      assertTrue(handle instanceof ZipHandle);
+      assertEquals(3, handle.length());
+      handle.close();
+    }
+    finally {
+      Location.mapId("archive.zip", null);
+      Location.mapFile("mapped-archive.zip", null);
+    }
+  }
+
+  @Test
+  public void testProbe() throws IOException {
+    File gz = File.createTempFile("providers", ".gz");
+    gz.deleteOnExit();
+    try (OutputStream out = new GZIPOutputStream(new FileOutputStream(gz))) {
+      out.write(1);
+    }
+    assertEquals(HandleProviders.GZIP,
+      HandleProviders.probe(gz.getAbsolutePath()));
+
+    // valid magic bytes, but an unknown compression method
+    byte[] header = Files.readAllBytes(gz.toPath());
+    header[2] = 7;
+    Files.write(gz.toPath(), header);
+    assertInvalid(gz.getAbsolutePath());
+    assertEquals(HandleProviders.GZIP,
+      HandleProviders.findProvider(gz.getAbsolutePath()));
+
+    File bz2 = File.createTempFile("providers", ".bz2");
+    bz2.deleteOnExit();
+    Files.write(bz2.toPath(), "BZh9".getBytes(Constants.ENCODING));
+    assertInvalid(bz2.getAbsolutePath());
+    Files.write(bz2.toPath(), new byte[] {'B', 'Z', 'h', '9',
+      0x17, 0x72, 0x45, 0x38, 0x50, (byte) 0x90, 0, 0, 0, 0});
+    assertEquals(HandleProviders.BZIP2,
+      HandleProviders.probe(bz2.getAbsolutePath()));
+    Location.checkValidId(bz2.getAbsolutePath());
+  }
+
+  @Test
+  public void testCheckValidIdOpensNoHandle() throws IOException {
+    final AtomicInteger probes = new AtomicInteger();
+    HandleProvider provider = new AbstractHandleProvider(
+      "TEST".getBytes(Constants.ENCODING), ".test")
+    {
+      @Override
+      public IRandomAccess createHandle(String id) {
+        throw new AssertionError("handle created for " + id);
+      }
+
+      @Override
+      public void probe(String id, byte[] header) {
+        probes.incrementAndGet();
+      }
+    };
+
+    File file = File.createTempFile("providers", ".test");
+    file.deleteOnExit();
+    Files.write(file.toPath(), "TEST magic".getBytes(Constants.ENCODING));
+
+    HandleProviders.register(provider);
+    try {
+      Location.checkValidId(file.getAbsolutePath());
+      assertEquals(1, probes.get());
+    }
+    finally {
+      HandleProviders.unregister(provider);
+    }
+
+    File missing = new File(file.getAbsolutePath() + ".missing");
+    try {
+      Location.checkValidId(missing.getAbsolutePath());
+      fail("missing file was valid");
+    }
+    catch (FileNotFoundException e) {
+      // expected
+    }
+    try {
+      Location.checkValidId(file.getParentFile().getAbsolutePath());
+      fail("directory was valid");
+    }
+    catch (FileNotFoundException e) {
+      // expected
+    }
+  }
+
+  // -- Helper methods --
+
+  private static void assertInvalid(String id) {
+    try {
+      HandleProviders.probe(id);
+      fail(id + " was valid");
+    }
+    catch (IOException e) {
+      // expected
+    }
+    try {
+      Location.checkValidId(id);
+      fail(id + " was valid");
+    }
+    catch (IOException e) {
+      // expected
+    }
+  }
+
+}
@@ -0,0 +1,408 @@
+/*
+ * #%L
+ * Common package for I/O and related utilities
+ * %%
+ * Copyright (C) 2005 - 2016 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.common.utests;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Minimal in-process HTTP server for testing remote handles without
+ * network access.  Serves byte arrays registered by path, optionally with
+ * support for Range requests and a simulated per-request latency.
+ *
+ * ListObjectsV2 requests (<code>GET /bucket?list-type=2</code>) are answered
+ * from the paths below <code>/bucket/</code>, so that the server can also
+ * stand in for an S3-compatible object store.
+ */
+public final class HttpTestServer implements AutoCloseable {
+
+  private static final Pattern RANGE =
+    Pattern.compile("bytes=(\\d+)-(\\d*)");
+
+  private final HttpServer server;
+  private final Map<String, byte[]> files =
+    new ConcurrentHashMap<String, byte[]>();
+  private final Map<String, String> etags =
+    new ConcurrentHashMap<String, String>();
+  private final Map<String, String> modified =
+    new ConcurrentHashMap<String, String>();
+  private final AtomicInteger versions = new AtomicInteger();
+  private final AtomicInteger notModified = new AtomicInteger();
+  private final AtomicInteger getRequests = new AtomicInteger();
+  private final AtomicInteger headRequests = new AtomicInteger();
+  private final AtomicInteger rangeRequests = new AtomicInteger();
+  private volatile boolean acceptRanges = true;
+  private volatile long latencyMillis = 0;
+  private volatile long bytesPerSecond = 0;
+  private volatile int maxKeys = 1000;
+  private volatile boolean headAllowed = true;
+  private final AtomicInteger listRequests = new AtomicInteger();
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private final AtomicInteger maxInFlight = new AtomicInteger();
+
+  /**
+   * Start a server on an ephemeral port of the loopback interface.
+   * @throws IOException if the server cannot be started
+   */
+  public HttpTestServer() throws IOException {
+    server = HttpServer.create(
+      new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    server.createContext("/", this::handle);
+    server.setExecutor(Executors.newCachedThreadPool());
+    server.start();
+  }
+
+  /**
+   * @param path the path, starting with '/'
+   * @return the URL at which the given path is served
+   */
+  public String getURL(String path) {
+    return "http://" + server.getAddress().getHostString() + ":" +
+      server.getAddress().getPort() + path;
+  }
+
+  /**
+   * Serve the given data at the given path.
+   * @param path the path, starting with '/'
+   * @param data the contents to serve
+   */
+  public void put(String path, byte[] data) {
+    etags.put(path, "\"" + Integer.toHexString(Arrays.hashCode(data)) + "-" +
+      versions.incrementAndGet() + "\"");
+    modified.put(path, DateTimeFormatter.RFC_1123_DATE_TIME.format(
+      ZonedDateTime.now(ZoneOffset.UTC)));
+    files.put(path, data);
+  }
+
+  /**
+   * Stop serving the given path.
+   * @param path the path, starting with '/'
+   */
+  public void remove(String path) {
+    files.remove(path);
+    etags.remove(path);
+    modified.remove(path);
+  }
+
+  /** @param accept true if Range requests should be honored */
+  public void setAcceptRanges(boolean accept) {
+    acceptRanges = accept;
+  }
+
+  /** @param millis delay before each response is sent */
+  public void setLatency(long millis) {
+    latencyMillis = millis;
+  }
+
+  /** @param rate maximum bytes per second sent on each connection */
+  public void setBandwidth(long rate) {
+    bytesPerSecond = rate;
+  }
+
+  /** @param allowed false if HEAD requests should be refused with 405 */
+  public void setHeadAllowed(boolean allowed) {
+    headAllowed = allowed;
+  }
+
+  /** @param keys maximum number of entries in each listing response */
+  public void setMaxKeys(int keys) {
+    maxKeys = keys;
+  }
+
+  /** @return the number of ListObjectsV2 requests received */
+  public int getListRequests() {
+    return listRequests.get();
+  }
+
+  /** @return the number of "304 Not Modified" responses sent */
+  public int getNotModifiedResponses() {
+    return notModified.get();
+  }
+
+  /**
+   * @return the largest number of requests waiting out the latency at the
+   *         same time; no request has been answered while it waits
+   */
+  public int getMaxConcurrentRequests() {
+    return maxInFlight.get();
+  }
+
+  /** @return the number of GET requests received */
+  public int getGetRequests() {
+    return getRequests.get();
+  }
+
+  /** @return the number of HEAD requests received */
+  public int getHeadRequests() {
+    return headRequests.get();
+  }
+
+  /** @return the number of GET requests with a Range header */
+  public int getRangeRequests() {
+    return rangeRequests.get();
+  }
+
+  /** Reset all request counters. */
+  public void resetCounts() {
+    getRequests.set(0);
+    headRequests.set(0);
+    rangeRequests.set(0);
+    listRequests.set(0);
+    maxInFlight.set(0);
+    notModified.set(0);
+  }
+
+  @Override
+  public void close() {
+    server.stop(0);
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    try {
+      if (latencyMillis > 0) {
+        maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+        try {
+          Thread.sleep(latencyMillis);
+        }
+        catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        finally {
+          inFlight.decrementAndGet();
+        }
+      }
+      boolean head = "HEAD".equals(exchange.getRequestMethod());
+      if (head) headRequests.incrementAndGet();
+      else getRequests.incrementAndGet();
+      if (head && !headAllowed) {
+        exchange.sendResponseHeaders(405, -1);
+        return;
+      }
+
+      Map<String, String> query = parseQuery(exchange.getRequestURI());
+      if (!head && "2".equals(query.get("list-type"))) {
+        listRequests.incrementAndGet();
+        list(exchange, exchange.getRequestURI().getPath(), query);
+        return;
+      }
+
+      byte[] data = files.get(exchange.getRequestURI().getPath());
+      if (data == null) {
+        exchange.sendResponseHeaders(404, -1);
+        return;
+      }
+      if (acceptRanges) {
+        exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+      }
+      String path = exchange.getRequestURI().getPath();
+      String etag = etags.get(path);
+      if (etag != null) {
+        exchange.getResponseHeaders().set("ETag", etag);
+        exchange.getResponseHeaders().set("Last-Modified", modified.get(path));
+        if (etag.equals(
+          exchange.getRequestHeaders().getFirst("If-None-Match")))
+        {
+          notModified.incrementAndGet();
+          exchange.sendResponseHeaders(304, -1);
+          return;
+        }
+      }
+
+      int start = 0;
+      int end = data.length - 1;
+      int status = 200;
+      String range = exchange.getRequestHeaders().getFirst("Range");
+      if (range != null && acceptRanges && !head) {
+        rangeRequests.incrementAndGet();
+        Matcher m = RANGE.matcher(range);
+        if (m.matches()) {
+          start = Integer.parseInt(m.group(1));
+          if (!m.group(2).isEmpty()) {
+            end = Math.min(end, Integer.parseInt(m.group(2)));
+          }
+          if (start >= data.length) {
+            exchange.getResponseHeaders().set("Content-Range",
+              "bytes */" + data.length);
+            exchange.sendResponseHeaders(416, -1);
+            return;
+          }
+          status = 206;
+          exchange.getResponseHeaders().set("Content-Range",
+            "bytes " + start + "-" + end + "/" + data.length);
+        }
+      }
+      int length = end - start + 1;
+      if (head) {
+        exchange.getResponseHeaders().set("Content-Length",
+          String.valueOf(data.length));
+        exchange.sendResponseHeaders(status, -1);
+        return;
+      }
+      exchange.sendResponseHeaders(status, length == 0 ? -1 : length);
+      try (OutputStream out = exchange.getResponseBody()) {
+        write(out, data, start, length);
+      }
+      catch (IOException e) {
+        // client closed the connection before reading everything
+      }
+    }
+    finally {
+      exchange.close();
+    }
+  }
+
+  /** Answer a ListObjectsV2 request for the given bucket. */
+  private void list(HttpExchange exchange, String bucket,
+    Map<String, String> query) throws IOException
+  {
+    String prefix = query.getOrDefault("prefix", "");
+    String delimiter = query.get("delimiter");
+    boolean found = false;
+    TreeSet<String> keys = new TreeSet<String>();
+    TreeSet<String> prefixes = new TreeSet<String>();
+    for (String path : files.keySet()) {
+      if (!path.startsWith(bucket + "/")) continue;
+      found = true;
+      String key = path.substring(bucket.length() + 1);
+      if (!key.startsWith(prefix)) continue;
+      int end = delimiter == null ? -1 :
+        key.indexOf(delimiter, prefix.length());
+      if (end < 0) keys.add(key);
+      else prefixes.add(key.substring(0, end + delimiter.length()));
+    }
+    if (!found) {
+      exchange.sendResponseHeaders(404, -1);
+      return;
+    }
+
+    List<String> entries = new ArrayList<String>();
+    TreeSet<String> all = new TreeSet<String>(keys);
+    all.addAll(prefixes);
+    entries.addAll(all);
+    int start =
+      Integer.parseInt(query.getOrDefault("continuation-token", "0"));
+    int end = Math.min(entries.size(), start + maxKeys);
+
+    StringBuilder xml = new StringBuilder();
+    xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+    xml.append("<ListBucketResult>");
+    xml.append("<Prefix>").append(prefix).append("</Prefix>");
+    xml.append("<IsTruncated>").append(end < entries.size());
+    xml.append("</IsTruncated>");
+    if (end < entries.size()) {
+      xml.append("<NextContinuationToken>").append(end);
+      xml.append("</NextContinuationToken>");
+    }
+    for (String entry : entries.subList(start, end)) {
+      if (prefixes.contains(entry)) {
+        xml.append("<CommonPrefixes><Prefix>").append(entry);
+        xml.append("</Prefix></CommonPrefixes>");
+      }
+      else {
+        xml.append("<Contents><Key>").append(entry).append("</Key><Size>");
+        xml.append(files.get(bucket + "/" + entry).length);
+        xml.append("</Size></Contents>");
+      }
+    }
+    xml.append("</ListBucketResult>");
+    byte[] body = xml.toString().getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", "application/xml");
+    exchange.sendResponseHeaders(200, body.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(body);
+    }
+  }
+
+  private static Map<String, String> parseQuery(URI uri) {
+    Map<String, String> query = new HashMap<String, String>();
+    String raw = uri.getRawQuery();
+    if (raw == null) return query;
+    for (String pair : raw.split("&")) {
+      int eq = pair.indexOf('=');
+      String name = eq < 0 ? pair : pair.substring(0, eq);
+      String value = eq < 0 ? "" : pair.substring(eq + 1);
+      query.put(URLDecoder.decode(name, StandardCharsets.UTF_8),
+        URLDecoder.decode(value, StandardCharsets.UTF_8));
+    }
+    return query;
+  }
+
+  private void write(OutputStream out, byte[] data, int off, int len)
+    throws IOException
+  {
+    long rate = bytesPerSecond;
+    if (rate <= 0) {
+      out.write(data, off, len);
+      return;
+    }
+    int chunk = 8192;
+    long begin = System.nanoTime();
+    for (int sent=0; sent<len; sent+=chunk) {
+      out.write(data, off + sent, Math.min(chunk, len - sent));
+      long due = begin + (sent + chunk) * 1000000000L / rate;
+      long wait = (due - System.nanoTime()) / 1000000;
+      if (wait > 0) {
+        try {
+          Thread.sleep(wait);
+        }
+        catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+      }
+    }
+  }
+
+}
@@ -0,0 +1,174 @@
+/*
+ * #%L
+ * Common package for I/O and related utilities
+ * %%
+ * Copyright (C) 2005 - 2016 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.common.utests;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import loci.common.URLHandle;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for HTTP access in {@link loci.common.URLHandle}, using a
+ * local server.
+ */
+public class HttpURLHandleTest {
+
+  // -- Fields --
+
+  private HttpTestServer server;
+  private byte[] data;
+
+  // -- Setup methods --
+
+  @BeforeClass
+  public void startServer() throws IOException {
+    data = new byte[1024 * 1024];
+    new Random(7).nextBytes(data);
+    server = new HttpTestServer();
+    server.put("/data.bin", data);
+  }
+
+  @AfterClass
+  public void stopServer() {
+    server.close();
+  }
+
+  @BeforeMethod
+  public void setup() {
+    server.setAcceptRanges(true);
+    server.resetCounts();
+  }
+
+  // -- Test methods --
+
+  @Test
+  public void testRangeRequests() throws IOException {
+    URLHandle handle = new URLHandle(server.getURL("/data.bin"));
+    try {
+      assertTrue(handle.isRangeRequests());
+      assertEquals(data.length, handle.length());
+      assertRead(handle, 900000, 1000);
+      assertRead(handle, 10, 1000);
+      assertRead(handle, 500000, 1000);
+      assertRead(handle, 0, data.length);
+    }
+    finally {
+      handle.close();
+    }
+  }
+
+  @Test
+  public void testContiguousReadsShareRequest() throws IOException {
+    URLHandle handle = new URLHandle(server.getURL("/data.bin"));
+    try {
+      handle.seek(600000);
+      byte[] b = new byte[4096];
+      for (int i=0; i<10; i++) {
+        handle.readFully(b);
+      }
+      handle.skipBytes(1000);
+      handle.readFully(b);
+      // the initial request, plus one range request for the read run
+      assertEquals(2, server.getGetRequests());
+      assertEquals(1, server.getRangeRequests());
+
+      handle.seek(100);
+      handle.readFully(b);
+      assertEquals(2, server.getRangeRequests());
+    }
+    finally {
+      handle.close();
+    }
+  }
+
+  @Test
+  public void testBackwardSeekUsesRange() throws IOException {
+    URLHandle handle = new URLHandle(server.getURL("/data.bin"));
+    try {
+      handle.seek(data.length - 10);
+      assertEquals(data[data.length - 10], handle.readByte());
+      handle.seek(5);
+      assertEquals(data[5], handle.readByte());
+      assertEquals(data[6], handle.readByte());
+      assertEquals(2, server.getRangeRequests());
+    }
+    finally {
+      handle.close();
+    }
+  }
+
+  @Test
+  public void testStreamingFallback() throws IOException {
+    server.setAcceptRanges(false);
+    URLHandle handle = new URLHandle(server.getURL("/data.bin"));
+    try {
+      assertFalse(handle.isRangeRequests());
+      assertEquals(data.length, handle.length());
+      assertRead(handle, 500000, 1000);
+      assertRead(handle, 10, 1000);
+      assertEquals(0, server.getRangeRequests());
+    }
+    finally {
+      handle.close();
+    }
+  }
+
+  @Test(expectedExceptions = IOException.class)
+  public void testMissing() throws IOException {
+    new URLHandle(server.getURL("/missing.bin"));
+  }
+
+  // -- Helper methods --
+
+  private void assertRead(URLHandle handle, int offset, int len)
+    throws IOException
+  {
+    handle.seek(offset);
+    byte[] b = new byte[len];
+    handle.readFully(b);
+    assertEquals(offset + len, handle.getFilePointer());
+    assertTrue(Arrays.equals(Arrays.copyOfRange(data, offset, offset + len),
+      b));
+  }
+
+}
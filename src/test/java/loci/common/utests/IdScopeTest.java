@@ -0,0 +1,179 @@
+/*
+ * #%L
+ * Common package for I/O and related utilities
+ * %%
+ * Copyright (C) 2005 - 2016 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.common.utests;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertNull;
+import static org.testng.AssertJUnit.assertSame;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import loci.common.ByteArrayHandle;
+import loci.common.IRandomAccess;
+import loci.common.IdScope;
+import loci.common.Location;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for {@link loci.common.IdScope}.
+ */
+public class IdScopeTest {
+
+  // -- Fields --
+
+  private ExecutorService pool;
+
+  // -- Setup methods --
+
+  @BeforeClass
+  public void startPool() {
+    pool = Executors.newFixedThreadPool(4);
+  }
+
+  @AfterClass
+  public void stopPool() {
+    pool.shutdown();
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    Location.reset();
+    Location.clearGlobalIdScope();
+  }
+
+  // -- Test methods --
+
+  @Test
+  public void testThreadLocalByDefault() throws Exception {
+    Location.mapId("a.tif", "/data/b.tif");
+    assertEquals("/data/b.tif", Location.getMappedId("a.tif"));
+    assertEquals("a.tif",
+      pool.submit(() -> Location.getMappedId("a.tif")).get());
+    assertTrue(Location.getGlobalIdScope().isEmpty());
+  }
+
+  @Test
+  public void testGlobal() throws Exception {
+    IRandomAccess handle = new ByteArrayHandle(new byte[] {1, 2, 3});
+    Location.getGlobalIdScope().mapFile("memory.bin", handle);
+    assertSame(handle, Location.getMappedFile("memory.bin"));
+    assertSame(handle,
+      pool.submit(() -> Location.getMappedFile("memory.bin")).get());
+    assertEquals(3, (long) pool.submit(
+      () -> new Location("memory.bin").length()).get());
+  }
+
+  @Test
+  public void testSession() throws Exception {
+    IdScope session = new IdScope();
+    session.mapId("a.tif", "/session/a.tif");
+    List<Future<String>> results = new ArrayList<Future<String>>();
+    for (int i=0; i<8; i++) {
+      results.add(pool.submit(
+        session.wrap(() -> Location.getMappedId("a.tif"))));
+    }
+    for (Future<String> result : results) {
+      assertEquals("/session/a.tif", result.get());
+    }
+    // the scope is unbound once each task has run
+    assertEquals("a.tif",
+      pool.submit(() -> Location.getMappedId("a.tif")).get());
+    assertEquals("a.tif", Location.getMappedId("a.tif"));
+  }
+
+  @Test
+  public void testNesting() {
+    Location.getGlobalIdScope().mapId("a", "global-a");
+    Location.getGlobalIdScope().mapId("b", "global-b");
+    IdScope session = new IdScope();
+    session.mapId("b", "session-b");
+    session.mapId("c", "session-c");
+    IdScope inner = new IdScope(session);
+    assertSame(session, inner.getParent());
+    assertSame(Location.getGlobalIdScope(), session.getParent());
+    assertNull(Location.getGlobalIdScope().getParent());
+
+    Location.setIdScope(inner);
+    assertSame(inner, Location.getIdScope());
+    Location.mapId("c", "thread-c");
+    assertEquals("global-a", Location.getMappedId("a"));
+    assertEquals("session-b", Location.getMappedId("b"));
+    assertEquals("thread-c", Location.getMappedId("c"));
+    assertEquals("d", Location.getMappedId("d"));
+
+    Location.setIdScope(null);
+    assertSame(Location.getGlobalIdScope(), Location.getIdScope());
+    assertEquals("global-b", Location.getMappedId("b"));
+  }
+
+  @Test
+  public void testRemoveAndClear() {
+    IdScope session = new IdScope();
+    session.mapId("a", "session-a");
+    session.mapId("a", null);
+    assertNull(session.get("a"));
+    session.mapFile("b", new ByteArrayHandle(4));
+    session.clear();
+    assertTrue(session.isEmpty());
+  }
+
+  @Test
+  public void testResetKeepsGlobal() throws Exception {
+    Location.getGlobalIdScope().mapId("a", "global-a");
+    Location.mapId("b", "thread-b");
+    Location.setIdScope(new IdScope());
+    pool.submit(Location::reset).get();
+    assertEquals("thread-b", Location.getMappedId("b"));
+    Location.reset();
+    assertEquals("b", Location.getMappedId("b"));
+    assertSame(Location.getGlobalIdScope(), Location.getIdScope());
+    assertEquals("global-a", Location.getMappedId("a"));
+    Location.clearGlobalIdScope();
+    assertTrue(Location.getGlobalIdScope().isEmpty());
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void testNullParent() {
+    new IdScope(null);
+  }
+
+}
@@ -0,0 +1,259 @@
+/*
+ * #%L
+ * Common package for I/O and related utilities
+ * %%
+ * Copyright (C) 2005 - 2016 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.common.utests;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import loci.common.CaseInsensitiveLocation;
+import loci.common.Location;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for the directory listings caches in
+ * {@link loci.common.Location}.
+ */
+public class LocationListingCacheTest {
+
+  // -- Fields --
+
+  private File dir;
+
+  // -- Setup methods --
+
+  @BeforeMethod
+  public void setup() throws IOException {
+    dir = Files.createTempDirectory("listing-cache").toFile();
+    new File(dir, "a.txt").createNewFile();
+    new File(dir, "b.txt").createNewFile();
+    Location.reset();
+    Location.cacheDirectoryListings(true);
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    Location.reset();
+    CaseInsensitiveLocation.invalidateCache();
+    for (File f : dir.listFiles()) {
+      f.delete();
+    }
+    dir.delete();
+  }
+
+  // -- Test methods --
+
+  @Test
+  public void testHitAndMiss() throws IOException {
+    Location loc = new Location(dir);
+    assertEquals(2, loc.list().length);
+    new File(dir, "c.txt").createNewFile();
+    assertEquals(2, loc.list().length);
+    assertEquals(1, Location.getDirectoryListingsCacheStats().hitCount());
+    assertEquals(1, Location.getDirectoryListingsCacheStats().missCount());
+  }
+
+  @Test
+  public void testHiddenFilesCachedSeparately() throws IOException {
+    new File(dir, ".hidden").createNewFile();
+    Location loc = new Location(dir);
+    assertEquals(2, loc.list(true).length);
+    assertEquals(3, loc.list(false).length);
+    assertEquals(2, loc.list(true).length);
+    assertEquals(1, Location.getDirectoryListingsCacheStats().hitCount());
+  }
+
+  @Test
+  public void testClear() throws IOException {
+    Location loc = new Location(dir);
+    assertEquals(2, loc.list().length);
+    new File(dir, "c.txt").createNewFile();
+    Location.clearDirectoryListingsCache();
+    String[] list = loc.list();
+    Arrays.sort(list);
+    assertEquals("c.txt", list[2]);
+  }
+
+  @Test
+  public void testTimeout() throws IOException, InterruptedException {
+    Location.setCacheDirectoryTimeout(0.05);
+    Location loc = new Location(dir);
+    assertEquals(2, loc.list().length);
+    new File(dir, "c.txt").createNewFile();
+    assertEquals(2, loc.list().length);
+    Thread.sleep(100);
+    Location.cleanStaleCacheEntries();
+    assertEquals(3, loc.list().length);
+  }
+
+  @Test
+  public void testSizeBound() throws IOException {
+    File other = new File(dir, "sub");
+    assertTrue(other.mkdir());
+    Location.setDirectoryListingsCacheSize(1);
+    Location a = new Location(dir);
+    Location b = new Location(other);
+    a.list();
+    b.list();
+    a.list();
+    assertEquals(0, Location.getDirectoryListingsCacheStats().hitCount());
+    assertTrue(Location.getDirectoryListingsCacheStats().evictionCount() > 0);
+  }
+
+  @Test
+  public void testCacheingOff() throws IOException {
+    Location.cacheDirectoryListings(false);
+    Location loc = new Location(dir);
+    assertEquals(2, loc.list().length);
+    new File(dir, "c.txt").createNewFile();
+    assertEquals(3, loc.list().length);
+  }
+
+  @Test
+  public void testWatchCreate() throws Exception {
+    Location.watchDirectoryListings(true);
+    assertTrue(Location.isWatchingDirectoryListings());
+    Location loc = new Location(dir);
+    assertEquals(2, loc.list().length);
+    assertEquals(2, loc.list().length);
+    new File(dir, "c.txt").createNewFile();
+    assertTrue(waitForLength(loc, 3, 10000));
+  }
+
+  @Test
+  public void testWatchDelete() throws Exception {
+    Location.watchDirectoryListings(true);
+    Location loc = new Location(dir);
+    assertEquals(2, loc.list().length);
+    assertTrue(new File(dir, "a.txt").delete());
+    assertTrue(waitForLength(loc, 1, 10000));
+    new File(dir, "d.txt").createNewFile();
+    assertTrue(waitForLength(loc, 2, 10000));
+  }
+
+  @Test
+  public void testWatchOff() throws Exception {
+    Location loc = new Location(dir);
+    assertEquals(2, loc.list().length);
+    new File(dir, "c.txt").createNewFile();
+    assertFalse(waitForLength(loc, 3, 200));
+  }
+
+  @SuppressWarnings("deprecation")
+  @Test
+  public void testWatchCaseInsensitive() throws Exception {
+    Location.watchDirectoryListings(true);
+    File upper = new File(dir, "UPPER.txt");
+    String lower = new File(dir, "upper.txt").getAbsolutePath();
+    assertEquals(lower, new CaseInsensitiveLocation(lower).getAbsolutePath());
+    upper.createNewFile();
+    long end = System.currentTimeMillis() + 10000;
+    String found = null;
+    while (System.currentTimeMillis() < end) {
+      found = new CaseInsensitiveLocation(lower).getAbsolutePath();
+      if (found.equals(upper.getAbsolutePath())) break;
+      Thread.sleep(20);
+    }
+    assertEquals(upper.getAbsolutePath(), found);
+  }
+
+  @SuppressWarnings("deprecation")
+  @Test
+  public void testWatchEvicted() throws Exception {
+    Location.watchDirectoryListings(true);
+    Location.setDirectoryListingsCacheSize(1);
+    String name = new File(dir, "a.txt").getAbsolutePath();
+    new CaseInsensitiveLocation(name);
+    assertEquals(2, new Location(dir).list().length);
+    long misses = CaseInsensitiveLocation.getCacheStats().missCount();
+    // evicting the listing stops watching the directory, which drops it
+    // from the case insensitive cache before list() returns
+    File other = Files.createTempDirectory("listing-cache").toFile();
+    try {
+      assertEquals(0, new Location(other).list().length);
+    }
+    finally {
+      other.delete();
+    }
+    new CaseInsensitiveLocation(name);
+    assertEquals(misses + 1,
+      CaseInsensitiveLocation.getCacheStats().missCount());
+  }
+
+  @SuppressWarnings("deprecation")
+  @Test
+  public void testWatchCleared() throws Exception {
+    Location.watchDirectoryListings(true);
+    String name = new File(dir, "a.txt").getAbsolutePath();
+    Location loc = new Location(dir);
+    Runnable[] clears = {
+      Location::clearDirectoryListingsCache,
+      () -> Location.setCacheDirectoryTimeout(60),
+      () -> Location.setDirectoryListingsCacheSize(100),
+    };
+    for (Runnable clear : clears) {
+      new CaseInsensitiveLocation(name);
+      assertEquals(2, loc.list().length);
+      long misses = CaseInsensitiveLocation.getCacheStats().missCount();
+      // dropping the listing stops watching the directory, which also
+      // drops it from the case insensitive cache
+      clear.run();
+      new CaseInsensitiveLocation(name);
+      assertEquals(misses + 1,
+        CaseInsensitiveLocation.getCacheStats().missCount());
+    }
+  }
+
+  // -- Helper methods --
+
+  /** Wait for a listing of the given length. */
+  private boolean waitForLength(Location loc, int length, long millis)
+    throws InterruptedException
+  {
+    long end = System.currentTimeMillis() + millis;
+    while (System.currentTimeMillis() < end) {
+      if (loc.list().length == length) return true;
+      Thread.sleep(20);
+    }
+    return false;
+  }
+
+}
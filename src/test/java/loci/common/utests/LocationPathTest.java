@@ -0,0 +1,207 @@
+/*
+ * #%L
+ * Common package for I/O and related utilities
+ * %%
+ * Copyright (C) 2005 - 2016 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.common.utests;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertNull;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystemNotFoundException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import loci.common.IRandomAccess;
+import loci.common.Location;
+import loci.common.LocationInfo;
+import loci.common.PathHandle;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for Locations on filesystems other than the default, using
+ * the zip filesystem.
+ *
+ * @see loci.common.Location#Location(Path)
+ * @see loci.common.PathHandle
+ */
+public class LocationPathTest {
+
+  // -- Constants --
+
+  private static final byte[] DATA = "0123456789".getBytes();
+
+  // -- Fields --
+
+  /** URI of the root of the zip file. */
+  private String root;
+
+  private FileSystem zipfs;
+
+  // -- Setup methods --
+
+  @BeforeClass
+  public void setup() throws IOException {
+    File zip = File.createTempFile("location-path", ".zip");
+    zip.deleteOnExit();
+    try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zip))) {
+      out.putNextEntry(new ZipEntry("dir/"));
+      out.putNextEntry(new ZipEntry("dir/a.dat"));
+      out.write(DATA);
+      out.putNextEntry(new ZipEntry("dir/.hidden"));
+      out.putNextEntry(new ZipEntry("b.dat"));
+      out.write(DATA, 0, 4);
+    }
+    root = "jar:" + zip.toPath().toUri() + "!/";
+    zipfs = FileSystems.newFileSystem(URI.create(root),
+      Collections.<String, Object>emptyMap());
+  }
+
+  @AfterClass
+  public void tearDown() throws IOException {
+    zipfs.close();
+  }
+
+  // -- Tests --
+
+  @Test(expectedExceptions = FileSystemNotFoundException.class)
+  public void testFilesystemNotOpened() throws IOException {
+    File zip = File.createTempFile("location-path", ".zip");
+    zip.deleteOnExit();
+    try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zip))) {
+      out.putNextEntry(new ZipEntry("a.dat"));
+    }
+    URI uri = URI.create("jar:" + zip.toPath().toUri() + "!/a.dat");
+    new Location(uri.toString()).getAbsolutePath();
+    FileSystems.getFileSystem(uri);
+  }
+
+  @Test
+  public void testFile() throws IOException {
+    Location file = new Location(root + "dir/a.dat");
+    assertTrue(file.exists());
+    assertTrue(file.isFile());
+    assertFalse(file.isDirectory());
+    assertFalse(file.isHidden());
+    assertTrue(file.canRead());
+    assertEquals(DATA.length, file.length());
+    assertEquals("a.dat", file.getName());
+    assertEquals(root + "dir/a.dat", file.getAbsolutePath());
+    assertEquals(file.getAbsolutePath(), file.toString());
+    assertEquals(new Location(file.getAbsolutePath()), file);
+    assertEquals(new Location(root + "dir"), file.getParentFile());
+    assertEquals(file, new Location(root + "dir", "a.dat"));
+    assertEquals(file, new Location(new Location(root), "dir/a.dat"));
+  }
+
+  @Test
+  public void testMissing() {
+    Location missing = new Location(root + "c.dat");
+    assertFalse(missing.exists());
+    assertFalse(missing.isFile());
+    assertEquals(0, missing.length());
+    assertNull(missing.list());
+  }
+
+  @Test
+  public void testList() {
+    Location dir = new Location(root + "dir");
+    assertTrue(dir.isDirectory());
+    String[] names = dir.list();
+    Arrays.sort(names);
+    assertEquals(Arrays.asList(".hidden", "a.dat"), Arrays.asList(names));
+    assertEquals(Arrays.asList("a.dat"), Arrays.asList(dir.list(true)));
+
+    Location[] files = dir.listFiles();
+    assertEquals(2, files.length);
+    for (Location file : files) {
+      assertTrue(file.exists());
+      assertEquals(dir, file.getParentFile());
+    }
+
+    LocationInfo[] infos = dir.listWithAttributes(true);
+    assertEquals(1, infos.length);
+    assertEquals(root + "dir/a.dat", infos[0].getPath());
+    assertEquals(DATA.length, infos[0].length());
+    assertTrue(infos[0].isFile());
+  }
+
+  @Test
+  public void testPath() throws IOException {
+    Location file = new Location(root + "b.dat");
+    PathHandle handle = (PathHandle) Location.getHandle(root + "b.dat");
+    Path path = handle.getPath();
+    handle.close();
+    assertEquals(file, new Location(path));
+    assertEquals(4, new Location(path).length());
+    assertEquals(new Location(root), new Location(path.getParent()));
+  }
+
+  @Test
+  public void testHandle() throws IOException {
+    IRandomAccess handle = Location.getHandle(root + "dir/a.dat");
+    try {
+      assertTrue(handle instanceof PathHandle);
+      assertEquals(DATA.length, handle.length());
+      handle.seek(5);
+      assertEquals('5', handle.readByte());
+      handle.seek(1);
+      byte[] b = new byte[3];
+      handle.readFully(b);
+      assertEquals("123", new String(b));
+    }
+    finally {
+      handle.close();
+    }
+    Location.checkValidId(root + "b.dat");
+  }
+
+  @Test
+  public void testLocalPath() throws IOException {
+    File file = File.createTempFile("location-path", ".dat");
+    file.deleteOnExit();
+    assertEquals(new Location(file), new Location(file.toPath()));
+  }
+
+}
@@ -0,0 +1,203 @@
+/*
+ * #%L
+ * Common package for I/O and related utilities
+ * %%
+ * Copyright (C) 2005 - 2016 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.common.utests;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import loci.common.ByteArrayHandle;
+import loci.common.IdScope;
+import loci.common.Location;
+import loci.common.LocationInfo;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for {@link loci.common.Location#stat(java.util.Collection)}.
+ */
+public class LocationStatTest {
+
+  // -- Constants --
+
+  private static final int FILE_COUNT = 32;
+
+  // -- Fields --
+
+  private HttpTestServer server;
+  private File dir;
+
+  // -- Setup methods --
+
+  @BeforeClass
+  public void setup() throws IOException {
+    server = new HttpTestServer();
+    for (int i=0; i<FILE_COUNT; i++) {
+      server.put("/file" + i + ".bin", new byte[i]);
+    }
+    dir = Files.createTempDirectory("location-stat").toFile();
+    Files.write(new File(dir, "a.bin").toPath(), new byte[12]);
+    new File(dir, ".hidden").createNewFile();
+    new File(dir, "sub").mkdir();
+  }
+
+  @AfterClass
+  public void cleanup() {
+    server.close();
+    for (File f : dir.listFiles()) {
+      f.delete();
+    }
+    dir.delete();
+  }
+
+  @BeforeMethod
+  public void resetCounts() {
+    Location.clearURLMetadataCache();
+    server.resetCounts();
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    server.setLatency(0);
+    Location.reset();
+  }
+
+  // -- Test methods --
+
+  @Test
+  public void testLocal() {
+    List<Location> files = new ArrayList<Location>();
+    for (String name : new String[] {"a.bin", ".hidden", "sub", "missing"}) {
+      files.add(new Location(dir.getAbsolutePath(), name));
+    }
+    List<LocationInfo> infos = Location.stat(files);
+    assertEquals(files.size(), infos.size());
+    for (int i=0; i<files.size(); i++) {
+      Location file = files.get(i);
+      LocationInfo info = infos.get(i);
+      assertEquals(file.getAbsolutePath(), info.getPath());
+      assertEquals(file.getName(), info.getName());
+      assertEquals(file.exists(), info.exists());
+      assertEquals(file.isDirectory(), info.isDirectory());
+      assertEquals(file.isFile(), info.isFile());
+      assertEquals(file.isHidden(), info.isHidden());
+      assertEquals(file.length(), info.length());
+      assertEquals(file.lastModified(), info.lastModified());
+    }
+    assertEquals(12, infos.get(0).length());
+    assertFalse(infos.get(3).exists());
+  }
+
+  @Test
+  public void testRemote() {
+    List<Location> files = new ArrayList<Location>();
+    for (int i=0; i<FILE_COUNT; i++) {
+      files.add(new Location(server.getURL("/file" + i + ".bin")));
+    }
+    files.add(new Location(server.getURL("/missing.bin")));
+    List<LocationInfo> infos = Location.stat(files);
+    for (int i=0; i<FILE_COUNT; i++) {
+      assertTrue(infos.get(i).isFile());
+      assertEquals(i, infos.get(i).length());
+    }
+    assertFalse(infos.get(FILE_COUNT).exists());
+    assertEquals(FILE_COUNT + 1, server.getHeadRequests());
+
+    // later single lookups are served from the metadata cache
+    for (Location file : files) {
+      file.exists();
+      file.length();
+    }
+    assertEquals(FILE_COUNT + 1, server.getHeadRequests());
+  }
+
+  @Test
+  public void testConcurrentLookups() {
+    server.setLatency(50);
+    Location.setStatThreads(4);
+    List<Location> files = new ArrayList<Location>();
+    for (int i=0; i<FILE_COUNT; i++) {
+      files.add(new Location(server.getURL("/file" + i + ".bin")));
+    }
+    List<LocationInfo> infos = Location.stat(files);
+    assertEquals(FILE_COUNT, infos.size());
+    // with each request held by the latency, the lookups overlap up to the
+    // number of stat threads
+    assertTrue(server.getMaxConcurrentRequests() > 1);
+    assertTrue(server.getMaxConcurrentRequests() <= 4);
+  }
+
+  @Test
+  public void testMappedIds() {
+    IdScope scope = new IdScope();
+    Location.mapFile("mem1.bin", new ByteArrayHandle(new byte[10]));
+    Location.mapFile("mem2.bin", new ByteArrayHandle(new byte[20]));
+    scope.mapFile("mem3.bin", new ByteArrayHandle(new byte[30]));
+    Location.setIdScope(scope);
+    List<Location> files = new ArrayList<Location>();
+    for (String name : new String[] {"mem1.bin", "mem2.bin", "mem3.bin"}) {
+      files.add(new Location(name));
+    }
+    List<LocationInfo> infos = Location.stat(files);
+    for (int i=0; i<files.size(); i++) {
+      assertTrue(infos.get(i).exists());
+      assertEquals(10 * (i + 1), infos.get(i).length());
+    }
+  }
+
+  @Test
+  public void testSingleAndEmpty() {
+    assertEquals(0, Location.stat(new ArrayList<Location>()).size());
+    Location file = new Location(dir.getAbsolutePath(), "a.bin");
+    List<LocationInfo> infos = Location.stat(Arrays.asList(file));
+    assertEquals(1, infos.size());
+    assertTrue(infos.get(0).isFile());
+  }
+
+  @Test(expectedExceptions = UnsupportedOperationException.class)
+  public void testImmutable() {
+    Location.stat(Arrays.asList(new Location(dir))).clear();
+  }
+
+}
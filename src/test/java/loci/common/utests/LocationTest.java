@@ -49,6 +49,7 @@ import java.util.List;
 import loci.common.ByteArrayHandle;
 import loci.common.IRandomAccess;
 import loci.common.Location;
+import loci.common.LocationInfo;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -246,6 +247,43 @@ public class LocationTest {
     }
   }
 
+  @Test
+  public void testCanonicalCache() throws IOException {
+    Location.setCanonicalPathCacheTimeout(60);
+    try {
+      for (Location file : files) {
+        assertEquals(file.getName(), file.getCanonicalFile().getAbsolutePath(), file.getCanonicalPath());
+        // the second lookup is cached
+        assertEquals(file.getName(), file.getCanonicalFile().getAbsolutePath(), file.getCanonicalPath());
+      }
+      File valid = new File(files[0].getAbsolutePath());
+      assertEquals(valid.getCanonicalPath(), files[0].getCanonicalPath());
+    }
+    finally {
+      Location.setCanonicalPathCacheTimeout(0);
+    }
+  }
+
+  @Test
+  public void testURLSchemes() {
+    String[] urls = {
+      "http://localhost/a", "s3+http://localhost/bucket/key",
+    };
+    for (String url : urls) {
+      assertEquals(url, url, new Location(url).getAbsolutePath());
+    }
+    Location s3 = new Location("s3+http://localhost/bucket/key");
+    assertEquals("s3+http://localhost/bucket", s3.getParent());
+    assertNull(s3.getParentFile().getParentFile().getParent());
+
+    String[] paths = {
+      "a+://x", "a+b+c://x", "+a://x", "http:/x", "http://a\nb", "_a://x",
+    };
+    for (String path : paths) {
+      assertEquals(path, new File(path).getAbsolutePath(), new Location(path).getAbsolutePath());
+    }
+  }
+
   @Test
   public void testParent() {
     for (Location file : files) {
@@ -318,6 +356,39 @@ public class LocationTest {
     }
   }
 
+  @Test
+  public void testListWithAttributes() {
+    for (int i=0; i<files.length; i++) {
+      if (isRemote[i] != LocalRemoteType.LOCAL) continue;
+      LocationInfo[] infoList = files[i].listWithAttributes();
+      LocationInfo[] unhiddenList = files[i].listWithAttributes(true);
+
+      if (!isDirectory[i]) {
+        assertNull(files[i].getName(), infoList);
+        assertNull(files[i].getName(), unhiddenList);
+        continue;
+      }
+
+      List<String> complete = Arrays.asList(files[i].list());
+      assertEquals(files[i].getName(), complete.size(), infoList.length);
+      for (LocationInfo info : infoList) {
+        Location child = new Location(files[i], info.getName());
+        assertEquals(info.getName(), true, complete.contains(info.getName()));
+        assertEquals(info.getName(), child.getAbsolutePath(), info.getPath());
+        assertEquals(info.getName(), child.exists(), info.exists());
+        assertEquals(info.getName(), child.isDirectory(), info.isDirectory());
+        assertEquals(info.getName(), child.isHidden(), info.isHidden());
+        assertEquals(info.getName(), child.length(), info.length());
+        assertEquals(info.getName(), child.lastModified(), info.lastModified());
+      }
+      assertEquals(files[i].getName(), files[i].list(true).length,
+        unhiddenList.length);
+      for (LocationInfo info : unhiddenList) {
+        assertEquals(info.getName(), false, info.isHidden());
+      }
+    }
+  }
+
   @Test
   public void testToURL() throws IOException {
     for (int i=0; i<files.length; i++) {
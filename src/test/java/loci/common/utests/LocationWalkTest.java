@@ -0,0 +1,262 @@
+/*
+ * #%L
+ * Common package for I/O and related utilities
+ * %%
+ * Copyright (C) 2005 - 2016 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.common.utests;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import loci.common.ByteArrayHandle;
+import loci.common.Location;
+import loci.common.LocationInfo;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for walking directory trees with
+ * {@link loci.common.Location#walk(int, java.util.function.Predicate)}.
+ */
+public class LocationWalkTest {
+
+  // -- Constants --
+
+  private static final int DIRS = 4;
+  private static final int FILES = 10;
+
+  // -- Fields --
+
+  private File root;
+
+  /** Paths of all files and directories below the root. */
+  private Set<String> expected;
+
+  // -- Setup methods --
+
+  @BeforeClass
+  public void setup() throws IOException {
+    root = Files.createTempDirectory("location-walk").toFile();
+    expected = ConcurrentHashMap.newKeySet();
+    for (int i=0; i<DIRS; i++) {
+      File plate = mkdir(new File(root, "plate" + i));
+      for (int j=0; j<DIRS; j++) {
+        File well = mkdir(new File(plate, "well" + j));
+        for (int k=0; k<FILES; k++) {
+          File file = new File(well, "image" + k + ".tif");
+          Files.write(file.toPath(), new byte[k]);
+          expected.add(file.getAbsolutePath());
+        }
+      }
+    }
+  }
+
+  @AfterClass
+  public void cleanup() throws IOException {
+    try (Stream<Path> paths = Files.walk(root.toPath())) {
+      paths.sorted(Comparator.reverseOrder()).map(Path::toFile)
+        .forEach(File::delete);
+    }
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    Location.reset();
+  }
+
+  // -- Test methods --
+
+  @Test
+  public void testVisitAll() {
+    Set<String> found = ConcurrentHashMap.newKeySet();
+    AtomicInteger visits = new AtomicInteger();
+    assertTrue(new Location(root).walk(Integer.MAX_VALUE, null, entry -> {
+      visits.incrementAndGet();
+      found.add(entry.getPath());
+      return true;
+    }));
+    assertEquals(expected.size(), visits.get());
+    assertEquals(expected, found);
+  }
+
+  @Test
+  public void testStream() {
+    Set<String> found;
+    try (Stream<LocationInfo> entries = new Location(root).walk()) {
+      found = entries.map(LocationInfo::getPath).collect(Collectors.toSet());
+    }
+    assertEquals(expected, found);
+  }
+
+  @Test
+  public void testAttributes() {
+    try (Stream<LocationInfo> entries = new Location(root).walk()) {
+      entries.forEach(entry -> {
+        Location file = entry.getLocation();
+        assertEquals(file.isDirectory(), entry.isDirectory());
+        assertEquals(file.length(), entry.length());
+      });
+    }
+  }
+
+  @Test
+  public void testMaxDepth() {
+    List<LocationInfo> found;
+    try (Stream<LocationInfo> entries = new Location(root).walk(2, null)) {
+      found = entries.collect(Collectors.toList());
+    }
+    assertEquals(DIRS + DIRS * DIRS, found.size());
+    for (LocationInfo entry : found) {
+      assertTrue(entry.isDirectory());
+    }
+    assertTrue(new Location(root).walk(0, null, entry -> false));
+  }
+
+  @Test
+  public void testFilter() {
+    List<LocationInfo> found;
+    try (Stream<LocationInfo> entries = new Location(root).walk(
+      Integer.MAX_VALUE, entry -> !entry.getName().equals("plate0") &&
+      !entry.getName().equals("image0.tif")))
+    {
+      found = entries.filter(LocationInfo::isFile)
+        .collect(Collectors.toList());
+    }
+    assertEquals((DIRS - 1) * DIRS * (FILES - 1), found.size());
+    for (LocationInfo entry : found) {
+      assertFalse(entry.getPath().contains("plate0"));
+    }
+  }
+
+  @Test
+  public void testEarlyTermination() {
+    Location.setWalkThreads(1);
+    AtomicInteger visits = new AtomicInteger();
+    assertFalse(new Location(root).walk(Integer.MAX_VALUE, null,
+      entry -> visits.incrementAndGet() < 5));
+    assertEquals(5, visits.get());
+
+    try (Stream<LocationInfo> entries = new Location(root).walk()) {
+      assertEquals(3, entries.filter(LocationInfo::isFile).limit(3).count());
+    }
+  }
+
+  @Test(timeOut = 10000)
+  public void testStalledStream() throws IOException {
+    // enough entries to fill a stream's buffer
+    File big = Files.createTempDirectory("location-walk").toFile();
+    try {
+      for (int i=0; i<2000; i++) {
+        new File(big, "file" + i).createNewFile();
+      }
+      Location.setWalkThreads(1);
+      try (Stream<LocationInfo> stalled = new Location(big).walk()) {
+        assertTrue(stalled.iterator().hasNext());
+        // the stream's walk waits for its consumer, without holding up
+        // the only worker
+        AtomicInteger visits = new AtomicInteger();
+        assertTrue(new Location(root).walk(Integer.MAX_VALUE, null,
+          entry -> visits.incrementAndGet() > 0));
+        assertEquals(expected.size(), visits.get());
+      }
+    }
+    finally {
+      for (File f : big.listFiles()) {
+        f.delete();
+      }
+      big.delete();
+    }
+  }
+
+  @Test
+  public void testListingCache() {
+    Location.cacheDirectoryListings(true);
+    assertTrue(new Location(root).walk(Integer.MAX_VALUE, null, e -> true));
+    long misses = Location.getDirectoryListingsCacheStats().missCount();
+    assertEquals(1 + DIRS + DIRS * DIRS, misses);
+    assertTrue(new Location(root).walk(Integer.MAX_VALUE, null, e -> true));
+    assertEquals(misses, Location.getDirectoryListingsCacheStats().missCount());
+  }
+
+  @Test
+  public void testNotDirectory() {
+    Location file = new Location(new File(root, "plate0/well0/image0.tif"));
+    assertTrue(file.walk(Integer.MAX_VALUE, null, entry -> false));
+    try (Stream<LocationInfo> entries = file.walk()) {
+      assertEquals(0, entries.count());
+    }
+  }
+
+  @Test
+  public void testMappedIds() throws IOException {
+    try (HttpTestServer server = new HttpTestServer()) {
+      server.put("/dir/", ("<a href=\"a.bin\">a</a>" +
+        "<a href=\"mapped.bin\">mapped</a>").getBytes(StandardCharsets.UTF_8));
+      server.put("/dir/a.bin", new byte[1]);
+      // only the calling thread's id map has the second link
+      Location.mapFile(server.getURL("/dir/mapped.bin"),
+        new ByteArrayHandle(new byte[2]));
+      Location dir = new Location(server.getURL("/dir/"));
+      Set<String> found = ConcurrentHashMap.newKeySet();
+      assertTrue(dir.walk(1, null, entry -> found.add(entry.getName())));
+      assertEquals(2, found.size());
+      assertTrue(found.contains("mapped.bin"));
+      try (Stream<LocationInfo> entries = dir.walk()) {
+        assertEquals(2, entries.count());
+      }
+    }
+  }
+
+  // -- Helper methods --
+
+  private File mkdir(File dir) {
+    dir.mkdir();
+    expected.add(dir.getAbsolutePath());
+    return dir;
+  }
+
+}
@@ -0,0 +1,212 @@
+/*
+ * #%L
+ * Common package for I/O and related utilities
+ * %%
+ * Copyright (C) 2005 - 2016 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.common.utests;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertNull;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import loci.common.IRandomAccess;
+import loci.common.Location;
+import loci.common.S3Handle;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for {@link loci.common.S3Handle}, using a local S3-compatible
+ * stub server.
+ */
+public class S3HandleTest {
+
+  // -- Fields --
+
+  private HttpTestServer server;
+  private String endpoint;
+  private byte[] data;
+
+  // -- Setup methods --
+
+  @BeforeClass
+  public void startServer() throws IOException {
+    data = new byte[3 * 1024 * 1024 + 17];
+    new Random(5).nextBytes(data);
+    server = new HttpTestServer();
+    server.put("/bucket/images/large.bin", data);
+    server.put("/bucket/images/small.txt", "hello".getBytes("UTF-8"));
+    server.put("/bucket/images/tiles/0/0.bin", new byte[10]);
+    server.put("/bucket/images/tiles/0/1.bin", new byte[10]);
+    server.put("/bucket/images/tiles/1/0.bin", new byte[10]);
+    server.put("/bucket/with space/a.bin", new byte[3]);
+    server.put("/bucket/top.bin", new byte[1]);
+    endpoint = server.getURL("");
+    S3Handle.setEndpoint(endpoint);
+  }
+
+  @AfterClass
+  public void stopServer() {
+    S3Handle.setEndpoint(null);
+    server.close();
+  }
+
+  @BeforeMethod
+  public void setup() {
+    server.setMaxKeys(1000);
+    server.resetCounts();
+  }
+
+  // -- Test methods --
+
+  @Test
+  public void testCanHandleScheme() {
+    assertTrue(S3Handle.canHandleScheme("s3://bucket/key"));
+    assertTrue(S3Handle.canHandleScheme("s3+http://localhost:9000/b/k"));
+    assertTrue(S3Handle.canHandleScheme("s3+https://localhost/b/k"));
+    assertFalse(S3Handle.canHandleScheme("http://localhost/b/k"));
+    assertFalse(S3Handle.canHandleScheme("/tmp/s3://"));
+  }
+
+  @Test
+  public void testRead() throws IOException {
+    S3Handle handle = new S3Handle("s3://bucket/images/large.bin");
+    try {
+      assertEquals("bucket", handle.getBucket());
+      assertEquals("images/large.bin", handle.getKey());
+      assertEquals(data.length, handle.length());
+      assertEquals(1, server.getHeadRequests());
+      assertEquals(0, server.getGetRequests());
+
+      byte[] b = new byte[data.length];
+      handle.readFully(b);
+      assertTrue(Arrays.equals(data, b));
+      // sequential reads are served by concurrent ranged GETs
+      assertEquals(server.getGetRequests(), server.getRangeRequests());
+      assertTrue(server.getRangeRequests() > 1);
+
+      handle.seek(1000);
+      assertEquals(data[1000], handle.readByte());
+    }
+    finally {
+      handle.close();
+    }
+  }
+
+  @Test
+  public void testExplicitEndpoint() throws IOException {
+    String id = endpoint.replace("http://", "s3+http://") +
+      "/bucket/images/small.txt";
+    IRandomAccess handle = Location.getHandle(id);
+    try {
+      assertTrue(handle instanceof S3Handle);
+      assertEquals(5, handle.length());
+      byte[] b = new byte[5];
+      handle.readFully(b);
+      assertEquals("hello", new String(b, "UTF-8"));
+    }
+    finally {
+      handle.close();
+    }
+  }
+
+  @Test(expectedExceptions = FileNotFoundException.class)
+  public void testMissingObject() throws IOException {
+    new S3Handle("s3://bucket/images/missing.bin");
+  }
+
+  @Test
+  public void testLocationExists() {
+    assertTrue(new Location("s3://bucket/images/small.txt").exists());
+    assertTrue(new Location("s3://bucket/images").exists());
+    assertTrue(new Location("s3://bucket/images/tiles/").exists());
+    assertTrue(new Location("s3://bucket").exists());
+    assertFalse(new Location("s3://bucket/images/missing.bin").exists());
+    assertFalse(new Location("s3://missing/images").exists());
+    assertTrue(new Location("s3://bucket/with%20space/a.bin").exists());
+  }
+
+  @Test
+  public void testLocationFile() {
+    Location file = new Location("s3://bucket/images/small.txt");
+    assertEquals(5, file.length());
+    assertTrue(file.isFile());
+    assertFalse(file.isDirectory());
+    assertEquals("small.txt", file.getName());
+    assertEquals("s3://bucket/images", file.getParent());
+  }
+
+  @Test
+  public void testLocationList() {
+    Location dir = new Location("s3://bucket/images");
+    assertTrue(dir.isDirectory());
+    String[] list = dir.list();
+    Arrays.sort(list);
+    assertEquals(Arrays.asList("large.bin", "small.txt", "tiles"),
+      Arrays.asList(list));
+
+    list = new Location("s3://bucket").list();
+    Arrays.sort(list);
+    assertEquals(Arrays.asList("images", "top.bin", "with space"),
+      Arrays.asList(list));
+
+    assertNull(new Location("s3://bucket/images/small.txt").list());
+  }
+
+  @Test
+  public void testLocationListPages() {
+    server.setMaxKeys(1);
+    String[] list = new Location("s3://bucket/images/tiles/0").list();
+    Arrays.sort(list);
+    assertEquals(Arrays.asList("0.bin", "1.bin"), Arrays.asList(list));
+    assertEquals(2, server.getListRequests());
+  }
+
+  @Test
+  public void testLocationListFiles() {
+    Location[] files = new Location("s3://bucket/images/tiles").listFiles();
+    assertEquals(2, files.length);
+    for (Location file : files) {
+      assertTrue(file.getAbsolutePath(),
+        file.getAbsolutePath().startsWith("s3://bucket/images/tiles/"));
+      assertTrue(file.isDirectory());
+    }
+  }
+
+}
@@ -0,0 +1,131 @@
+/*
+ * #%L
+ * Common package for I/O and related utilities
+ * %%
+ * Copyright (C) 2005 - 2016 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.common.utests;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import loci.common.GZipHandle;
+import loci.common.StreamHandle;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for spilling of decompressed data in
+ * {@link loci.common.StreamHandle}.
+ */
+public class StreamHandleSpillTest {
+
+  // -- Fields --
+
+  private byte[] data;
+  private File gzFile;
+
+  // -- Setup methods --
+
+  @BeforeMethod
+  public void setup() throws IOException {
+    data = new byte[300000];
+    new Random(99).nextBytes(data);
+    gzFile = File.createTempFile("spill", ".gz");
+    gzFile.deleteOnExit();
+    try (OutputStream out =
+      new GZIPOutputStream(new FileOutputStream(gzFile)))
+    {
+      out.write(data);
+    }
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    StreamHandle.setDefaultSpill(false);
+    StreamHandle.setSpillMemoryLimit(64L * 1024 * 1024);
+  }
+
+  // -- Test methods --
+
+  @Test
+  public void testMemorySpill() throws IOException {
+    StreamHandle.setDefaultSpill(true);
+    checkRandomReads();
+  }
+
+  @Test
+  public void testFileSpill() throws IOException {
+    StreamHandle.setDefaultSpill(true);
+    StreamHandle.setSpillMemoryLimit(50000);
+    checkRandomReads();
+  }
+
+  @Test
+  public void testEnableAfterOpening() throws IOException {
+    GZipHandle handle = new GZipHandle(gzFile.getAbsolutePath());
+    handle.setSpill(true);
+    assertTrue(handle.isSpill());
+    handle.seek(1000);
+    assertEquals(data[1000], handle.readByte());
+    handle.seek(10);
+    assertEquals(data[10], handle.readByte());
+    handle.close();
+  }
+
+  // -- Helper methods --
+
+  private void checkRandomReads() throws IOException {
+    GZipHandle handle = new GZipHandle(gzFile.getAbsolutePath());
+    assertTrue(handle.isSpill());
+    assertEquals(data.length, handle.length());
+    Random r = new Random(3);
+    byte[] buf = new byte[2000];
+    for (int i=0; i<100; i++) {
+      int pos = r.nextInt(data.length - buf.length);
+      handle.seek(pos);
+      handle.readFully(buf);
+      for (int j=0; j<buf.length; j++) {
+        assertEquals(data[pos + j], buf[j]);
+      }
+      assertEquals(data[pos + buf.length], handle.readByte());
+    }
+    handle.close();
+  }
+
+}
@@ -31,6 +31,15 @@
  */
 package loci.common.utests;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
 import loci.common.DataTools;
 
 public final class TestUtilities {
@@ -48,4 +57,51 @@ public final class TestUtilities {
     int propertyValue = DataTools.parseInteger(prop);
     return propertyValue;
   }
+
+  /**
+   * Write data to a BGZF file, followed by the standard empty EOF block.
+   * @param data the uncompressed data
+   * @param blockSize the number of uncompressed bytes per block
+   * @param file the file to write
+   * @throws IOException if the file cannot be written
+   */
+  public static void writeBGZF(byte[] data, int blockSize, File file)
+    throws IOException
+  {
+    try (OutputStream out = new FileOutputStream(file)) {
+      for (int off=0; off<data.length; off+=blockSize) {
+        writeBGZFBlock(out, data, off, Math.min(blockSize, data.length - off));
+      }
+      writeBGZFBlock(out, data, 0, 0);
+    }
+  }
+
+  private static void writeBGZFBlock(OutputStream out, byte[] data, int off,
+    int len) throws IOException
+  {
+    Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    deflater.setInput(data, off, len);
+    deflater.finish();
+    byte[] compressed = new byte[len + 1024];
+    int clen = 0;
+    while (!deflater.finished()) {
+      clen += deflater.deflate(compressed, clen, compressed.length - clen);
+    }
+    deflater.end();
+    CRC32 crc = new CRC32();
+    crc.update(data, off, len);
+
+    ByteBuffer block = ByteBuffer.allocate(18 + clen + 8);
+    block.order(ByteOrder.LITTLE_ENDIAN);
+    block.put(new byte[] {0x1f, (byte) 0x8b, 8, 4, 0, 0, 0, 0, 0, (byte) 0xff});
+    block.putShort((short) 6);
+    block.put(new byte[] {'B', 'C'});
+    block.putShort((short) 2);
+    block.putShort((short) (block.capacity() - 1));
+    block.put(compressed, 0, clen);
+    block.putInt((int) crc.getValue());
+    block.putInt(len);
+    out.write(block.array());
+  }
+
 }
@@ -0,0 +1,228 @@
+/*
+ * #%L
+ * Common package for I/O and related utilities
+ * %%
+ * Copyright (C) 2005 - 2016 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.common.utests;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import loci.common.URLBlockCache;
+import loci.common.URLHandle;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for {@link loci.common.URLBlockCache}.
+ */
+public class URLBlockCacheTest {
+
+  // -- Constants --
+
+  private static final int BLOCK_SIZE = 65536;
+
+  // -- Fields --
+
+  private HttpTestServer server;
+  private byte[] data;
+  private URLBlockCache cache;
+
+  // -- Setup methods --
+
+  @BeforeClass
+  public void startServer() throws IOException {
+    data = new byte[BLOCK_SIZE * 10 + 123];
+    new Random(11).nextBytes(data);
+    server = new HttpTestServer();
+    server.put("/data.bin", data);
+    server.put("/other.bin", Arrays.copyOf(data, BLOCK_SIZE * 4));
+  }
+
+  @AfterClass
+  public void stopServer() {
+    server.close();
+  }
+
+  @BeforeMethod
+  public void setup() {
+    cache = new URLBlockCache(BLOCK_SIZE, BLOCK_SIZE * 4);
+    server.resetCounts();
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    URLHandle.setDefaultBlockCache(null);
+  }
+
+  // -- Test methods --
+
+  @Test
+  public void testReadThrough() throws IOException {
+    URLHandle handle = open("/data.bin");
+    try {
+      assertRead(handle, 100, 1000);
+      assertRead(handle, 100, 1000);
+      assertRead(handle, 200, 10);
+      assertEquals(1, cache.getBlockCount());
+      assertEquals(BLOCK_SIZE, cache.getSize());
+      assertEquals(1, cache.getStats().missCount());
+
+      // unaligned read across a block boundary
+      assertRead(handle, BLOCK_SIZE - 10, 20);
+      assertEquals(2, cache.getBlockCount());
+      assertEquals(2, cache.getStats().missCount());
+
+      assertRead(handle, 0, 10);
+      assertEquals(1, cache.getStats().hitCount());
+
+      // last, partial block
+      assertRead(handle, data.length - 50, 50);
+      assertEquals(BLOCK_SIZE * 2 + 123, cache.getSize());
+    }
+    finally {
+      handle.close();
+    }
+  }
+
+  @Test
+  public void testSharedBetweenHandles() throws IOException {
+    URLHandle.setDefaultBlockCache(cache);
+    URLHandle first = new URLHandle(server.getURL("/data.bin"));
+    URLHandle second = new URLHandle(server.getURL("/data.bin"));
+    try {
+      assertRead(first, 0, BLOCK_SIZE * 2);
+      int requests = server.getGetRequests();
+      assertRead(second, 0, BLOCK_SIZE * 2);
+      assertRead(second, 10, 100);
+      assertEquals(requests, server.getGetRequests());
+      assertEquals(2, cache.getStats().missCount());
+    }
+    finally {
+      first.close();
+      second.close();
+    }
+  }
+
+  @Test
+  public void testEviction() throws IOException {
+    URLHandle handle = open("/data.bin");
+    try {
+      assertRead(handle, 0, data.length);
+      assertTrue(cache.getSize() <= cache.getMaxBytes());
+      assertTrue(cache.getStats().evictionCount() > 0);
+
+      // the most recently used block is still cached
+      long misses = cache.getStats().missCount();
+      assertRead(handle, data.length - 10, 10);
+      assertEquals(misses, cache.getStats().missCount());
+    }
+    finally {
+      handle.close();
+    }
+  }
+
+  @Test
+  public void testInvalidate() throws IOException {
+    URLHandle handle = open("/data.bin");
+    URLHandle other = open("/other.bin");
+    try {
+      assertRead(handle, 0, 10);
+      assertRead(other, 0, 10);
+      assertEquals(2, cache.getBlockCount());
+      cache.invalidate(server.getURL("/data.bin"));
+      assertEquals(1, cache.getBlockCount());
+      assertEquals(BLOCK_SIZE, cache.getSize());
+      cache.clear();
+      assertEquals(0, cache.getBlockCount());
+      assertEquals(0, cache.getSize());
+    }
+    finally {
+      handle.close();
+      other.close();
+    }
+  }
+
+  @Test
+  public void testChangedResource() throws IOException {
+    byte[] changed = data.clone();
+    Arrays.fill(changed, 0, BLOCK_SIZE * 2, (byte) 7);
+    server.put("/changed.bin", data);
+    URLHandle before = open("/changed.bin");
+    URLHandle after = null;
+    try {
+      before.seek(0);
+      before.readFully(new byte[10]);
+      // a new version is served, and read into the same cache
+      server.put("/changed.bin", changed);
+      after = open("/changed.bin");
+      byte[] b = new byte[BLOCK_SIZE * 2];
+      after.readFully(b);
+      assertTrue(Arrays.equals(Arrays.copyOf(changed, b.length), b));
+      assertEquals(3, cache.getStats().missCount());
+    }
+    finally {
+      before.close();
+      if (after != null) after.close();
+    }
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void testInvalidBlockSize() {
+    new URLBlockCache(0, 100);
+  }
+
+  // -- Helper methods --
+
+  private URLHandle open(String path) throws IOException {
+    URLHandle handle = new URLHandle(server.getURL(path));
+    handle.setBlockCache(cache);
+    return handle;
+  }
+
+  private void assertRead(URLHandle handle, int offset, int len)
+    throws IOException
+  {
+    handle.seek(offset);
+    byte[] b = new byte[len];
+    handle.readFully(b);
+    assertTrue(Arrays.equals(Arrays.copyOfRange(data, offset, offset + len),
+      b));
+  }
+
+}
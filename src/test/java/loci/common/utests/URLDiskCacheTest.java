@@ -0,0 +1,240 @@
+/*
+ * #%L
+ * Common package for I/O and related utilities
+ * %%
+ * Copyright (C) 2005 - 2016 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.common.utests;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import loci.common.URLDiskCache;
+import loci.common.URLHandle;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for {@link loci.common.URLDiskCache}, using a local server.
+ */
+public class URLDiskCacheTest {
+
+  // -- Constants --
+
+  private static final int BLOCK_SIZE = 4096;
+
+  // -- Fields --
+
+  private HttpTestServer server;
+  private byte[] data;
+  private File directory;
+
+  // -- Setup methods --
+
+  @BeforeClass
+  public void startServer() throws IOException {
+    data = new byte[BLOCK_SIZE * 20 + 100];
+    new Random(17).nextBytes(data);
+    server = new HttpTestServer();
+  }
+
+  @AfterClass
+  public void stopServer() {
+    server.close();
+  }
+
+  @BeforeMethod
+  public void setup() throws IOException {
+    server.put("/data.bin", data);
+    server.resetCounts();
+    directory = Files.createTempDirectory("url-disk-cache").toFile();
+  }
+
+  @AfterMethod
+  public void tearDown() throws IOException {
+    URLHandle.setDefaultDiskCache(null);
+    File[] files = directory.listFiles();
+    if (files != null) {
+      for (File f : files) f.delete();
+    }
+    directory.delete();
+  }
+
+  // -- Test methods --
+
+  @Test
+  public void testPersistsAcrossInstances() throws IOException {
+    URLHandle.setDefaultDiskCache(new URLDiskCache(directory, 1 << 20,
+      BLOCK_SIZE));
+    assertBytes(data, read("/data.bin"));
+    assertTrue(server.getGetRequests() > 0);
+
+    // a new cache on the same directory, as in a later process
+    URLDiskCache cache = new URLDiskCache(directory, 1 << 20, BLOCK_SIZE);
+    assertEquals(BLOCK_SIZE * 21, cache.getSize());
+    URLHandle.setDefaultDiskCache(cache);
+    server.resetCounts();
+    assertBytes(data, read("/data.bin"));
+    // one conditional request, and no contents downloaded
+    assertEquals(1, server.getGetRequests());
+    assertEquals(1, server.getNotModifiedResponses());
+    assertEquals(0, server.getRangeRequests());
+  }
+
+  @Test
+  public void testPartialFill() throws IOException {
+    URLDiskCache cache = new URLDiskCache(directory, 1 << 20, BLOCK_SIZE);
+    URLHandle.setDefaultDiskCache(cache);
+    URLHandle handle = new URLHandle(server.getURL("/data.bin"));
+    try {
+      assertRead(handle, BLOCK_SIZE * 5 + 10, 100);
+      assertEquals(BLOCK_SIZE, cache.getSize());
+    }
+    finally {
+      handle.close();
+    }
+
+    server.resetCounts();
+    handle = new URLHandle(server.getURL("/data.bin"));
+    try {
+      assertRead(handle, BLOCK_SIZE * 5, BLOCK_SIZE);
+      assertEquals(0, server.getRangeRequests());
+      assertRead(handle, BLOCK_SIZE * 9, 10);
+      assertEquals(1, server.getRangeRequests());
+    }
+    finally {
+      handle.close();
+    }
+  }
+
+  @Test
+  public void testChangedContents() throws IOException {
+    URLHandle.setDefaultDiskCache(new URLDiskCache(directory, 1 << 20,
+      BLOCK_SIZE));
+    assertBytes(data, read("/data.bin"));
+
+    byte[] changed = data.clone();
+    changed[100]++;
+    server.put("/data.bin", changed);
+    server.resetCounts();
+    assertBytes(changed, read("/data.bin"));
+    assertEquals(0, server.getNotModifiedResponses());
+  }
+
+  @Test
+  public void testQuota() throws IOException {
+    URLDiskCache cache = new URLDiskCache(directory, BLOCK_SIZE * 30,
+      BLOCK_SIZE);
+    URLHandle.setDefaultDiskCache(cache);
+    server.put("/other.bin", data);
+    server.put("/third.bin", data);
+    read("/data.bin");
+    read("/other.bin");
+    read("/third.bin");
+    assertTrue(cache.getSize() <= cache.getMaxBytes());
+
+    // the most recently used resource is still cached
+    server.resetCounts();
+    read("/third.bin");
+    assertEquals(0, server.getRangeRequests());
+  }
+
+  @Test
+  public void testClear() throws IOException {
+    URLDiskCache cache = new URLDiskCache(directory, 1 << 20, BLOCK_SIZE);
+    URLHandle.setDefaultDiskCache(cache);
+    read("/data.bin");
+    cache.clear();
+    assertEquals(0, cache.getSize());
+    assertEquals(0, directory.list().length);
+    server.resetCounts();
+    read("/data.bin");
+    assertEquals(0, server.getNotModifiedResponses());
+  }
+
+  @Test
+  public void testCorruptIndex() throws IOException {
+    URLHandle.setDefaultDiskCache(new URLDiskCache(directory, 1 << 20,
+      BLOCK_SIZE));
+    assertBytes(data, read("/data.bin"));
+    for (File f : directory.listFiles()) {
+      if (f.getName().endsWith(".url")) {
+        // truncate the index before the length
+        String index = new String(Files.readAllBytes(f.toPath()), "UTF-8");
+        Files.write(f.toPath(), index.replaceAll("length=.*", "length=1x")
+          .getBytes("UTF-8"));
+      }
+    }
+
+    // the cache entry is ignored, and the contents downloaded again
+    URLHandle.setDefaultDiskCache(new URLDiskCache(directory, 1 << 20,
+      BLOCK_SIZE));
+    server.resetCounts();
+    assertBytes(data, read("/data.bin"));
+    assertEquals(0, server.getNotModifiedResponses());
+  }
+
+  // -- Helper methods --
+
+  private byte[] read(String path) throws IOException {
+    URLHandle handle = new URLHandle(server.getURL(path));
+    try {
+      byte[] b = new byte[(int) handle.length()];
+      handle.readFully(b);
+      return b;
+    }
+    finally {
+      handle.close();
+    }
+  }
+
+  private void assertBytes(byte[] expected, byte[] actual) {
+    assertTrue(Arrays.equals(expected, actual));
+  }
+
+  private void assertRead(URLHandle handle, int offset, int len)
+    throws IOException
+  {
+    handle.seek(offset);
+    byte[] b = new byte[len];
+    handle.readFully(b);
+    assertBytes(Arrays.copyOfRange(data, offset, offset + len), b);
+  }
+
+}
@@ -0,0 +1,197 @@
+/*
+ * #%L
+ * Common package for I/O and related utilities
+ * %%
+ * Copyright (C) 2005 - 2016 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.common.utests;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertNull;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import loci.common.ByteArrayHandle;
+import loci.common.Location;
+import loci.common.LocationInfo;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for listing remote directories with
+ * {@link loci.common.Location#list()}, using a local server.
+ */
+public class URLListingTest {
+
+  // -- Constants --
+
+  private static final int FILE_COUNT = 24;
+
+  // -- Fields --
+
+  private HttpTestServer server;
+  private List<String> names;
+
+  // -- Setup methods --
+
+  @BeforeClass
+  public void startServer() throws IOException {
+    server = new HttpTestServer();
+    names = new ArrayList<String>();
+    StringBuilder html = new StringBuilder();
+    html.append("<html><head><title>Index of /dir</title>");
+    html.append("<link rel=\"stylesheet\" href=\"style.css\"></head><body>");
+    html.append("<a href=\"?C=N;O=D\">Name</a>\n");
+    html.append("<a href=\"/\">Parent Directory</a>\n");
+    for (int i=0; i<FILE_COUNT; i++) {
+      String name = "file" + i + ".bin";
+      names.add(name);
+      server.put("/dir/" + name, new byte[i + 1]);
+      // icon and name links to the same file
+      html.append("<tr><td><A class=icon HREF='").append(name);
+      html.append("'><img></a></td>\n<td><a href=\"").append(name);
+      html.append("\">").append(name).append("</a></td></tr>\n");
+    }
+    html.append("<a href = \"missing.bin\">missing.bin</a>");
+    html.append("<a href=\"http://elsewhere.org/x\">elsewhere</a>");
+    html.append("</body></html>");
+    server.put("/dir/", html.toString().getBytes(StandardCharsets.UTF_8));
+    server.put("/dir/style.css", new byte[1]);
+    server.put("/notdir.html",
+      ("<a href=\"a.bin\">a</a><a href=\"/b.bin\">b</a>").getBytes(
+      StandardCharsets.UTF_8));
+  }
+
+  @AfterClass
+  public void stopServer() {
+    server.close();
+  }
+
+  @BeforeMethod
+  public void setup() {
+    Location.clearURLMetadataCache();
+    server.resetCounts();
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    server.setLatency(0);
+    Location.reset();
+  }
+
+  // -- Test methods --
+
+  @Test
+  public void testListWithAttributes() {
+    Location dir = new Location(server.getURL("/dir/"));
+    dir.list();
+    int heads = server.getHeadRequests();
+    LocationInfo[] list = dir.listWithAttributes();
+    assertEquals(FILE_COUNT, list.length);
+    for (LocationInfo info : list) {
+      assertTrue(info.exists());
+      assertTrue(info.isFile());
+      int index = Integer.parseInt(info.getName().substring(4,
+        info.getName().indexOf('.')));
+      assertEquals(index + 1, info.length());
+    }
+    // the attributes were cached while checking the listing
+    assertEquals(heads, server.getHeadRequests());
+  }
+
+  @Test
+  public void testList() {
+    String[] list = new Location(server.getURL("/dir/")).list();
+    assertEquals(names, Arrays.asList(list));
+    // one listing request, and one check for each distinct link
+    assertEquals(1, server.getGetRequests());
+    assertEquals(FILE_COUNT + 1, server.getHeadRequests());
+  }
+
+  @Test
+  public void testMappedLink() {
+    // the link to missing.bin is kept when the URL is mapped to a handle
+    Location.mapFile(server.getURL("/dir/missing.bin"),
+      new ByteArrayHandle(new byte[5]));
+    List<String> list =
+      Arrays.asList(new Location(server.getURL("/dir/")).list());
+    assertEquals(FILE_COUNT + 1, list.size());
+    assertTrue(list.contains("missing.bin"));
+  }
+
+  @Test
+  public void testConcurrentChecks() {
+    server.setLatency(50);
+    Location.setURLListingThreads(4);
+    String[] list = new Location(server.getURL("/dir/")).list();
+    assertEquals(FILE_COUNT, list.length);
+    assertTrue(server.getMaxConcurrentRequests() > 1);
+    assertTrue(server.getMaxConcurrentRequests() <= 4);
+  }
+
+  @Test
+  public void testTrustedListing() {
+    Location.setTrustURLListings(true);
+    String[] list = new Location(server.getURL("/dir/")).list();
+    List<String> expected = new ArrayList<String>(names);
+    expected.add("missing.bin");
+    assertEquals(expected, Arrays.asList(list));
+    assertEquals(1, server.getGetRequests());
+    assertEquals(0, server.getHeadRequests());
+  }
+
+  @Test
+  public void testListFiles() {
+    Location[] files = new Location(server.getURL("/dir/")).listFiles();
+    assertEquals(FILE_COUNT, files.length);
+    assertEquals(server.getURL("/dir/file3.bin"), files[3].getAbsolutePath());
+    assertEquals(4, files[3].length());
+  }
+
+  @Test
+  public void testNotDirectoryListing() {
+    Location.setTrustURLListings(true);
+    assertNull(new Location(server.getURL("/notdir.html")).list());
+  }
+
+  @Test
+  public void testMissingDirectory() {
+    assertNull(new Location(server.getURL("/missing/")).list());
+  }
+
+}
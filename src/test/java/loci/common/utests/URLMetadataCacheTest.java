@@ -0,0 +1,167 @@
+/*
+ * #%L
+ * Common package for I/O and related utilities
+ * %%
+ * Copyright (C) 2005 - 2016 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.common.utests;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.io.IOException;
+
+import loci.common.Location;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for the URL metadata cache in {@link loci.common.Location},
+ * using a local server.
+ */
+public class URLMetadataCacheTest {
+
+  // -- Fields --
+
+  private HttpTestServer server;
+
+  // -- Setup methods --
+
+  @BeforeClass
+  public void startServer() throws IOException {
+    server = new HttpTestServer();
+    server.put("/a.bin", new byte[1234]);
+    server.put("/b.bin", new byte[10]);
+  }
+
+  @AfterClass
+  public void stopServer() {
+    server.close();
+  }
+
+  @BeforeMethod
+  public void setup() {
+    Location.clearURLMetadataCache();
+    server.resetCounts();
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    server.setHeadAllowed(true);
+    Location.reset();
+  }
+
+  // -- Test methods --
+
+  @Test
+  public void testHeadOnly() {
+    Location file = new Location(server.getURL("/a.bin"));
+    assertTrue(file.exists());
+    assertEquals(1234, file.length());
+    assertEquals(1, server.getHeadRequests());
+    assertEquals(0, server.getGetRequests());
+  }
+
+  @Test
+  public void testSharedBetweenLocations() {
+    for (int i=0; i<5; i++) {
+      Location file = new Location(server.getURL("/a.bin"));
+      assertTrue(file.exists());
+      assertEquals(1234, file.length());
+    }
+    assertEquals(1, server.getHeadRequests());
+  }
+
+  @Test
+  public void testMissing() {
+    Location file = new Location(server.getURL("/missing.bin"));
+    assertFalse(file.exists());
+    assertEquals(0, file.length());
+    assertFalse(new Location(server.getURL("/missing.bin")).exists());
+    assertEquals(1, server.getHeadRequests());
+  }
+
+  @Test
+  public void testTimeout() throws InterruptedException {
+    Location.setURLMetadataCacheTimeout(0.05);
+    Location file = new Location(server.getURL("/a.bin"));
+    assertTrue(file.exists());
+    assertTrue(file.exists());
+    assertEquals(1, server.getHeadRequests());
+    Thread.sleep(100);
+    assertTrue(file.exists());
+    assertEquals(2, server.getHeadRequests());
+  }
+
+  @Test
+  public void testCacheingOff() {
+    Location.setURLMetadataCacheTimeout(0);
+    Location file = new Location(server.getURL("/a.bin"));
+    assertTrue(file.exists());
+    assertTrue(file.exists());
+    assertEquals(2, server.getHeadRequests());
+  }
+
+  @Test
+  public void testSizeBound() {
+    Location.setURLMetadataCacheSize(1);
+    Location a = new Location(server.getURL("/a.bin"));
+    Location b = new Location(server.getURL("/b.bin"));
+    assertEquals(1234, a.length());
+    assertEquals(10, b.length());
+    assertEquals(1234, a.length());
+    assertEquals(3, server.getHeadRequests());
+  }
+
+  @Test
+  public void testClear() {
+    Location file = new Location(server.getURL("/b.bin"));
+    assertTrue(file.exists());
+    server.remove("/b.bin");
+    assertTrue(file.exists());
+    Location.clearURLMetadataCache();
+    assertFalse(file.exists());
+    server.put("/b.bin", new byte[10]);
+  }
+
+  @Test
+  public void testHeadNotAllowed() {
+    server.setHeadAllowed(false);
+    Location file = new Location(server.getURL("/a.bin"));
+    assertTrue(file.exists());
+    assertEquals(1234, file.length());
+    assertEquals(1, server.getGetRequests());
+  }
+
+}
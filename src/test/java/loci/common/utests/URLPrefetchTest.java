@@ -0,0 +1,210 @@
+/*
+ * #%L
+ * Common package for I/O and related utilities
+ * %%
+ * Copyright (C) 2005 - 2016 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.common.utests;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import loci.common.URLBlockCache;
+import loci.common.URLHandle;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for prefetching of sequential reads in
+ * {@link loci.common.URLHandle}.
+ */
+public class URLPrefetchTest {
+
+  // -- Constants --
+
+  private static final int BLOCK_SIZE = 65536;
+
+  // -- Fields --
+
+  private HttpTestServer server;
+  private byte[] data;
+
+  // -- Setup methods --
+
+  @BeforeClass
+  public void startServer() throws IOException {
+    data = new byte[BLOCK_SIZE * 16 + 1000];
+    new Random(3).nextBytes(data);
+    server = new HttpTestServer();
+    server.put("/data.bin", data);
+  }
+
+  @AfterClass
+  public void stopServer() {
+    server.close();
+  }
+
+  @BeforeMethod
+  public void setup() {
+    server.resetCounts();
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    server.setLatency(0);
+    server.setBandwidth(0);
+    URLHandle.setDefaultPrefetch(0);
+  }
+
+  // -- Test methods --
+
+  @Test
+  public void testSequentialRead() throws IOException {
+    URLHandle handle = open(8);
+    try {
+      assertEquals(8, handle.getPrefetch());
+      byte[] b = readAll(handle, 10000);
+      assertTrue(Arrays.equals(data, b));
+      // every block after the first two is fetched ahead
+      assertTrue(server.getRangeRequests() >= 14);
+    }
+    finally {
+      handle.close();
+    }
+  }
+
+  @Test
+  public void testWithoutCache() throws IOException {
+    URLHandle.setDefaultPrefetch(2);
+    URLHandle handle = new URLHandle(server.getURL("/data.bin"));
+    try {
+      assertEquals(2, handle.getPrefetch());
+      assertTrue(Arrays.equals(data, readAll(handle, 4096)));
+      assertRead(handle, 17, 100000);
+    }
+    finally {
+      handle.close();
+    }
+  }
+
+  @Test
+  public void testRandomAccess() throws IOException {
+    URLHandle handle = open(8);
+    try {
+      assertRead(handle, BLOCK_SIZE * 10, 10);
+      assertRead(handle, BLOCK_SIZE * 3, 10);
+      assertRead(handle, BLOCK_SIZE * 12, 10);
+      assertRead(handle, BLOCK_SIZE * 5, 10);
+      // no blocks are fetched ahead of reads that are not sequential
+      assertEquals(4, server.getRangeRequests());
+    }
+    finally {
+      handle.close();
+    }
+  }
+
+  @Test
+  public void testSeekWhilePrefetching() throws IOException {
+    server.setLatency(5);
+    URLHandle handle = open(4);
+    try {
+      assertRead(handle, 0, BLOCK_SIZE * 3);
+      assertRead(handle, BLOCK_SIZE * 14, BLOCK_SIZE);
+      assertRead(handle, 1, BLOCK_SIZE * 4);
+      assertRead(handle, BLOCK_SIZE * 15, BLOCK_SIZE + 1000);
+    }
+    finally {
+      handle.close();
+    }
+  }
+
+  @Test
+  public void testConcurrentRequests() throws IOException {
+    // latency keeps each request in flight long enough to overlap
+    server.setLatency(50);
+
+    readWithPrefetch(0);
+    assertEquals(1, server.getMaxConcurrentRequests());
+
+    server.resetCounts();
+    readWithPrefetch(8);
+    // the prefetched blocks, and the block being read
+    int concurrent = server.getMaxConcurrentRequests();
+    assertTrue("concurrent requests: " + concurrent,
+      concurrent > 1 && concurrent <= 9);
+  }
+
+  // -- Helper methods --
+
+  private URLHandle open(int prefetch) throws IOException {
+    URLHandle handle = new URLHandle(server.getURL("/data.bin"));
+    handle.setBlockCache(
+      new URLBlockCache(BLOCK_SIZE, URLBlockCache.DEFAULT_MAX_BYTES));
+    handle.setPrefetch(prefetch);
+    return handle;
+  }
+
+  private void readWithPrefetch(int prefetch) throws IOException {
+    URLHandle handle = open(prefetch);
+    try {
+      assertTrue(Arrays.equals(data, readAll(handle, 16384)));
+    }
+    finally {
+      handle.close();
+    }
+  }
+
+  private byte[] readAll(URLHandle handle, int chunk) throws IOException {
+    byte[] b = new byte[(int) handle.length()];
+    handle.seek(0);
+    for (int off=0; off<b.length; off+=chunk) {
+      handle.readFully(b, off, Math.min(chunk, b.length - off));
+    }
+    return b;
+  }
+
+  private void assertRead(URLHandle handle, int offset, int len)
+    throws IOException
+  {
+    handle.seek(offset);
+    byte[] b = new byte[len];
+    handle.readFully(b);
+    assertTrue(Arrays.equals(Arrays.copyOfRange(data, offset, offset + len),
+      b));
+  }
+
+}
@@ -0,0 +1,152 @@
+/*
+ * #%L
+ * Common package for I/O and related utilities
+ * %%
+ * Copyright (C) 2005 - 2016 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.common.utests;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import loci.common.HandleException;
+import loci.common.ZipArchive;
+import loci.common.ZipHandle;
+
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for {@link loci.common.ZipArchive}.
+ */
+public class ZipArchiveTest {
+
+  // -- Constants --
+
+  private static final int ENTRY_COUNT = 200;
+  private static final int ENTRY_SIZE = 5000;
+
+  // -- Fields --
+
+  private File zipFile;
+
+  // -- Setup methods --
+
+  @BeforeClass
+  public void setup() throws IOException {
+    zipFile = File.createTempFile("ziparchive", ".zip");
+    zipFile.deleteOnExit();
+    try (ZipOutputStream out =
+      new ZipOutputStream(new FileOutputStream(zipFile)))
+    {
+      for (int i=0; i<ENTRY_COUNT; i++) {
+        out.putNextEntry(new ZipEntry("plane" + i + ".tif"));
+        out.write(entryData(i));
+      }
+    }
+  }
+
+  // -- Test methods --
+
+  @Test
+  public void testEntries() throws IOException {
+    ZipArchive archive = new ZipArchive(zipFile.getAbsolutePath());
+    assertEquals(ENTRY_COUNT, archive.getEntryCount());
+    assertEquals("plane0.tif", archive.getEntryNames().get(0));
+    assertTrue(archive.hasEntry("plane17.tif"));
+    assertFalse(archive.hasEntry("plane17.tiff"));
+    assertEquals(ENTRY_SIZE, archive.getEntrySize("plane17.tif"));
+    assertEquals(-1, archive.getEntrySize("missing"));
+  }
+
+  @Test(expectedExceptions = {HandleException.class})
+  public void testMissingEntry() throws IOException {
+    new ZipArchive(zipFile.getAbsolutePath()).getHandle("missing");
+  }
+
+  @Test
+  public void testConcurrentReads() throws Exception {
+    final ZipArchive archive = new ZipArchive(zipFile.getAbsolutePath());
+    ExecutorService pool = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+      for (int i=ENTRY_COUNT - 1; i>=0; i--) {
+        final int index = i;
+        results.add(pool.submit(() -> {
+          byte[] expected = entryData(index);
+          byte[] actual = new byte[ENTRY_SIZE];
+          ZipHandle handle = archive.getHandle("plane" + index + ".tif");
+          try {
+            // read the second half before the first to force a reset
+            handle.seek(ENTRY_SIZE / 2);
+            handle.readFully(actual, ENTRY_SIZE / 2, ENTRY_SIZE / 2);
+            handle.seek(0);
+            handle.readFully(actual, 0, ENTRY_SIZE / 2);
+          }
+          finally {
+            handle.close();
+          }
+          for (int j=0; j<ENTRY_SIZE; j++) {
+            if (expected[j] != actual[j]) return false;
+          }
+          return true;
+        }));
+      }
+      for (Future<Boolean> result : results) {
+        assertTrue(result.get());
+      }
+    }
+    finally {
+      pool.shutdown();
+    }
+  }
+
+  // -- Helper methods --
+
+  private static byte[] entryData(int index) {
+    byte[] data = new byte[ENTRY_SIZE];
+    for (int i=0; i<data.length; i++) {
+      data[i] = (byte) (index * 31 + i);
+    }
+    return data;
+  }
+
+}
@@ -0,0 +1,200 @@
+/*
+ * #%L
+ * Common package for I/O and related utilities
+ * %%
+ * Copyright (C) 2005 - 2016 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.common.utests;
+
+import static org.testng.AssertJUnit.assertEquals;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import loci.common.ZipHandle;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for {@link loci.common.ZipHandle}.
+ */
+public class ZipHandleTest {
+
+  // -- Fields --
+
+  private byte[] data;
+
+  // -- Setup methods --
+
+  @BeforeMethod
+  public void setup() {
+    data = new byte[200000];
+    new Random(42).nextBytes(data);
+  }
+
+  // -- Test methods --
+
+  @Test
+  public void testStoredEntry() throws IOException {
+    File zip = createZip(ZipEntry.STORED, "stored.dat");
+    ZipHandle handle = new ZipHandle(zip.getAbsolutePath());
+    assertEquals("stored.dat", handle.getEntryName());
+    assertEquals(data.length, handle.length());
+    checkRandomReads(handle);
+    handle.close();
+  }
+
+  @Test
+  public void testDeflatedEntry() throws IOException {
+    File zip = createZip(ZipEntry.DEFLATED, "deflated.dat");
+    ZipHandle handle = new ZipHandle(zip.getAbsolutePath());
+    assertEquals(data.length, handle.length());
+    checkRandomReads(handle);
+    handle.close();
+  }
+
+  @Test
+  public void testNamedEntry() throws IOException {
+    File zip = createZip(ZipEntry.DEFLATED, "a.dat", "b.dat", "c.dat");
+    ZipHandle handle =
+      new ZipHandle(zip.getAbsolutePath(), new ZipEntry("b.dat"));
+    assertEquals("b.dat", handle.getEntryName());
+    assertEquals(data.length, handle.length());
+    checkRandomReads(handle);
+    handle.close();
+
+    handle = new ZipHandle(zip.getAbsolutePath());
+    assertEquals("a.dat", handle.getEntryName());
+    assertEquals(3, handle.getEntryCount());
+    handle.close();
+  }
+
+  @Test
+  public void testZip64() throws IOException {
+    // more than 65535 entries requires a Zip64 end of central directory
+    File zip = File.createTempFile("zip64", ".zip");
+    zip.deleteOnExit();
+    int count = 70000;
+    try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zip))) {
+      for (int i=0; i<count; i++) {
+        out.putNextEntry(new ZipEntry("entry" + i));
+        out.write(i & 0xff);
+      }
+      out.putNextEntry(new ZipEntry("last.dat"));
+      out.write(data);
+    }
+
+    ZipHandle handle = new ZipHandle(zip.getAbsolutePath());
+    assertEquals(count + 1, handle.getEntryCount());
+    handle.close();
+
+    handle = new ZipHandle(zip.getAbsolutePath(), new ZipEntry("last.dat"));
+    assertEquals(data.length, handle.length());
+    checkRandomReads(handle);
+    handle.close();
+
+    handle = new ZipHandle(zip.getAbsolutePath(), new ZipEntry("entry69999"));
+    assertEquals(1, handle.length());
+    assertEquals(69999 & 0xff, handle.readUnsignedByte());
+    handle.close();
+  }
+
+  @Test
+  public void testMissingCentralDirectory() throws IOException {
+    // sizes of deflated entries written by ZipOutputStream are only
+    // recorded in data descriptors after the data
+    File zip = createZip(ZipEntry.DEFLATED, "a.dat", "b.dat");
+    byte[] bytes = Files.readAllBytes(zip.toPath());
+    ByteBuffer eocd = ByteBuffer.wrap(bytes, bytes.length - 22, 22);
+    eocd.order(ByteOrder.LITTLE_ENDIAN);
+    int directoryOffset = eocd.getInt(bytes.length - 6);
+    Files.write(zip.toPath(), Arrays.copyOf(bytes, directoryOffset));
+
+    ZipHandle handle = new ZipHandle(zip.getAbsolutePath());
+    assertEquals(2, handle.getEntryCount());
+    assertEquals(data.length, handle.length());
+    checkRandomReads(handle);
+    handle.close();
+
+    handle = new ZipHandle(zip.getAbsolutePath(), new ZipEntry("b.dat"));
+    assertEquals(data.length, handle.length());
+    checkRandomReads(handle);
+    handle.close();
+  }
+
+  // -- Helper methods --
+
+  private File createZip(int method, String... names) throws IOException {
+    File zip = File.createTempFile("ziphandle", ".zip");
+    zip.deleteOnExit();
+    try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zip))) {
+      for (String name : names) {
+        ZipEntry entry = new ZipEntry(name);
+        entry.setMethod(method);
+        if (method == ZipEntry.STORED) {
+          CRC32 crc = new CRC32();
+          crc.update(data);
+          entry.setSize(data.length);
+          entry.setCompressedSize(data.length);
+          entry.setCrc(crc.getValue());
+        }
+        out.putNextEntry(entry);
+        out.write(data);
+      }
+    }
+    return zip;
+  }
+
+  private void checkRandomReads(ZipHandle handle) throws IOException {
+    Random r = new Random(7);
+    byte[] buf = new byte[1000];
+    for (int i=0; i<50; i++) {
+      int pos = r.nextInt(data.length - buf.length);
+      handle.seek(pos);
+      handle.readFully(buf);
+      for (int j=0; j<buf.length; j++) {
+        assertEquals(data[pos + j], buf[j]);
+      }
+      assertEquals(pos + buf.length, handle.getFilePointer());
+    }
+    handle.seek(data.length - 1);
+    assertEquals(data[data.length - 1], handle.readByte());
+  }
+
+}
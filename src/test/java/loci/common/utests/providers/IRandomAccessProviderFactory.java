@@ -52,7 +52,11 @@ public class IRandomAccessProviderFactory {
     providers.put("ByteArrayHandle", new ByteArrayHandleProvider());
     providers.put("BZip2Handle", new BZip2HandleProvider());
     providers.put("GZipHandle", new GZipHandleProvider());
+    providers.put("SpillGZipHandle", new SpillGZipHandleProvider());
+    providers.put("BGZFHandle", new BGZFHandleProvider());
     providers.put("NIOFileHandle", new NIOFileHandleProvider());
+    providers.put("PathHandle", new PathHandleProvider());
+    providers.put("ZipPathHandle", new ZipPathHandleProvider());
     providers.put("URLHandle", new URLHandleProvider());
     providers.put("ZipHandle", new ZipHandleProvider());
   }